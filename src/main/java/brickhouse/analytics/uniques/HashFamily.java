@@ -0,0 +1,452 @@
+package brickhouse.analytics.uniques;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.nio.charset.Charset;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ *  64 bit hash functions which can be used for sketching.
+ *
+ *  MD5 is the default, and matches the hashes of sketches
+ *   built with earlier versions, ( Guava's md5 of the string's
+ *   UTF-16 characters ). MurmurHash3 and xxHash64 are several
+ *   times faster, and hash the UTF-8 bytes of the string.
+ *
+ *  Sketches built with different hash families can't be combined.
+ */
+public enum HashFamily {
+	MD5( 0, "md5") {
+		@Override
+		public long hashString( String str) {
+			MD5State state = MD5_STATE.get();
+			int len = str.length();
+			byte[] buf = state.buffer( len*2);
+			for(int i=0; i<len; ++i) {
+				char ch = str.charAt(i);
+				buf[2*i] = (byte)ch;
+				buf[2*i + 1] = (byte)(ch >>> 8);
+			}
+			return state.digest( buf, len*2);
+		}
+
+		@Override
+		public long hashUTF8( byte[] bytes, int offset, int len) {
+			//// MD5 hashes UTF-16 characters, so transcode the
+			////  bytes into the scratch buffer rather than decoding a String
+			MD5State state = MD5_STATE.get();
+			byte[] buf = state.buffer( len*2);
+			int n = TranscodeUTF16LE( bytes, offset, len, buf);
+			if( n < 0) {
+				return hashString( new String( bytes, offset, len, UTF8));
+			}
+			return state.digest( buf, n);
+		}
+	},
+	MURMUR3_128( 1, "murmur3") {
+		@Override
+		public long hashString( String str) {
+			byte[] bytes = str.getBytes( UTF8);
+			return Murmur3_128( bytes, 0, bytes.length);
+		}
+
+		@Override
+		public long hashUTF8( byte[] bytes, int offset, int len) {
+			if(!IsWellFormedUTF8( bytes, offset, len)) {
+				return hashString( new String( bytes, offset, len, UTF8));
+			}
+			return Murmur3_128( bytes, offset, len);
+		}
+	},
+	XXHASH64( 2, "xxhash64") {
+		@Override
+		public long hashString( String str) {
+			byte[] bytes = str.getBytes( UTF8);
+			return XXHash64( bytes, 0, bytes.length);
+		}
+
+		@Override
+		public long hashUTF8( byte[] bytes, int offset, int len) {
+			if(!IsWellFormedUTF8( bytes, offset, len)) {
+				return hashString( new String( bytes, offset, len, UTF8));
+			}
+			return XXHash64( bytes, offset, len);
+		}
+	};
+
+	public static final HashFamily DEFAULT = MD5;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int id;
+	private final String hashName;
+
+	HashFamily( int id, String hashName) {
+		this.id = id;
+		this.hashName = hashName;
+	}
+
+	public abstract long hashString( String str);
+
+	/**
+	 *  Hash the UTF-8 encoded bytes of a string, ( for example the 
+	 *   backing bytes of a Text ), without allocating a String.
+	 *   Returns the same value as hashString would on the decoded string.
+	 */
+	public abstract long hashUTF8( byte[] bytes, int offset, int len);
+
+	/**
+	 *  Id which is written into serialized sketches.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public String getHashName() {
+		return hashName;
+	}
+
+	public static HashFamily FromId( int id) {
+		for( HashFamily family : values()) {
+			if( family.id == id) {
+				return family;
+			}
+		}
+		throw new IllegalArgumentException("Unknown sketch hash id " + id);
+	}
+
+	/**
+	 *  Look up a hash family by name, ( "md5", "murmur3" or "xxhash64" )
+	 */
+	public static HashFamily ForName( String name) {
+		for( HashFamily family : values()) {
+			if( family.hashName.equalsIgnoreCase( name) || family.name().equalsIgnoreCase( name)) {
+				return family;
+			}
+		}
+		throw new IllegalArgumentException("Unknown sketch hash " + name + "; expected md5, murmur3 or xxhash64");
+	}
+
+
+	/**
+	 *   MessageDigest isn't thread safe, so keep one,
+	 *    and some scratch space, per thread.
+	 */
+	private static class MD5State {
+		final MessageDigest md;
+		final byte[] digest = new byte[16];
+		byte[] buf = new byte[256];
+
+		MD5State() {
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException( e);
+			}
+		}
+
+		byte[] buffer( int len) {
+			if( buf.length < len) {
+				buf = new byte[ Math.max( len, buf.length*2)];
+			}
+			return buf;
+		}
+
+		long digest( byte[] bytes, int len) {
+			md.update( bytes, 0, len);
+			try {
+				md.digest( digest, 0, 16);
+			} catch (DigestException e) {
+				throw new IllegalStateException( e);
+			}
+			//// First 8 bytes, little endian
+			long hash = 0;
+			for(int i=7; i>=0; --i) {
+				hash = (hash << 8) | (digest[i] & 0xFFL);
+			}
+			return hash;
+		}
+	}
+
+	private static final ThreadLocal<MD5State> MD5_STATE = new ThreadLocal<MD5State>() {
+		@Override
+		protected MD5State initialValue() {
+			return new MD5State();
+		}
+	};
+
+
+	/**
+	 *  Transcode well-formed UTF-8 into UTF-16LE, returning the number 
+	 *   of bytes written, or -1 if the input is malformed, so that the 
+	 *   caller can fall back to the JDK's replacement handling.
+	 *   The output buffer needs to be at least twice the input length.
+	 */
+	static int TranscodeUTF16LE( byte[] src, int offset, int len, byte[] dst) {
+		int end = offset + len;
+		int pos = offset;
+		int out = 0;
+		while( pos < end) {
+			int b = src[pos];
+			if( b >= 0) {
+				dst[out++] = (byte)b;
+				dst[out++] = 0;
+				pos++;
+				continue;
+			}
+			int cp;
+			if( (b & 0xE0) == 0xC0) {
+				if( pos + 1 >= end || !IsContinuation( src[pos + 1])) {
+					return -1;
+				}
+				cp = ((b & 0x1F) << 6) | (src[pos + 1] & 0x3F);
+				if( cp < 0x80) {
+					return -1;
+				}
+				pos += 2;
+			} else if( (b & 0xF0) == 0xE0) {
+				if( pos + 2 >= end || !IsContinuation( src[pos + 1]) || !IsContinuation( src[pos + 2])) {
+					return -1;
+				}
+				cp = ((b & 0x0F) << 12) | ((src[pos + 1] & 0x3F) << 6) | (src[pos + 2] & 0x3F);
+				if( cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF)) {
+					return -1;
+				}
+				pos += 3;
+			} else if( (b & 0xF8) == 0xF0) {
+				if( pos + 3 >= end || !IsContinuation( src[pos + 1])
+						|| !IsContinuation( src[pos + 2]) || !IsContinuation( src[pos + 3])) {
+					return -1;
+				}
+				cp = ((b & 0x07) << 18) | ((src[pos + 1] & 0x3F) << 12)
+						| ((src[pos + 2] & 0x3F) << 6) | (src[pos + 3] & 0x3F);
+				if( cp < 0x10000 || cp > 0x10FFFF) {
+					return -1;
+				}
+				pos += 4;
+				cp -= 0x10000;
+				int hi = 0xD800 | (cp >>> 10);
+				dst[out++] = (byte)hi;
+				dst[out++] = (byte)(hi >>> 8);
+				cp = 0xDC00 | (cp & 0x3FF);
+			} else {
+				return -1;
+			}
+			dst[out++] = (byte)cp;
+			dst[out++] = (byte)(cp >>> 8);
+		}
+		return out;
+	}
+
+	/**
+	 *  Check that the bytes would survive decoding and re-encoding unchanged.
+	 */
+	static boolean IsWellFormedUTF8( byte[] src, int offset, int len) {
+		int end = offset + len;
+		int pos = offset;
+		while( pos < end) {
+			int b = src[pos];
+			if( b >= 0) {
+				pos++;
+			} else if( (b & 0xE0) == 0xC0) {
+				if( pos + 1 >= end || !IsContinuation( src[pos + 1]) 
+						|| (b & 0x1E) == 0) {
+					return false;
+				}
+				pos += 2;
+			} else if( (b & 0xF0) == 0xE0) {
+				if( pos + 2 >= end || !IsContinuation( src[pos + 1]) || !IsContinuation( src[pos + 2])) {
+					return false;
+				}
+				int cp = ((b & 0x0F) << 12) | ((src[pos + 1] & 0x3F) << 6);
+				if( cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF)) {
+					return false;
+				}
+				pos += 3;
+			} else if( (b & 0xF8) == 0xF0) {
+				if( pos + 3 >= end || !IsContinuation( src[pos + 1])
+						|| !IsContinuation( src[pos + 2]) || !IsContinuation( src[pos + 3])) {
+					return false;
+				}
+				int cp = ((b & 0x07) << 18) | ((src[pos + 1] & 0x3F) << 12);
+				if( cp < 0x10000 || cp > 0x10FFFF) {
+					return false;
+				}
+				pos += 4;
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean IsContinuation( byte b) {
+		return (b & 0xC0) == 0x80;
+	}
+
+	private static long GetLongLE( byte[] b, int i) {
+		return (b[i] & 0xFFL)
+				| ((b[i + 1] & 0xFFL) << 8)
+				| ((b[i + 2] & 0xFFL) << 16)
+				| ((b[i + 3] & 0xFFL) << 24)
+				| ((b[i + 4] & 0xFFL) << 32)
+				| ((b[i + 5] & 0xFFL) << 40)
+				| ((b[i + 6] & 0xFFL) << 48)
+				| ((b[i + 7] & 0xFFL) << 56);
+	}
+
+	private static long GetIntLE( byte[] b, int i) {
+		return (b[i] & 0xFFL)
+				| ((b[i + 1] & 0xFFL) << 8)
+				| ((b[i + 2] & 0xFFL) << 16)
+				| ((b[i + 3] & 0xFFL) << 24);
+	}
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private static long FMix64( long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/**
+	 *  The first 64 bits of the x64 128 bit MurmurHash3, with seed 0.
+	 *  ( Same as Guava's murmur3_128().hashBytes().asLong() )
+	 */
+	public static long Murmur3_128( byte[] bytes, int offset, int len) {
+		long h1 = 0;
+		long h2 = 0;
+		int end = offset + (len & ~15);
+		int pos = offset;
+		for( ; pos < end; pos += 16) {
+			long k1 = GetLongLE( bytes, pos);
+			long k2 = GetLongLE( bytes, pos + 8);
+
+			k1 *= C1; k1 = Long.rotateLeft( k1, 31); k1 *= C2; h1 ^= k1;
+			h1 = Long.rotateLeft( h1, 27); h1 += h2; h1 = h1*5 + 0x52dce729;
+
+			k2 *= C2; k2 = Long.rotateLeft( k2, 33); k2 *= C1; h2 ^= k2;
+			h2 = Long.rotateLeft( h2, 31); h2 += h1; h2 = h2*5 + 0x38495ab5;
+		}
+
+		//// Read the tail little endian, the first eight bytes into k1, and the rest into k2
+		int tail = len & 15;
+		long k1 = 0;
+		long k2 = 0;
+		for( int i = tail - 1; i >= 8; --i) {
+			k2 = (k2 << 8) | (bytes[pos + i] & 0xFFL);
+		}
+		for( int i = Math.min( tail, 8) - 1; i >= 0; --i) {
+			k1 = (k1 << 8) | (bytes[pos + i] & 0xFFL);
+		}
+		if( tail > 8) {
+			k2 *= C2; k2 = Long.rotateLeft( k2, 33); k2 *= C1; h2 ^= k2;
+		}
+		if( tail > 0) {
+			k1 *= C1; k1 = Long.rotateLeft( k1, 31); k1 *= C2; h1 ^= k1;
+		}
+
+		h1 ^= len;
+		h2 ^= len;
+		h1 += h2;
+		h2 += h1;
+		h1 = FMix64( h1);
+		h2 = FMix64( h2);
+		h1 += h2;
+		return h1;
+	}
+
+
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private static long XXRound( long acc, long input) {
+		acc += input*P2;
+		acc = Long.rotateLeft( acc, 31);
+		return acc*P1;
+	}
+
+	private static long XXMergeRound( long acc, long val) {
+		acc ^= XXRound( 0, val);
+		return acc*P1 + P4;
+	}
+
+	/**
+	 *  xxHash64, with seed 0.
+	 */
+	public static long XXHash64( byte[] bytes, int offset, int len) {
+		int pos = offset;
+		int end = offset + len;
+		long h;
+		if( len >= 32) {
+			long v1 = P1 + P2;
+			long v2 = P2;
+			long v3 = 0;
+			long v4 = -P1;
+			int limit = end - 32;
+			do {
+				v1 = XXRound( v1, GetLongLE( bytes, pos));
+				v2 = XXRound( v2, GetLongLE( bytes, pos + 8));
+				v3 = XXRound( v3, GetLongLE( bytes, pos + 16));
+				v4 = XXRound( v4, GetLongLE( bytes, pos + 24));
+				pos += 32;
+			} while( pos <= limit);
+			h = Long.rotateLeft( v1, 1) + Long.rotateLeft( v2, 7)
+					+ Long.rotateLeft( v3, 12) + Long.rotateLeft( v4, 18);
+			h = XXMergeRound( h, v1);
+			h = XXMergeRound( h, v2);
+			h = XXMergeRound( h, v3);
+			h = XXMergeRound( h, v4);
+		} else {
+			h = P5;
+		}
+		h += len;
+
+		while( pos + 8 <= end) {
+			h ^= XXRound( 0, GetLongLE( bytes, pos));
+			h = Long.rotateLeft( h, 27)*P1 + P4;
+			pos += 8;
+		}
+		if( pos + 4 <= end) {
+			h ^= GetIntLE( bytes, pos)*P1;
+			h = Long.rotateLeft( h, 23)*P2 + P3;
+			pos += 4;
+		}
+		while( pos < end) {
+			h ^= (bytes[pos] & 0xFFL)*P5;
+			h = Long.rotateLeft( h, 11)*P1;
+			pos++;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+}
@@ -20,77 +20,276 @@ package brickhouse.analytics.uniques;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-
+/**
+ *  KMV sketch set, which keeps the K minimum hashes seen.
+ *  
+ *  Hashes are kept in a sorted primitive long array, so 
+ *   that once the sketch is full, most hashes can be rejected 
+ *   with a single comparison against the last hash, without 
+ *   boxing or walking a tree.
+ *   
+ *  The original strings are kept in a parallel array, unless
+ *   the sketch is created in hash-only mode, for cases 
+ *   where only the hashes, or the reach estimate, are needed.
+ *   
+ *  Items are hashed with MD5 by default, but a faster HashFamily
+ *   can be chosen. Sketches with different hash families can't 
+ *   be combined.
+ */
 public class SketchSet implements ICountDistinct {
 	static final int SIZEOF_LONG = 64;
+	static final int INITIAL_CAPACITY = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	
     public  static int DEFAULT_MAX_ITEMS = 5000;
+    public static final String HASH_MARKER_PREFIX = "__SKETCH_HASH__:";
     private  int maxItems = DEFAULT_MAX_ITEMS;
-	private TreeMap<Long,String> sortedMap;
-	private static HashFunction HASH = Hashing.md5();
+    private boolean hashOnly = false;
+    private long[] hashes;
+    private String[] items;
+    private int size = 0;
+    //// Spare arrays, which merges write into, and then swap
+    private long[] spareHashes;
+    private String[] spareItems;
+    private HashFamily hashFamily;
 	
     
     public SketchSet() {
-    	sortedMap = new TreeMap<Long,String>();
+    	this( DEFAULT_MAX_ITEMS, false);
     }
     	
     
     public SketchSet(int max ) {
+    	this( max, false);
+    }
+    
+    /**
+     *  
+     * @param max  Number of minimum hashes to keep
+     * @param hashOnly If true, only the hashes are kept,
+     *      and not the original strings.
+     */
+    public SketchSet(int max, boolean hashOnly ) {
+    	this( max, hashOnly, HashFamily.DEFAULT);
+    }
+    
+    /**
+     *  
+     * @param max  Number of minimum hashes to keep
+     * @param hashOnly If true, only the hashes are kept,
+     *      and not the original strings.
+     * @param hashFamily Hash function used for items
+     */
+    public SketchSet(int max, boolean hashOnly, HashFamily hashFamily ) {
     	this.maxItems = max;
-    	sortedMap = new TreeMap<Long,String>();
+    	this.hashOnly = hashOnly;
+    	this.hashFamily = hashFamily;
+    	int capacity = Math.max( 1, Math.min( max, INITIAL_CAPACITY));
+    	hashes = new long[ capacity];
+    	if(!hashOnly) {
+    		items = new String[ capacity];
+    	}
     }
     
     public void addHashItem( long hash, String str) {
-    	if(sortedMap.size() < maxItems) {
-    		sortedMap.put( hash, str);
-    	} else {
-    		Long hashLong = hash;
-    		if(! sortedMap.containsKey( hashLong)) {
-    			long maxHash = sortedMap.lastKey();
-    			if( hash< maxHash) {
-    				sortedMap.remove(maxHash);
-    				sortedMap.put( hashLong,str);
-    			}
+    	if(size == maxItems) {
+    		//// Quick rejection of anything not less than the current max
+    		if( hash >= hashes[size -1]) {
+    			return;
+    		}
+    	} else if( size == 0 || hash > hashes[size -1]) {
+    		//// Hashes arriving in sorted order can just be appended
+    		if( size == hashes.length) {
+    			grow();
+    		}
+    		hashes[size] = hash;
+    		if(!hashOnly) {
+    			items[size] = str;
+    		}
+    		size++;
+    		return;
+    	}
+    	int idx = Arrays.binarySearch( hashes, 0, size, hash);
+    	if( idx >= 0) {
+    		//// Already have it
+    		return;
+    	}
+    	int insertIdx = -(idx + 1);
+    	if(size == maxItems) {
+    		//// drop the largest hash
+    		size--;
+    	} else if( size == hashes.length) {
+    		grow();
+    	}
+    	int numToMove = size - insertIdx;
+    	if( numToMove > 0) {
+    		System.arraycopy( hashes, insertIdx, hashes, insertIdx + 1, numToMove);
+    		if(!hashOnly) {
+    			System.arraycopy( items, insertIdx, items, insertIdx + 1, numToMove);
     		}
     	}
+    	hashes[insertIdx] = hash;
+    	if(!hashOnly) {
+    		items[insertIdx] = str;
+    	}
+    	size++;
+    }
+    
+    private void grow() {
+    	int newCapacity = hashes.length*2;
+    	if( maxItems > 0 && newCapacity > maxItems) {
+    		newCapacity = maxItems;
+    	}
+    	hashes = Arrays.copyOf( hashes, newCapacity);
+    	if(!hashOnly) {
+    		items = Arrays.copyOf( items, newCapacity);
+    	}
     }
+    
 	/**
 	 *   for testing 
 	 * @param hash
 	 */
 	public void addHash( long hash) {
-		addHashItem( hash, Long.toString( hash));
+		addHashItem( hash, hashOnly ? null : Long.toString( hash));
 	}
 	
 	public void addItem( String str) {
-		HashCode hc = HASH.hashString( str);
-		this.addHashItem( hc.asLong(), str);
+		this.addHashItem( hashFamily.hashString( str), str);
+	}
+
+	/**
+	 *  Add an item from its UTF-8 bytes. The String is only
+	 *   decoded if the hash actually makes it into the sketch,
+	 *   and the sketch is keeping items.
+	 */
+	public void addItemBytes( byte[] bytes, int offset, int len) {
+		long hash = hashFamily.hashUTF8( bytes, offset, len);
+		if( size == maxItems && hash >= hashes[size -1]) {
+			return;
+		}
+		addHashItem( hash, hashOnly ? null : new String( bytes, offset, len, UTF8));
 	}
 	
+	/**
+	 *  Return the items associated with the minimum hashes,
+	 *   in hash order. In hash-only mode, the string 
+	 *   representation of the hashes is returned.
+	 */
 	public List<String> getMinHashItems() {
-	  return new ArrayList(this.sortedMap.values());
+	  List<String> itemList = new ArrayList<String>( size);
+	  for(int i=0; i<size; ++i) {
+		  itemList.add( hashOnly ? Long.toString( hashes[i]) : items[i]);
+	  }
+	  return itemList;
 	}
 	
+	/**
+	 *  Return the minimum hash items, as they are stored in Hive.
+	 *  Unless the sketch is hashed with the default MD5, the first
+	 *   item is a marker naming the hash family, so that the family
+	 *   is kept with the sketch, and readers can check it.
+	 */
+	public List<String> getMarkedMinHashItems() {
+	  if( hashFamily == HashFamily.DEFAULT) {
+		  return getMinHashItems();
+	  }
+	  List<String> itemList = new ArrayList<String>( size + 1);
+	  itemList.add( HashMarker( hashFamily));
+	  for(int i=0; i<size; ++i) {
+		  itemList.add( hashOnly ? Long.toString( hashes[i]) : items[i]);
+	  }
+	  return itemList;
+	}
+
+	public static String HashMarker( HashFamily family) {
+		return HASH_MARKER_PREFIX + family.getHashName();
+	}
+
+	/**
+	 *  Return the hash family named by a marker item,
+	 *   or null if the item is not a marker.
+	 */
+	public static HashFamily ReadHashMarker( String item) {
+		if( item == null || !item.startsWith( HASH_MARKER_PREFIX)) {
+			return null;
+		}
+		return HashFamily.ForName( item.substring( HASH_MARKER_PREFIX.length()));
+	}
+
+	/**
+	 *  Return a sorted map of the minimum hashes to the items.
+	 *  The map is a copy, and changes to it do not affect 
+	 *   the sketch.
+	 */
 	public SortedMap<Long,String> getHashItemMap() {
-		return this.sortedMap;
+		TreeMap<Long,String> sortedMap = new TreeMap<Long,String>();
+		for(int i=0; i<size; ++i) {
+			sortedMap.put( hashes[i], hashOnly ? Long.toString( hashes[i]) : items[i]);
+		}
+		return sortedMap;
 	}
 	
 	public List<Long> getMinHashes() {
-	   return new ArrayList( this.sortedMap.keySet());
+	   List<Long> hashList = new ArrayList<Long>( size);
+	   for(int i=0; i<size; ++i) {
+		   hashList.add( hashes[i]);
+	   }
+	   return hashList;
+	}
+	
+	/**
+	 *  Return a copy of the minimum hashes, in sorted order.
+	 */
+	public long[] getMinHashArray() {
+		return Arrays.copyOf( hashes, size);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isFull() {
+		return size == maxItems;
+	}
+	
+	/**
+	 *  Direct access to the sorted hashes, for serialization.
+	 *  Only the first size() entries are valid.
+	 */
+	long[] hashArray() {
+		return hashes;
+	}
+	
+	String itemAt( int idx) {
+		if( hashOnly || items[idx] == null) {
+			return Long.toString( hashes[idx]);
+		}
+		return items[idx];
+	}
+	
+	public boolean isHashOnly() {
+		return hashOnly;
+	}
+	
+	public HashFamily getHashFamily() {
+		return hashFamily;
 	}
 	
 	public void clear() {
-		this.sortedMap.clear();
+		if(!hashOnly) {
+			Arrays.fill( items, 0, size, null);
+		}
+		size = 0;
 	}
 	
 	public int getMaxItems() {
@@ -98,23 +297,33 @@ public class SketchSet implements ICountDistinct {
 	}
 	
 	public long lastHash() {
-		return sortedMap.lastKey();
+		if(size == 0) {
+			throw new NoSuchElementException();
+		}
+		return hashes[size -1];
 	}
 	
 	public String lastItem() {
-		return sortedMap.lastEntry().getValue();
+		if(size == 0) {
+			throw new NoSuchElementException();
+		}
+		return hashOnly ? Long.toString( hashes[size -1]) : items[size -1];
 	}
 	
 	public double estimateReach() {
-		if(sortedMap.size() < maxItems) {
-			return sortedMap.size();
+		if(size < maxItems) {
+			return size;
 		}
-		long maxHash = sortedMap.lastKey();
+		long maxHash = hashes[size -1];
 		return EstimatedReach(maxHash, maxItems);
 	}
 	
 	static public double EstimatedReach( String lastItem, int maxItems) {
-		long maxHash = HASH.hashString(lastItem).asLong();
+		return EstimatedReach( lastItem, maxItems, HashFamily.DEFAULT);
+	}
+	
+	static public double EstimatedReach( String lastItem, int maxItems, HashFamily hashFamily) {
+		long maxHash = hashFamily.hashString(lastItem);
 		return EstimatedReach( maxHash, maxItems);
 	}
 	
@@ -130,9 +339,8 @@ public class SketchSet implements ICountDistinct {
 	public long calculateSimHash() {
 		int[] sumTable = new int[ SIZEOF_LONG];
 		
-		Iterator<Long> hashes = getHashItemMap().keySet().iterator();
-		while( hashes.hasNext() ) {
-			long hash = hashes.next();
+		for(int i=0; i<size; ++i) {
+			long hash = hashes[i];
 			long mask = 1l;
 			for(int pos =0; pos < SIZEOF_LONG; ++pos ) {
 				if( (hash & mask) != 0l) {
@@ -157,9 +365,124 @@ public class SketchSet implements ICountDistinct {
 	
 	
 	public void combine( SketchSet other) {
-		for( Entry<Long,String> entry: other.sortedMap.entrySet() ) {
-			addHashItem( entry.getKey(), entry.getValue());
+		combineAll( Collections.singletonList( other));
+	}
+	
+	/**
+	 *  Combine several sketches into this one, with a k-way merge 
+	 *   of the sorted hashes, which stops once the K minimum 
+	 *   hashes have been found. 
+	 *   
+	 *  When the same hash is in more than one sketch, 
+	 *    the item from this sketch, or from the earliest 
+	 *    sketch in the list, is kept.
+	 *    
+	 * @throws IllegalArgumentException if the sketches
+	 *    were built with different hash families.
+	 */
+	public void combineAll( List<SketchSet> others) {
+		int numRuns = others.size() + 1;
+		SketchSet[] runs = new SketchSet[ numRuns];
+		runs[0] = this;
+		long total = size;
+		for(int i=1; i<numRuns; ++i) {
+			runs[i] = others.get(i -1);
+			if( runs[i].hashFamily != hashFamily) {
+				throw new IllegalArgumentException("Can't combine a sketch hashed with " 
+			         + runs[i].hashFamily.getHashName() + " into a sketch hashed with " + hashFamily.getHashName());
+			}
+			total += runs[i].size;
+		}
+		int capacity = (int)Math.min( total, (long)maxItems);
+		if( capacity <= 0) {
+			return;
+		}
+		long[] outHashes = spareHashes;
+		String[] outItems = spareItems;
+		if( outHashes == null || outHashes.length < capacity) {
+			outHashes = new long[ Math.max( capacity, hashes.length)];
+			if(!hashOnly) {
+				outItems = new String[ outHashes.length];
+			}
+		}
+		
+		//// Min-heap of run indexes, ordered by the current hash of each run
+		int[] pos = new int[ numRuns];
+		int[] heap = new int[ numRuns];
+		int heapSize = 0;
+		for(int i=0; i<numRuns; ++i) {
+			if( runs[i].size > 0) {
+				heap[heapSize++] = i;
+				SiftUp( heap, heapSize -1, runs, pos);
+			}
+		}
+		int out = 0;
+		while( heapSize > 0 && out < capacity) {
+			int run = heap[0];
+			SketchSet runSketch = runs[run];
+			long hash = runSketch.hashes[ pos[run]];
+			if( out == 0 || hash != outHashes[ out -1]) {
+				outHashes[out] = hash;
+				if(!hashOnly) {
+					outItems[out] = runSketch.itemAt( pos[run]);
+				}
+				out++;
+			}
+			pos[run]++;
+			if( pos[run] == runSketch.size) {
+				heap[0] = heap[--heapSize];
+			}
+			SiftDown( heap, 0, heapSize, runs, pos);
+		}
+		
+		spareHashes = hashes;
+		spareItems = items;
+		if(!hashOnly) {
+			Arrays.fill( spareItems, 0, size, null);
+		}
+		hashes = outHashes;
+		items = outItems;
+		size = out;
+	}
+	
+	private static boolean RunLess( int a, int b, SketchSet[] runs, int[] pos) {
+		long hashA = runs[a].hashes[ pos[a]];
+		long hashB = runs[b].hashes[ pos[b]];
+		return hashA < hashB || (hashA == hashB && a < b);
+	}
+	
+	private static void SiftUp( int[] heap, int idx, SketchSet[] runs, int[] pos) {
+		while( idx > 0) {
+			int parent = (idx -1) >> 1;
+			if(!RunLess( heap[idx], heap[parent], runs, pos)) {
+				return;
+			}
+			int tmp = heap[idx];
+			heap[idx] = heap[parent];
+			heap[parent] = tmp;
+			idx = parent;
+		}
+	}
+	
+	private static void SiftDown( int[] heap, int idx, int heapSize, SketchSet[] runs, int[] pos) {
+		while( true) {
+			int smallest = idx;
+			int left = 2*idx + 1;
+			int right = left + 1;
+			if( left < heapSize && RunLess( heap[left], heap[smallest], runs, pos)) {
+				smallest = left;
+			}
+			if( right < heapSize && RunLess( heap[right], heap[smallest], runs, pos)) {
+				smallest = right;
+			}
+			if( smallest == idx) {
+				return;
+			}
+			int tmp = heap[idx];
+			heap[idx] = heap[smallest];
+			heap[smallest] = tmp;
+			idx = smallest;
 		}
 	}
 	
-}
\ No newline at end of file
+}
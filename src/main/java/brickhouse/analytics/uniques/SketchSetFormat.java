@@ -0,0 +1,255 @@
+package brickhouse.analytics.uniques;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ *  Compact binary representation of a SketchSet.
+ *
+ *  <p>Layout is a one byte magic, a one byte version, a one byte
+ *   flags field, ( with the HashFamily id in the upper four bits ),
+ *   the max size and the number of hashes as varints,
+ *   and then the hashes in sorted order. The first hash is written
+ *   as a fixed 8 bytes, and the rest as unsigned varint deltas from
+ *   the previous hash. If the item flag is set, each hash is followed
+ *   by the varint length and UTF-8 bytes of its item.</p>
+ *
+ *  <p>Since hashes are in sorted order, a reader merging into a full
+ *   sketch can stop as soon as it sees a hash larger than its max,
+ *   and the decoded hashes can be merged in as a sorted run.</p>
+ */
+public class SketchSetFormat {
+	public static final byte MAGIC = (byte)0x4B;
+	public static final byte VERSION = 1;
+	static final int HEADER_SIZE = 3;
+	static final int FLAG_ITEMS = 0x01;
+	static final int HASH_FAMILY_SHIFT = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	/**
+	 *  Is this byte array in the binary sketch format ?
+	 */
+	public static boolean IsSketchBytes( byte[] bytes, int offset, int length) {
+		return length >= HEADER_SIZE
+				&& bytes[offset] == MAGIC
+				&& bytes[offset + 1] > 0
+				&& bytes[offset + 1] <= VERSION;
+	}
+
+	public static byte[] ToBytes( SketchSet sketch) {
+		return ToBytes( sketch, !sketch.isHashOnly());
+	}
+
+	public static byte[] ToBytes( SketchSet sketch, boolean includeItems) {
+		int size = sketch.size();
+		long[] hashes = sketch.hashArray();
+		byte[][] itemBytes = null;
+
+		//// header bytes, 2 varints, and at most 10 bytes per hash
+		int maxLen = HEADER_SIZE + 20 + 10*size;
+		if(includeItems) {
+			itemBytes = new byte[size][];
+			for(int i=0; i<size; ++i) {
+				String item = sketch.itemAt(i);
+				itemBytes[i] = item.getBytes( UTF8);
+				maxLen += 5 + itemBytes[i].length;
+			}
+		}
+		byte[] buf = new byte[ maxLen];
+		buf[0] = MAGIC;
+		buf[1] = VERSION;
+		buf[2] = (byte)((includeItems ? FLAG_ITEMS : 0) 
+				| (sketch.getHashFamily().getId() << HASH_FAMILY_SHIFT));
+		int pos = HEADER_SIZE;
+		pos = WriteVarLong( buf, pos, sketch.getMaxItems());
+		pos = WriteVarLong( buf, pos, size);
+		long prev = 0;
+		for(int i=0; i<size; ++i) {
+			if(i == 0) {
+				pos = WriteFixedLong( buf, pos, hashes[0]);
+			} else {
+				pos = WriteVarLong( buf, pos, hashes[i] - prev);
+			}
+			prev = hashes[i];
+			if(includeItems) {
+				pos = WriteVarLong( buf, pos, itemBytes[i].length);
+				System.arraycopy( itemBytes[i], 0, buf, pos, itemBytes[i].length);
+				pos += itemBytes[i].length;
+			}
+		}
+		return Arrays.copyOf( buf, pos);
+	}
+
+	/**
+	 *  Read the max size of the sketch, without decoding the hashes.
+	 */
+	public static int ReadMaxItems( byte[] bytes, int offset, int length) {
+		CheckHeader( bytes, offset, length);
+		return (int)new Reader( bytes, offset + HEADER_SIZE, offset + length).readVarLong();
+	}
+
+	/**
+	 *  Read the hash family used to build the sketch.
+	 */
+	public static HashFamily ReadHashFamily( byte[] bytes, int offset, int length) {
+		CheckHeader( bytes, offset, length);
+		return HashFamily.FromId( (bytes[offset + 2] & 0xFF) >>> HASH_FAMILY_SHIFT);
+	}
+
+	public static SketchSet FromBytes( byte[] bytes) {
+		return FromBytes( bytes, 0, bytes.length);
+	}
+
+	public static SketchSet FromBytes( byte[] bytes, int offset, int length) {
+		CheckHeader( bytes, offset, length);
+		boolean hasItems = (bytes[offset + 2] & FLAG_ITEMS) != 0;
+		int maxItems = ReadMaxItems( bytes, offset, length);
+		SketchSet sketch = new SketchSet( maxItems, !hasItems, ReadHashFamily( bytes, offset, length));
+		Decode( sketch, bytes, offset, length, false, Long.MAX_VALUE);
+		return sketch;
+	}
+
+	/**
+	 *   Add all the hashes from a serialized sketch into an
+	 *    existing sketch.
+	 */
+	public static void Merge( SketchSet sketch, byte[] bytes, int offset, int length) {
+		sketch.combine( ReadRun( sketch, bytes, offset, length));
+	}
+
+	/**
+	 *   Decode the hashes from a serialized sketch which could 
+	 *   still be added to the given sketch, as a sorted run 
+	 *   to be merged into it.
+	 *   
+	 * @throws IllegalArgumentException if the serialized sketch 
+	 *    was built with a different hash family
+	 */
+	public static SketchSet ReadRun( SketchSet sketch, byte[] bytes, int offset, int length) {
+		HashFamily hashFamily = ReadHashFamily( bytes, offset, length);
+		if( hashFamily != sketch.getHashFamily()) {
+			throw new IllegalArgumentException("Can't merge a sketch hashed with " 
+					+ hashFamily.getHashName() + " into a sketch hashed with " + sketch.getHashFamily().getHashName());
+		}
+		SketchSet run = new SketchSet( sketch.getMaxItems(), sketch.isHashOnly(), hashFamily);
+		boolean bounded = sketch.isFull();
+		long bound = bounded ? sketch.lastHash() : Long.MAX_VALUE;
+		Decode( run, bytes, offset, length, bounded, bound);
+		return run;
+	}
+
+	private static void Decode( SketchSet run, byte[] bytes, int offset, int length, boolean bounded, long bound) {
+		CheckHeader( bytes, offset, length);
+		boolean hasItems = (bytes[offset + 2] & FLAG_ITEMS) != 0;
+		boolean wantItems = !run.isHashOnly();
+		Reader reader = new Reader( bytes, offset + HEADER_SIZE, offset + length);
+		reader.readVarLong(); /// max items
+		int size = (int)reader.readVarLong();
+		long hash = 0;
+		for(int i=0; i<size && !run.isFull(); ++i) {
+			if(i == 0) {
+				hash = reader.readFixedLong();
+			} else {
+				hash += reader.readVarLong();
+			}
+			if( bounded && hash >= bound) {
+				//// All remaining hashes are larger
+				return;
+			}
+			String item = null;
+			if(hasItems) {
+				int itemLen = (int)reader.readVarLong();
+				if( reader.pos + itemLen > reader.end) {
+					throw new IllegalArgumentException("Truncated sketch set");
+				}
+				if( wantItems) {
+					item = new String( bytes, reader.pos, itemLen, UTF8);
+				}
+				reader.pos += itemLen;
+			} else if( wantItems) {
+				item = Long.toString( hash);
+			}
+			run.addHashItem( hash, item);
+		}
+	}
+
+	private static void CheckHeader( byte[] bytes, int offset, int length) {
+		if(!IsSketchBytes( bytes, offset, length)) {
+			throw new IllegalArgumentException("Not a serialized sketch set");
+		}
+	}
+
+	static int WriteVarLong( byte[] buf, int pos, long val) {
+		while( (val & ~0x7FL) != 0) {
+			buf[pos++] = (byte)((val & 0x7F) | 0x80);
+			val >>>= 7;
+		}
+		buf[pos++] = (byte)val;
+		return pos;
+	}
+
+	static int WriteFixedLong( byte[] buf, int pos, long val) {
+		for(int shift = 56; shift >= 0; shift -= 8) {
+			buf[pos++] = (byte)(val >>> shift);
+		}
+		return pos;
+	}
+
+	static class Reader {
+		final byte[] bytes;
+		final int end;
+		int pos;
+
+		Reader( byte[] bytes, int pos, int end) {
+			this.bytes = bytes;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		long readVarLong() {
+			long val = 0;
+			int shift = 0;
+			while(true) {
+				if( pos >= end) {
+					throw new IllegalArgumentException("Truncated sketch set");
+				}
+				byte b = bytes[pos++];
+				val |= (long)(b & 0x7F) << shift;
+				if( (b & 0x80) == 0) {
+					return val;
+				}
+				shift += 7;
+			}
+		}
+
+		long readFixedLong() {
+			if( pos + 8 > end) {
+				throw new IllegalArgumentException("Truncated sketch set");
+			}
+			long val = 0;
+			for(int i=0; i<8; ++i) {
+				val = (val << 8) | (bytes[pos++] & 0xFF);
+			}
+			return val;
+		}
+	}
+
+}
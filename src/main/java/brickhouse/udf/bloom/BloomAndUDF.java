@@ -32,7 +32,7 @@ import org.apache.hadoop.util.bloom.Filter;
 public class BloomAndUDF extends UDF {
 
 	public String evaluate( String bloom1Str, String bloom2Str ) throws IOException {
-		Filter bloom1 = BloomFactory.GetBloomFilter( bloom1Str);
+		Filter bloom1 = BloomFactory.GetMutableBloomFilter( bloom1Str);
 		Filter bloom2 = BloomFactory.GetBloomFilter( bloom2Str);
 		
 		bloom1.and( bloom2);
@@ -17,36 +17,148 @@ package brickhouse.udf.bloom;
  **/
 
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.hadoop.hive.ql.exec.Description;
-import org.apache.hadoop.hive.ql.exec.UDF;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
-import org.apache.hadoop.util.bloom.BloomFilter;
-import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.util.bloom.Key;
 
 /**
  *   Returns true if the bloom (probably) contains the string
- *   
+ *
+ *   The bloom can either be the name of a bloom loaded with distributed_bloom,
+ *   or an encoded bloom. A constant bloom is parsed once, and otherwise the
+ *   last bloom is kept, and only parsed again if the bloom argument changes.
+ *
+ *   An array of keys can be passed, to test a batch of keys against
+ *   the bloom at once, which returns an array of booleans.
  *
  */
 @Description(
 		 name = "bloom_contains",
 		 value =  " Returns true if the referenced bloom filter contains the key.. \n " +
-		          "_FUNC_(string key, string bloomfilter) "
+		          "_FUNC_(string key, string bloomfilter) \n" +
+		          "_FUNC_(array<string> keys, string bloomfilter) - returns an array<boolean> "
 		)
-public class BloomContainsUDF extends UDF {
+public class BloomContainsUDF extends GenericUDF {
+	private StringObjectInspector keyInspector;
+	private ListObjectInspector keyListInspector;
+	private StringObjectInspector bloomInspector;
+	private final BloomKeys keys = new BloomKeys();
+
+	private String constantBloomStr;
+	private String lastBloomStr;
+	private Text lastBloomText;
+	private BloomMembership lastBloom;
+	private List<Boolean> containsList = new ArrayList<Boolean>();
+
+
+	private BloomMembership getBloom( Object bloomObj) throws HiveException {
+		if( constantBloomStr != null) {
+			if( lastBloom == null) {
+				lastBloom = parseBloom( constantBloomStr);
+			}
+			return lastBloom;
+		}
+		if( bloomObj == null) {
+			throw new HiveException("Unable to find bloom null");
+		}
+		if( bloomInspector.preferWritable()) {
+			//// Compare the bytes, rather than decoding a possibly large encoded bloom every row
+			Text bloomText = bloomInspector.getPrimitiveWritableObject( bloomObj);
+			if( lastBloom == null || !bloomText.equals( lastBloomText)) {
+				lastBloom = parseBloom( bloomText.toString());
+				lastBloomText = new Text( bloomText);
+			}
+		} else {
+			String bloomStr = bloomInspector.getPrimitiveJavaObject( bloomObj);
+			if( lastBloom == null || !bloomStr.equals( lastBloomStr)) {
+				lastBloom = parseBloom( bloomStr);
+				lastBloomStr = bloomStr;
+			}
+		}
+		return lastBloom;
+	}
+
+	private static BloomMembership parseBloom( String bloomStr) throws HiveException {
+		BloomMembership bloom = BloomFactory.GetBloom( bloomStr);
+		if( bloom == null) {
+			throw new HiveException("Unable to find bloom " + bloomStr);
+		}
+		return bloom;
+	}
 
+	@Override
+	public Object evaluate(DeferredObject[] arg0) throws HiveException {
+		Object keyObj = arg0[0].get();
+		if( keyObj == null) {
+			return null;
+		}
+		BloomMembership bloom = getBloom( arg0[1].get());
+		if( keyListInspector == null) {
+			return bloom.membershipTest( keys.keyFor( keyInspector, keyObj));
+		}
+		containsList.clear();
+		int len = keyListInspector.getListLength( keyObj);
+		for(int i=0; i<len; ++i) {
+			Key key = keys.keyFor( keyInspector, keyListInspector.getListElement( keyObj, i));
+			containsList.add( key == null ? null : bloom.membershipTest( key));
+		}
+		return containsList;
+	}
 
-	public Boolean evaluate( String key, String bloomFilter) throws HiveException {
-		Filter bloom = BloomFactory.GetBloomFilter(bloomFilter);
-		if( bloom != null) {
-			return bloom.membershipTest( new Key(key.getBytes()));
+	@Override
+	public String getDisplayString(String[] arg0) {
+		return "bloom_contains( " + arg0[0] + " , " + arg0[1] + " )";
+	}
+
+	@Override
+	public ObjectInspector initialize(ObjectInspector[] arg0)
+			throws UDFArgumentException {
+		if( arg0.length != 2) {
+			throw new UDFArgumentException("bloom_contains takes a string or array of strings, and a bloom");
+		}
+		ObjectInspector keyOI = arg0[0];
+		if( keyOI.getCategory() == Category.LIST) {
+			keyListInspector = (ListObjectInspector) keyOI;
+			keyOI = keyListInspector.getListElementObjectInspector();
+		}
+		if( !IsStringInspector( keyOI) || !IsStringInspector( arg0[1])) {
+			throw new UDFArgumentException("bloom_contains takes a string or array of strings, and a bloom");
+		}
+		keyInspector = (StringObjectInspector) keyOI;
+		bloomInspector = (StringObjectInspector) arg0[1];
+		if( arg0[1] instanceof ConstantObjectInspector) {
+			Object constantVal = ((ConstantObjectInspector) arg0[1]).getWritableConstantValue();
+			if( constantVal != null) {
+				constantBloomStr = constantVal.toString();
+			}
+		}
+
+		if( keyListInspector != null) {
+			return ObjectInspectorFactory.getStandardListObjectInspector(
+					PrimitiveObjectInspectorFactory.javaBooleanObjectInspector);
 		} else {
-			throw new HiveException("Unable to find bloom " + bloomFilter);
+			return PrimitiveObjectInspectorFactory.javaBooleanObjectInspector;
 		}
 	}
 
+	private static boolean IsStringInspector( ObjectInspector oi) {
+		return oi.getCategory() == Category.PRIMITIVE
+				&& ((PrimitiveObjectInspector) oi).getPrimitiveCategory() == PrimitiveCategory.STRING;
+	}
+
 }
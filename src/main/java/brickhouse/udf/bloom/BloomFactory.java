@@ -17,30 +17,37 @@ package brickhouse.udf.bloom;
  **/
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.commons.codec.binary.Base64InputStream;
 import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.Key;
 import org.apache.hadoop.util.hash.Hash;
 import org.apache.log4j.Logger;
 
 /**
  *  Utility class for construction and serialization of BloomFilters ...
  *  
+ *  Blooms are brickhouse.udf.bloom.BloomFilter, which keeps its bits in 
+ *   longs, but serializes the same as the hadoop util BloomFilter.
  *
  */
 public class BloomFactory {
 	private static final Logger LOG = Logger.getLogger( BloomFactory.class);
-	private static Map<String,Filter> localBloomMap = new HashMap<String,Filter>();
+	private static final NamedBloomRegistry namedBlooms = new NamedBloomRegistry();
 
 	public static final int DEFAULT_NUM_ELEMENTS = 10000000;
 	public static final double DEFAULT_FALSE_POS_PROB = 0.005;
@@ -74,15 +81,34 @@ public class BloomFactory {
 	 *   First, the local map is checked for a bloom loaded from 
 	 *   the distributed cache. Next the bloom is attempted to be 
 	 *    parsed from UUencoded format.
+	 *
+	 *   Named blooms are copied onto the heap, so to only test 
+	 *    membership, use GetBloom instead.
 	 * @param name
 	 * @return
 	 */
 	public static Filter GetBloomFilter( String str) {
-		Filter bloom = GetNamedBloomFilter( str);
+		return AsFilter( GetBloom( str), str);
+	}
+
+	/**
+	 *   Get a bloom to test membership against, from either a named bloom,
+	 *    ( which isn't copied ), or a UUencoded string, as for GetBloomFilter.
+	 */
+	public static BloomMembership GetBloom( String str) {
+		BloomMembership bloom = GetNamedBloom( str);
+		if( bloom == null && IsLocalFile( str)) {
+			//// Named bloom may have been evicted since it was distributed
+			try {
+				return namedBlooms.load( str);
+			} catch (IOException e) {
+				LOG.error(" Unable to load bloom " + str, e);
+				return null;
+			}
+		}
 		if( bloom == null) {
 			try {
-				bloom = ReadBloomFromString( str);
-				return bloom;
+				return AsMembership( ReadBloomFromString( str));
 			} catch (IOException e) {
 				LOG.error(" Unable to get bloom for string " + str);
 				return null;
@@ -92,15 +118,198 @@ public class BloomFactory {
 		}
 	}
 	
+	/**
+	 *   Get a bloom which can be modified, ( by and, or or not ),
+	 *   without changing a named bloom which other calls share.
+	 */
+	public static Filter GetMutableBloomFilter( String str) throws IOException {
+		BloomMembership bloom = GetNamedBloom( str);
+		if( bloom == null) {
+			return ReadBloomFromString( str);
+		}
+		return bloom.copyToFilter();
+	}
+
+	/**
+	 *  Get a named bloom as a Filter. Memory mapped blooms are copied
+	 *   onto the heap, so to only test membership, use GetNamedBloom instead.
+	 */
 	public static Filter GetNamedBloomFilter( String name) {
-		return localBloomMap.get( name);
+		return AsFilter( GetNamedBloom( name), name);
+	}
+
+	private static Filter AsFilter( BloomMembership bloom, String name) {
+		if( bloom == null) {
+			return null;
+		}
+		if( bloom instanceof FilterMembership) {
+			return ((FilterMembership) bloom).filter;
+		}
+		try {
+			return bloom.copyToFilter();
+		} catch (IOException e) {
+			LOG.error(" Unable to copy bloom " + name, e);
+			return null;
+		}
+	}
+
+	public static BloomMembership GetNamedBloom( String name) {
+		return namedBlooms.get( name);
 	}
 	
 	public static void PutNamedBloomFilter( String name, Filter bloom) {
-		localBloomMap.put( name,bloom);
+		namedBlooms.put( name,bloom);
+	}
+
+	/**
+	 *  Get a named bloom from a local file, ( or directory ), loading it
+	 *   if it hasn't been loaded, or has been modified. The bloom won't be
+	 *   evicted until the entry is given back to ReleaseNamedBloom, 
+	 *   even if the file is modified and loaded again.
+	 */
+	public static NamedBloomRegistry.Entry AcquireNamedBloom( String name) throws IOException {
+		return namedBlooms.acquire( name);
+	}
+
+	public static void ReleaseNamedBloom( NamedBloomRegistry.Entry entry) {
+		namedBlooms.release( entry);
+	}
+
+	/**
+	 *  Limit the number of named blooms, and the total bytes
+	 *   which they can take, before least recently used blooms are evicted.
+	 *  The limits apply to the whole JVM, since the named blooms are static.
+	 */
+	public static void SetNamedBloomLimits( int maxBlooms, long maxBytes) {
+		namedBlooms.setLimits( maxBlooms, maxBytes);
+	}
+
+	/**
+	 *  The named bloom registry, for hit, miss, load and byte counts.
+	 */
+	public static NamedBloomRegistry GetNamedBloomRegistry() {
+		return namedBlooms;
+	}
+
+	/**
+	 *  A bloom on the heap, which can only be queried.
+	 */
+	static BloomMembership AsMembership( Filter bloom) {
+		return new FilterMembership( bloom);
+	}
+
+	static class FilterMembership implements BloomMembership {
+		final Filter filter;
+
+		FilterMembership( Filter filter) {
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean membershipTest( Key key) {
+			return filter.membershipTest( key);
+		}
+
+		@Override
+		public Filter copyToFilter() throws IOException {
+			byte[] bytes = WriteBloomToBytes( filter);
+			return ReadBloomFromBytes( bytes, 0, bytes.length);
+		}
+
+		@Override
+		public int getVectorSize() {
+			if( filter instanceof BloomFilter) {
+				return ((BloomFilter) filter).getVectorSize();
+			}
+			return 0;
+		}
+	}
+
+	private static boolean IsLocalFile( String str) {
+		//// Don't check the filesystem for inline encoded blooms
+		return str != null && str.length() < 4096 && new File( str).exists();
+	}
+
+	/**
+	 *  Load a bloom from a file, or from the first non-CRC file in a directory.
+	 */
+	static BloomMembership LoadNamedBloomFile( File mapFile) throws IOException {
+		if(!mapFile.exists()) {
+			throw new FileNotFoundException(mapFile + " not found.");
+		}
+		if( mapFile.isDirectory() ) {
+			String[] subFiles = mapFile.list();
+			for( String subFile : subFiles) {
+				if( subFile.endsWith("crc")) {
+					LOG.info(" Ignoring CRC file " + subFile);
+					continue;
+				} else {
+					return LoadBloomFile( new File( mapFile, subFile));
+				}
+			}
+			throw new FileNotFoundException(mapFile + " not found.");
+		} else {
+			return LoadBloomFile( mapFile);
+		}
 	}
 	
 	
+	/**
+	 *  Load a bloom from a local file, ( for example from distributed cache ),
+	 *   by memory mapping it, rather than reading it onto the heap.
+	 *
+	 *  Raw binary bloom files are mapped directly. Base64 files, as written
+	 *   by the bloom UDAF, are first decoded, a block at a time, into a new
+	 *   temp file, in the task's working directory if it can be written to.
+	 *   The temp file is deleted as soon as it is mapped, ( the mapping stays valid ),
+	 *   so nothing is left behind, and a decoded file is never reused. 
+	 *   To skip the decoding, write the bloom with WriteRawBloomFile.
+	 */
+	public static BloomMembership LoadBloomFile( File file) throws IOException {
+		if( file.length() == 0) {
+			return AsMembership( NewBloomInstance());
+		}
+		if( MappedBloomFilter.IsRawBloomFile( file)) {
+			return MappedBloomFilter.MapBloomFile( file);
+		}
+		File workDir = new File( System.getProperty("user.dir"));
+		File rawFile = File.createTempFile( "brickhouse-bloom-", ".raw", workDir.canWrite() ? workDir : null);
+		rawFile.deleteOnExit();
+		LOG.info(" Decoding bloom " + file + " into raw file " + rawFile);
+		try {
+			InputStream decoded = new Base64InputStream( new BufferedInputStream( new FileInputStream( file)));
+			OutputStream out = new BufferedOutputStream( new FileOutputStream( rawFile));
+			try {
+				byte[] buffer = new byte[64*1024];
+				int len;
+				while(( len = decoded.read( buffer)) > 0) {
+					out.write( buffer, 0, len);
+				}
+			} finally {
+				decoded.close();
+				out.close();
+			}
+			return MappedBloomFilter.MapBloomFile( rawFile);
+		} finally {
+			if(!rawFile.delete()) {
+				LOG.warn(" Unable to delete decoded bloom " + rawFile + " until exit");
+			}
+		}
+	}
+
+	/**
+	 *  Write a bloom as a raw binary file, which can be memory mapped 
+	 *   by distributed_bloom without any decoding.
+	 */
+	public static void WriteRawBloomFile( Filter bloom, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file)));
+		try {
+			bloom.write( out);
+		} finally {
+			out.close();
+		}
+	}
+
 	public static Filter ReadBloomFromStream( InputStream stream) throws IOException {
 		/// Need to UUDecode first, 
 		/// TODO - read bytes directly when hive handles byte arrays better
@@ -123,22 +332,33 @@ public class BloomFactory {
 	
 	public static Filter ReadBloomFromString( String str) throws IOException {
 		if( str != null ) {
-			Filter filter = NewVesselBloom();
 			byte[] decoded = Base64.decodeBase64( str.getBytes());
-			DataInputStream dataInput = new DataInputStream( new ByteArrayInputStream(decoded));
-		
-			filter.readFields(dataInput);
-			return filter;
+			return ReadBloomFromBytes( decoded, 0, decoded.length);
 		} else {
 			return NewBloomInstance();
 		}
 	}
 
+	/**
+	 *  Read a bloom from its binary serialized form, 
+	 *   as passed between partial aggregations.
+	 */
+	public static Filter ReadBloomFromBytes( byte[] bytes, int offset, int length) throws IOException {
+		Filter filter = NewVesselBloom();
+		DataInputStream dataInput = new DataInputStream( new ByteArrayInputStream( bytes, offset, length));
+		filter.readFields(dataInput);
+		return filter;
+	}
+
+	public static byte[] WriteBloomToBytes( Filter bloom) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		bloom.write( new DataOutputStream(buffer));
+		return buffer.toByteArray();
+	}
+
 	public static String WriteBloomToString( Filter bloom) throws IOException {
 		if( bloom != null ) {
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			bloom.write( new DataOutputStream(buffer));
-			byte[] encodedBloom = Base64.encodeBase64( buffer.toByteArray());
+			byte[] encodedBloom = Base64.encodeBase64( WriteBloomToBytes( bloom));
 			return new String(encodedBloom);
 		} else {
 			return null;
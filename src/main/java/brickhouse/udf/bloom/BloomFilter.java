@@ -53,11 +53,12 @@ package brickhouse.udf.bloom;
    import java.io.DataOutput;
     import java.io.IOException;
     
-import java.util.BitSet;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 
 import org.apache.hadoop.util.bloom.Filter;
 import org.apache.hadoop.util.bloom.Key;
-import org.apache.log4j.Logger;
     
     ///import org.apache.hadoop.classification.InterfaceAudience;
     ///import org.apache.hadoop.classification.InterfaceStability;
@@ -81,24 +82,18 @@ import org.apache.log4j.Logger;
     * @see Filter The general behavior of a filter
     * 
     * @see <a href="http://portal.acm.org/citation.cfm?id=362692&dl=ACM&coll=portal">Space/Time Trade-Offs in Hash Coding with Allowable Errors</a>
-    */
-   ///@InterfaceAudience.Public
-   ///@InterfaceStability.Stable
+   *
+   * <p>
+   * This version keeps the bit vector in a long array, so that and, or, xor and not 
+   * work a word at a time, and the vector can be serialized in bulk. The serialized
+   * form is the same as org.apache.hadoop.util.bloom.BloomFilter.
+   */
    public class BloomFilter extends Filter {
-	   private static final Logger LOG = Logger.getLogger(BloomFilter.class);
-     private static final byte[] bitvalues = new byte[] {
-       (byte)0x01,
-       (byte)0x02,
-       (byte)0x04,
-       (byte)0x08,
-       (byte)0x10,
-       (byte)0x20,
-       (byte)0x40,
-       (byte)0x80
-     };
-     
+     private static final int WORD_SHIFT = 6;
+     private static final int WORD_MASK = 63;
+
      /** The bit vector. */
-     BitSet bits;
+     long[] bits;
    
      /** Default constructor - use with readFields */
      public BloomFilter() {
@@ -115,7 +110,7 @@ import org.apache.log4j.Logger;
      public BloomFilter(int vectorSize, int nbHash, int hashType) {
        super(vectorSize, nbHash, hashType);
    
-       bits = new BitSet(this.vectorSize);
+       bits = new long[ numWords(vectorSize)];
      }
    
      @Override
@@ -128,21 +123,8 @@ import org.apache.log4j.Logger;
        hash.clear();
    
        for(int i = 0; i < nbHash; i++) {
-         bits.set(h[i]);
-       }
-     }
-   
-     @Override
-     public void and(Filter filter) {
-    	 BloomFilter bfilter = (BloomFilter) filter;
-       if(filter == null
-           || !(filter instanceof BloomFilter)
-           || bfilter.vectorSize != this.vectorSize
-           || bfilter.nbHash != super.nbHash) {
-         throw new IllegalArgumentException("filters cannot be and-ed");
+         bits[h[i] >>> WORD_SHIFT] |= 1L << (h[i] & WORD_MASK);
        }
-   
-       this.bits.and(((BloomFilter) filter).bits);
      }
    
      @Override
@@ -154,7 +136,7 @@ import org.apache.log4j.Logger;
        int[] h = hash.hash(key);
        hash.clear();
        for(int i = 0; i < nbHash; i++) {
-         if(!bits.get(h[i])) {
+         if((bits[h[i] >>> WORD_SHIFT] & (1L << (h[i] & WORD_MASK))) == 0) {
            return false;
          }
        }
@@ -162,37 +144,98 @@ import org.apache.log4j.Logger;
      }
    
      @Override
-     public void not() {
-       bits.flip(0, vectorSize - 1);
+     public void and(Filter filter) {
+       long[] other = compatibleBits(filter, "and-ed");
+       for(int i = 0; i < bits.length; i++) {
+         bits[i] &= other[i];
+       }
      }
    
      @Override
      public void or(Filter filter) {
-    	 BloomFilter bfilter = (BloomFilter) filter;
-       if(filter == null
-           || !(filter instanceof BloomFilter)
-           || bfilter.vectorSize != this.vectorSize
-           || bfilter.nbHash != this.nbHash) {
-         throw new IllegalArgumentException("filters cannot be or-ed");
+       long[] other = compatibleBits(filter, "or-ed");
+       for(int i = 0; i < bits.length; i++) {
+         bits[i] |= other[i];
        }
-       bits.or(((BloomFilter) filter).bits);
      }
    
      @Override
      public void xor(Filter filter) {
-    	 BloomFilter bfilter = (BloomFilter) filter;
-       if(filter == null
-           || !(filter instanceof BloomFilter)
-           || bfilter.vectorSize != this.vectorSize
+       long[] other = compatibleBits(filter, "xor-ed");
+       for(int i = 0; i < bits.length; i++) {
+         bits[i] ^= other[i];
+       }
+     }
+   
+     /**
+      *  Flip every bit in the vector. Bits past the end of 
+      *   the vector in the last word are left clear.
+      */
+     @Override
+     public void not() {
+       for(int i = 0; i < bits.length; i++) {
+         bits[i] = ~bits[i];
+       }
+       clearTail();
+     }
+   
+     private long[] compatibleBits(Filter filter, String op) {
+       if(filter == null || !(filter instanceof BloomFilter)) {
+         throw new IllegalArgumentException("filters cannot be " + op);
+       }
+       BloomFilter bfilter = (BloomFilter) filter;
+       if(bfilter.vectorSize != this.vectorSize
            || bfilter.nbHash != this.nbHash) {
-         throw new IllegalArgumentException("filters cannot be xor-ed");
+         throw new IllegalArgumentException("filters cannot be " + op);
+       }
+       return bfilter.bits;
+     }
+   
+     private void clearTail() {
+       int tailBits = vectorSize & WORD_MASK;
+       if(tailBits != 0) {
+         bits[bits.length - 1] &= (1L << tailBits) - 1;
+       }
+     }
+   
+     /**
+      * @return the number of bits which are set
+      */
+     public long cardinality() {
+       long count = 0;
+       for(int i = 0; i < bits.length; i++) {
+         count += Long.bitCount(bits[i]);
        }
-       bits.xor(((BloomFilter) filter).bits);
+       return count;
+     }
+   
+     /**
+      * @return the fraction of bits which are set
+      */
+     public double getFillRatio() {
+       return vectorSize == 0 ? 0.0 : (double)cardinality() / vectorSize;
+     }
+   
+     /**
+      * @return the probability that a key which was never added 
+      *   passes the membership test, given the current fill ratio
+      */
+     public double getEstimatedFalsePositiveProbability() {
+       return Math.pow(getFillRatio(), nbHash);
      }
    
      @Override
      public String toString() {
-       return bits.toString();
+       StringBuilder sb = new StringBuilder("{");
+       for(int i = 0; i < vectorSize; i++) {
+         if((bits[i >>> WORD_SHIFT] & (1L << (i & WORD_MASK))) != 0) {
+           if(sb.length() > 1) {
+             sb.append(", ");
+           }
+           sb.append(i);
+         }
+       }
+       return sb.append("}").toString();
      }
    
      /**
@@ -207,48 +250,65 @@ import org.apache.log4j.Logger;
      @Override
      public void write(DataOutput out) throws IOException {
        super.write(out);
-       int byteSize = getNBytes();
-       LOG.info(" Number of bytes = " + getNBytes() + " vector size = " + super.vectorSize );
-       if( getNBytes() < 0 ) {
-    	   LOG.error(" Byte array size is less than zero !!!");
-          byteSize  = byteSize*-1;
-       }
-       ///byte[] bytes = new byte[getNBytes()];
-       byte[] bytes = new byte[byteSize];
-       for(int i = 0, byteIndex = 0, bitIndex = 0; i < vectorSize; i++, bitIndex++) {
-         if (bitIndex == 8) {
-           bitIndex = 0;
-           byteIndex++;
-         }
-         if (bitIndex == 0) {
-           bytes[byteIndex] = 0;
-         }
-         if (bits.get(i)) {
-           bytes[byteIndex] |= bitvalues[bitIndex];
-         }
-       }
-       out.write(bytes);
+       out.write(toBitBytes());
      }
    
      @Override
      public void readFields(DataInput in) throws IOException {
        super.readFields(in);
-       bits = new BitSet(this.vectorSize);
        byte[] bytes = new byte[getNBytes()];
        in.readFully(bytes);
-       for(int i = 0, byteIndex = 0, bitIndex = 0; i < vectorSize; i++, bitIndex++) {
-         if (bitIndex == 8) {
-           bitIndex = 0;
-           byteIndex++;
-         }
-         if ((bytes[byteIndex] & bitvalues[bitIndex]) != 0) {
-           bits.set(i);
-         }
+       readBitBytes(bytes, 0);
+     }
+   
+     /**
+      *  The bit vector as bytes, with bit i in byte i/8 at position i%8, 
+      *   which is the same as little endian longs.
+      */
+     byte[] toBitBytes() {
+       int nBytes = getNBytes();
+       ByteBuffer buffer = ByteBuffer.allocate(bits.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+       buffer.asLongBuffer().put(bits);
+       byte[] bytes = buffer.array();
+       if(bytes.length == nBytes) {
+         return bytes;
+       }
+       byte[] trimmed = new byte[nBytes];
+       System.arraycopy(bytes, 0, trimmed, 0, nBytes);
+       return trimmed;
+     }
+   
+     /**
+      *  Read the bit vector from bytes written by toBitBytes, 
+      *   after the header has been read.
+      */
+     void readBitBytes(byte[] bytes, int offset) {
+       readBitBytes(ByteBuffer.wrap(bytes, offset, bytes.length - offset));
+     }
+   
+     /**
+      *  Read the bit vector from the buffer's current position, 
+      *   which is left unchanged.
+      */
+     void readBitBytes(ByteBuffer buffer) {
+       int nBytes = getNBytes();
+       int pos = buffer.position();
+       bits = new long[ numWords(vectorSize)];
+       int fullWords = nBytes >>> 3;
+       LongBuffer longs = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+       longs.get(bits, 0, fullWords);
+       for(int i = fullWords * 8; i < nBytes; i++) {
+         bits[fullWords] |= (buffer.get(pos + i) & 0xFFL) << ((i & 7) * 8);
        }
+       clearTail();
      }
      
      /* @return number of bytes needed to hold bit vector */
      private int getNBytes() {
-       return (vectorSize + 7) / 8;
+       return (int)(((long)vectorSize + 7) / 8);
+     }
+   
+     private static int numWords(int vectorSize) {
+       return (int)(((long)vectorSize + WORD_MASK) >>> WORD_SHIFT);
      }
    }//end class
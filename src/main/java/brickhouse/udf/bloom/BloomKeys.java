@@ -0,0 +1,85 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.bloom.Key;
+
+/**
+ *  Reusable bloom Key for strings passed in from Hive.
+ *  
+ *  A Key hashes its whole array, so the UTF-8 bytes of a Text
+ *   are used directly when the backing array is exactly sized, 
+ *   and otherwise copied into a scratch array kept for each short length,
+ *   rather than allocating new arrays for every row.
+ *  
+ *  Not thread safe; each UDF instance keeps its own.
+ */
+class BloomKeys {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_SCRATCH_LENGTH = 256;
+
+	private final Key key = new Key();
+	private byte[][] scratchByLength;
+
+	/**
+	 *  The key for a string object, or null if the string is null.
+	 *  The key is reused by the next call.
+	 */
+	Key keyFor( StringObjectInspector strOI, Object strObj) {
+		if( strObj == null) {
+			return null;
+		}
+		if( strOI.preferWritable()) {
+			Text text = strOI.getPrimitiveWritableObject( strObj);
+			if( text == null) {
+				return null;
+			}
+			key.set( keyBytes( text.getBytes(), text.getLength()), 1.0);
+		} else {
+			String str = strOI.getPrimitiveJavaObject( strObj);
+			if( str == null) {
+				return null;
+			}
+			key.set( str.getBytes( UTF8), 1.0);
+		}
+		return key;
+	}
+
+	private byte[] keyBytes( byte[] bytes, int length) {
+		if( bytes.length == length) {
+			return bytes;
+		}
+		if( length >= MAX_SCRATCH_LENGTH) {
+			return Arrays.copyOf( bytes, length);
+		}
+		if( scratchByLength == null) {
+			scratchByLength = new byte[ MAX_SCRATCH_LENGTH][];
+		}
+		byte[] scratch = scratchByLength[ length];
+		if( scratch == null) {
+			scratch = new byte[ length];
+			scratchByLength[ length] = scratch;
+		}
+		System.arraycopy( bytes, 0, scratch, 0, length);
+		return scratch;
+	}
+}
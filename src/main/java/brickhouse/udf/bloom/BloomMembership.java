@@ -0,0 +1,42 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.io.IOException;
+
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.Key;
+
+/**
+ *  A bloom which can be queried, but not modified,
+ *   such as a named bloom shared by all the tasks in the JVM,
+ *   or a memory mapped bloom.
+ */
+public interface BloomMembership {
+
+	boolean membershipTest( Key key);
+
+	/**
+	 *  A copy of the bloom on the heap, which can be modified.
+	 */
+	Filter copyToFilter() throws IOException;
+
+	/**
+	 *  The size of the bit vector, in bits.
+	 */
+	int getVectorSize();
+}
@@ -31,7 +31,7 @@ import org.apache.hadoop.util.bloom.Filter;
 public class BloomNotUDF extends UDF {
 
 	public String evaluate( String bloomStr ) throws IOException {
-		Filter bloom = BloomFactory.GetBloomFilter( bloomStr);
+		Filter bloom = BloomFactory.GetMutableBloomFilter( bloomStr);
 		
 		/// Perform a logical not 
 		bloom.not();
@@ -20,128 +20,245 @@ package brickhouse.udf.bloom;
 import java.io.IOException;
 
 import org.apache.hadoop.hive.ql.exec.Description;
-import org.apache.hadoop.hive.ql.exec.UDAF;
-import org.apache.hadoop.hive.ql.exec.UDAFEvaluator;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.util.bloom.Filter;
-import org.apache.hadoop.util.bloom.Key;
 import org.apache.log4j.Logger;
 
 
 /**
  *   Construct a BloomFilter by aggregating on keys
- *   
+ *
  *   Uses hadoop util BloomFilter class
  *  Use with bloom_contains( key, bloomfile );
- *  
+ *
  *  insert overwrite local directory bloomfile
  *  select bloom( ks_uid )
  *   from big_table
  *    where premise = true;
- *    
- *   add file bloomfile; 
- *   
- *  select ks_uid 
+ *
+ *   add file bloomfile;
+ *
+ *  select ks_uid
  *  from other_big_table
  *  where bloom_contains( key, distributed_bloom('bloomfile') );
- *    
- *   
+ *
+ *  The expected number of elements, and the false positive probability
+ *   can be passed as constants, so that small groups don't need to
+ *   allocate a bloom sized for 10 million elements. Blooms which are
+ *   going to be combined with bloom_and or bloom_or need to be
+ *   created with the same size.
+ *
+ *  Partial aggregations are passed as the binary serialized bloom,
+ *   and the final result is the Base64 encoded bloom.
+ *
  * @author jeromebanks
  *
  */
 @Description(
 		 name = "bloom",
 		 value =  " Constructs a BloomFilter by aggregating a set of keys \n " +
-		          "_FUNC_(string key) \n" 
+		          "_FUNC_(string key) \n" +
+		          "_FUNC_(string key, int expectedElements) \n" +
+		          "_FUNC_(string key, int expectedElements, double falsePositiveProbability) \n" +
+		          "Default is " + BloomFactory.DEFAULT_NUM_ELEMENTS + " elements, with a false positive probability of "
+		          + BloomFactory.DEFAULT_FALSE_POS_PROB
 		)
-public class BloomUDAF extends UDAF {
+public class BloomUDAF extends AbstractGenericUDAFResolver {
 	private static final Logger LOG = Logger.getLogger( BloomUDAF.class);
-	//// Convert to GenericUDAF .. non-generic is broken ..
-	
 
-	public static class BloomUDAFEvaluator implements UDAFEvaluator {
-		private Filter bloomFilter;
+	@Override
+	public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+			throws SemanticException {
+		if( parameters.length < 1 || parameters.length > 3) {
+			throw new UDFArgumentTypeException(parameters.length - 1,
+					"bloom takes a string key, and optional number of elements and false positive probability");
+		}
+		if( parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE
+				|| ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory() != PrimitiveCategory.STRING) {
+			throw new UDFArgumentTypeException(0, "bloom key must be a string, not " + parameters[0].getTypeName());
+		}
+		for(int i=1; i<parameters.length; ++i) {
+			if( parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+				throw new UDFArgumentTypeException(i, "bloom size parameters must be numeric, not " + parameters[i].getTypeName());
+			}
+			switch( ((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory()) {
+			case BYTE:
+			case SHORT:
+			case INT:
+			case LONG:
+				break;
+			case FLOAT:
+			case DOUBLE:
+			case DECIMAL:
+				//// Only the probability can be fractional
+				if( i != 2) {
+					throw new UDFArgumentTypeException(i, "bloom size parameters must be integers, not " + parameters[i].getTypeName());
+				}
+				break;
+			default:
+				throw new UDFArgumentTypeException(i, "bloom size parameters must be numeric, not " + parameters[i].getTypeName());
+			}
+		}
+		return new BloomUDAFEvaluator();
+	}
 
-		/*
-		 */
-		public void init() {
-			bloomFilter =  BloomFactory.NewBloomInstance();
-			/**
-			try {
-				///LOG.info("INIT BLOOM " + BloomFactory.WriteBloomToString(bloomFilter));
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+
+	public static class BloomUDAFEvaluator extends GenericUDAFEvaluator {
+		// For PARTIAL1 and COMPLETE: ObjectInspector for the keys
+		private StringObjectInspector inputStrOI;
+		// For PARTIAL2 and FINAL: ObjectInspector for the binary bloom
+		private BinaryObjectInspector partialBinaryOI;
+
+		private int numElements = BloomFactory.DEFAULT_NUM_ELEMENTS;
+		private double falsePositiveProb = BloomFactory.DEFAULT_FALSE_POS_PROB;
+
+		private final BloomKeys keys = new BloomKeys();
+
+
+		static class BloomBuffer implements AggregationBuffer {
+			Filter bloom;
+		}
+
+
+		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+				throws HiveException {
+			super.init(m, parameters);
+			if( m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+				this.inputStrOI = (StringObjectInspector) parameters[0];
+				if( parameters.length > 1) {
+					numElements = (int) GetConstantLong( parameters[1], "number of elements");
+					if( numElements <= 0) {
+						throw new HiveException("bloom number of elements must be positive");
+					}
+				}
+				if( parameters.length > 2) {
+					falsePositiveProb = GetConstantDouble( parameters[2], "false positive probability");
+					if( falsePositiveProb <= 0.0 || falsePositiveProb >= 1.0) {
+						throw new HiveException("bloom false positive probability must be between 0 and 1");
+					}
+				}
+			} else {
+				//// merge() gets called ... binary bloom is passed in
+				this.partialBinaryOI = (BinaryObjectInspector) parameters[0];
+			}
+
+			if( m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+				return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
+			} else {
+				/// Final result is encoded, for bloom_contains and distributed_bloom
+				return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
 			}
-			**/
 		}
 
-		
-		public boolean iterate( String key) {
-			if( key != null) {
-			  if( bloomFilter == null) {
-				  init();
-			  }
-			  bloomFilter.add( new Key(key.getBytes()));
-			  
-			  /**
-			  try {
-				///LOG.info( "BloomFilter is " + BloomFactory.WriteBloomToString(bloomFilter ) + " after adding Key " +key);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		private static long GetConstantLong( ObjectInspector oi, String name) throws HiveException {
+			if(!( oi instanceof ConstantObjectInspector)) {
+				throw new HiveException("bloom " + name + " must be a constant");
 			}
-			**/
-			  
+			Object val = ((ConstantObjectInspector) oi).getWritableConstantValue();
+			return PrimitiveObjectInspectorUtils.getLong( val, (PrimitiveObjectInspector) oi);
+		}
+
+		private static double GetConstantDouble( ObjectInspector oi, String name) throws HiveException {
+			if(!( oi instanceof ConstantObjectInspector)) {
+				throw new HiveException("bloom " + name + " must be a constant");
 			}
-			return true;
+			Object val = ((ConstantObjectInspector) oi).getWritableConstantValue();
+			return PrimitiveObjectInspectorUtils.getDouble( val, (PrimitiveObjectInspector) oi);
 		}
-		
-		public String terminatePartial() throws HiveException {
-			/**
-			try {
-				///LOG.info(" Terminate Partial " + BloomFactory.WriteBloomToString(bloomFilter) );
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+
+		@Override
+		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+			BloomBuffer buff = new BloomBuffer();
+			reset( buff);
+			return buff;
+		}
+
+		@Override
+		public void reset(AggregationBuffer agg) throws HiveException {
+			//// Don't allocate the bloom until we actually see a key
+			((BloomBuffer) agg).bloom = null;
+		}
+
+		@Override
+		public void iterate(AggregationBuffer agg, Object[] parameters)
+				throws HiveException {
+			Object strObj = parameters[0];
+			if( strObj == null) {
+				return;
 			}
-			**/
-			return terminate();
+			BloomBuffer myagg = (BloomBuffer) agg;
+			if( myagg.bloom == null) {
+				myagg.bloom = BloomFactory.NewBloomInstance( numElements, falsePositiveProb);
+			}
+			/// Adds the Text bytes directly, rather than decoding a String
+			myagg.bloom.add( keys.keyFor( inputStrOI, strObj));
 		}
 
-		public String terminate() throws HiveException {
+		@Override
+		public void merge(AggregationBuffer agg, Object partial)
+				throws HiveException {
+			if( partial == null) {
+				return;
+			}
+			BloomBuffer myagg = (BloomBuffer) agg;
+			BytesWritable partialBytes = partialBinaryOI.getPrimitiveWritableObject( partial);
 			try {
-				if( bloomFilter != null) {
-					return BloomFactory.WriteBloomToString(bloomFilter);
-				} else { 
-					return null;
+				Filter other = BloomFactory.ReadBloomFromBytes( partialBytes.getBytes(), 0, partialBytes.getLength());
+				if( myagg.bloom == null) {
+					myagg.bloom = other;
+				} else {
+					myagg.bloom.or( other);
 				}
+			} catch(IOException ioExc) {
+				LOG.error(" Error while reading partial bloom ", ioExc);
+				throw new HiveException( ioExc);
+			} catch(IllegalArgumentException illArg) {
+				throw new HiveException( "Unable to merge blooms of different sizes ; " + illArg.getMessage());
+			}
+		}
+
+		@Override
+		public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+			BloomBuffer myagg = (BloomBuffer) agg;
+			if( myagg.bloom == null) {
+				return null;
+			}
+			try {
+				return BloomFactory.WriteBloomToBytes( myagg.bloom);
 			} catch (IOException e) {
 				LOG.error(" Error while evaluating Bloom ", e);
 				throw new HiveException( "Error while evaluating Bloom");
 			}
 		}
-		
-		public boolean merge( String partial) {
+
+		@Override
+		public Object terminate(AggregationBuffer agg) throws HiveException {
+			BloomBuffer myagg = (BloomBuffer) agg;
+			if( myagg.bloom == null) {
+				return null;
+			}
 			try {
-				if( bloomFilter == null) {
-					bloomFilter = BloomFactory.ReadBloomFromString(partial);
-					///LOG.info(" read bloom from partial " + BloomFactory.WriteBloomToString(bloomFilter));
-					return true;
-				} else{
-					///LOG.info(" ORng with merged before " + BloomFactory.WriteBloomToString(bloomFilter) );
-					Filter other = BloomFactory.ReadBloomFromString(partial);
-					///LOG.info("ORng with merged other " + BloomFactory.WriteBloomToString(other) );
-					bloomFilter.or(other);
-					///LOG.info(" ORing with merged after " + BloomFactory.WriteBloomToString(bloomFilter) );
-					return true;
-				}
+				return BloomFactory.WriteBloomToString( myagg.bloom);
 			} catch (IOException e) {
 				LOG.error(" Error while evaluating Bloom ", e);
-				return false;
+				throw new HiveException( "Error while evaluating Bloom");
 			}
 		}
-
 	}
 
 }
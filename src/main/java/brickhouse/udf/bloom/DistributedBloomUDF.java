@@ -18,11 +18,12 @@ package brickhouse.udf.bloom;
 
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.UDFType;
@@ -34,7 +35,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.Pr
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.BooleanObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
-import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.log4j.Logger;
 
 /**
@@ -52,6 +53,15 @@ import org.apache.log4j.Logger;
  *    from my_big_table 
  *    where bloom_contains( key, distributed_bloom('mybloom') ) == true;
  *   
+ *  The bloom is memory mapped, and queried in place, rather than loaded onto the heap.
+ *  Files can either be the Base64 text which the bloom UDAF returns, which is decoded 
+ *  into a temp file when it is loaded, or a raw binary bloom written with 
+ *  BloomFactory.WriteRawBloomFile, which is mapped directly.
+ *
+ *  Loaded blooms are kept for the other tasks in the JVM, up to the limits
+ *  set by brickhouse.bloom.cache.max.blooms and brickhouse.bloom.cache.max.bytes.
+ *  These limits are JVM wide, rather than per query.
+ *   
  *
  */
 @Description(
@@ -63,61 +73,48 @@ import org.apache.log4j.Logger;
 @UDFType(deterministic=false)
 public class DistributedBloomUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger(DistributedBloomUDF.class);
+	public static final String MAX_BLOOMS_CONF = "brickhouse.bloom.cache.max.blooms";
+	public static final String MAX_BYTES_CONF = "brickhouse.bloom.cache.max.bytes";
 	private StringObjectInspector fnameInspector;
 	private BooleanObjectInspector boolInspector;
+	/// The blooms this UDF holds a reference to, which later rows keep using
+	private Map<String,NamedBloomRegistry.Entry> acquiredBlooms = new HashMap<String,NamedBloomRegistry.Entry>();
 
 	
 
 	
 	/**
 	 *    BloomFilters need to be single files right now, containing only one 
-	 *     bloom filter
+	 *     bloom filter. The file is memory mapped, rather than read onto the heap.
 	 *    
 	 * @param mapFilename
 	 * @return
 	 * @throws IOException
 	 */
-	static Filter loadBloom(String mapFilename) throws IOException {
-		File mapFile  = new File( mapFilename);
-		if(!mapFile.exists()) {
-			throw new FileNotFoundException(mapFilename + " not found.");
-		}
-
-		if( mapFile.isDirectory() ) {
-			String[] subFiles = mapFile.list();
-			for( String subFile : subFiles) {
-				if( subFile.endsWith("crc")) {
-					LOG.info(" Ignoring CRC file " + mapFilename);
-					continue;
-				} else {
-					FileInputStream inStream = new FileInputStream( mapFilename + "/" + subFile);
-					return BloomFactory.ReadBloomFromStream( inStream);
-				}
-			}
-			throw new FileNotFoundException(mapFilename + " not found.");
-		} else {
-			FileInputStream inStream = new FileInputStream(mapFilename);
-			return BloomFactory.ReadBloomFromStream(inStream);
-		}
+	static BloomMembership loadBloom(String mapFilename) throws IOException {
+		return BloomFactory.LoadNamedBloomFile( new File( mapFilename));
 	}
 	
 	
 	/**
 	 *  Load a BloomFilter to the local in memory cache ...
 	 *  
+	 *  The bloom is shared by all tasks in the JVM, and a reference 
+	 *   is held until the UDF is closed, so it isn't evicted while in use.
+	 *  
 	 * @param mapFilename
 	 * @param returnEncoded
 	 * @return
 	 */
 	public String evaluate( String mapFilename, Boolean returnEncoded) throws HiveException {
 		try {
-			Filter bloom = BloomFactory.GetNamedBloomFilter(mapFilename);
-			if(bloom == null) {
-				bloom = this.loadBloom(mapFilename);
-				BloomFactory.PutNamedBloomFilter( mapFilename, bloom );
+			NamedBloomRegistry.Entry entry = acquiredBlooms.get( mapFilename);
+			if( entry == null) {
+				entry = BloomFactory.AcquireNamedBloom(mapFilename);
+				acquiredBlooms.put( mapFilename, entry);
 			}
 			if( returnEncoded)	 {
-				return BloomFactory.WriteBloomToString(bloom);
+				return BloomFactory.WriteBloomToString( entry.getBloom().copyToFilter());
 			} else {
 				return mapFilename;
 			}
@@ -142,6 +139,34 @@ public class DistributedBloomUDF extends GenericUDF {
 	}
 
 
+	/**
+	 *  Set the limits on the named blooms kept in memory, from 
+	 *   brickhouse.bloom.cache.max.blooms and brickhouse.bloom.cache.max.bytes
+	 *
+	 *  The named blooms are shared by every task in the JVM, and so are
+	 *   the limits. The last task to be configured sets them for all,
+	 *   which is fine when the JVM is only reused by tasks of one job.
+	 */
+	@Override
+	public void configure(MapredContext context) {
+		JobConf conf = context.getJobConf();
+		if( conf != null) {
+			BloomFactory.SetNamedBloomLimits( 
+					conf.getInt( MAX_BLOOMS_CONF, NamedBloomRegistry.DEFAULT_MAX_BLOOMS),
+					conf.getLong( MAX_BYTES_CONF, NamedBloomRegistry.DEFAULT_MAX_BYTES));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for( NamedBloomRegistry.Entry entry : acquiredBlooms.values()) {
+			BloomFactory.ReleaseNamedBloom( entry);
+		}
+		acquiredBlooms.clear();
+		LOG.info( BloomFactory.GetNamedBloomRegistry().toString());
+	}
+
+
 	@Override
 	public String getDisplayString(String[] arg0) {
 		return "distributed_bloom( " + arg0[0] + " ) ";
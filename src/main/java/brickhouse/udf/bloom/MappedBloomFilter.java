@@ -0,0 +1,146 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.hadoop.util.bloom.HashFunction;
+import org.apache.hadoop.util.bloom.Key;
+
+/**
+ *  A read-only bloom, which is queried in place from a
+ *   memory mapped file, rather than being copied onto the heap.
+ *
+ *  The file is the raw binary serialized bloom, ( the same bytes
+ *   as Filter.write ), rather than the Base64 text which the
+ *   bloom UDAF returns.
+ *
+ *  Blooms which need to be modified, ( by bloom_and, bloom_or or bloom_not ),
+ *   can be copied onto the heap with toBloomFilter.
+ */
+public class MappedBloomFilter implements BloomMembership {
+	/// Filter.write writes a version of -1, the number of hashes, the hash type and the vector size
+	static final int RAW_VERSION = -1;
+	static final int HEADER_SIZE = 13;
+
+	private final int vectorSize;
+	private final int nbHash;
+	private final int hashType;
+	private final HashFunction hash;
+	private final ByteBuffer bits;
+	private final int bitsOffset;
+
+	private MappedBloomFilter( int vectorSize, int nbHash, int hashType, ByteBuffer bits, int bitsOffset) {
+		this.vectorSize = vectorSize;
+		this.nbHash = nbHash;
+		this.hashType = hashType;
+		this.hash = new HashFunction( vectorSize, nbHash, hashType);
+		this.bits = bits;
+		this.bitsOffset = bitsOffset;
+	}
+
+	/**
+	 *  Does the file start with a raw serialized bloom header,
+	 *   as opposed to Base64 text ?
+	 */
+	public static boolean IsRawBloomFile( File file) throws IOException {
+		if( file.length() < HEADER_SIZE) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile( file, "r");
+		try {
+			return raf.readInt() == RAW_VERSION;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 *  Map a raw bloom file. The mapping stays valid after the
+	 *   file is closed.
+	 */
+	public static MappedBloomFilter MapBloomFile( File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return FromBuffer( buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 *  Wrap a buffer containing a raw serialized bloom, starting at
+	 *   its current position. The buffer is not copied.
+	 */
+	public static MappedBloomFilter FromBuffer( ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		if( buffer.remaining() < HEADER_SIZE || buffer.getInt( start) != RAW_VERSION) {
+			throw new IOException("Not a raw serialized bloom");
+		}
+		int nbHash = buffer.getInt( start + 4);
+		int hashType = buffer.get( start + 8);
+		int vectorSize = buffer.getInt( start + 9);
+		long nBytes = ((long)vectorSize + 7)/8;
+		if( vectorSize <= 0 || nbHash <= 0 || buffer.remaining() - HEADER_SIZE < nBytes) {
+			throw new IOException("Truncated raw bloom; expected " + nBytes + " bytes for vector size " + vectorSize);
+		}
+		return new MappedBloomFilter( vectorSize, nbHash, hashType, buffer, start + HEADER_SIZE);
+	}
+
+	@Override
+	public boolean membershipTest(Key key) {
+		if(key == null) {
+			throw new NullPointerException("key cannot be null");
+		}
+		int[] h = hash.hash(key);
+		hash.clear();
+		for(int i = 0; i < nbHash; i++) {
+			if(( bits.get( bitsOffset + (h[i] >>> 3)) & (1 << (h[i] & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 *  Copy the bloom onto the heap, so that it can be modified.
+	 */
+	public BloomFilter toBloomFilter() {
+		BloomFilter bloom = new BloomFilter( vectorSize, nbHash, hashType);
+		ByteBuffer dup = bits.duplicate();
+		dup.position( bitsOffset);
+		bloom.readBitBytes( dup);
+		return bloom;
+	}
+
+	@Override
+	public Filter copyToFilter() {
+		return toBloomFilter();
+	}
+
+	@Override
+	public int getVectorSize() {
+		return vectorSize;
+	}
+}
@@ -0,0 +1,310 @@
+package brickhouse.udf.bloom;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.util.bloom.Filter;
+import org.apache.log4j.Logger;
+
+/**
+ *  Named blooms which have been loaded from distributed cache,
+ *   shared by all the tasks running in the same JVM.
+ *
+ *  Lookups don't take a lock, since bloom_contains does one per row.
+ *   Taking a reference, which happens once per task, does.
+ *  Blooms are loaded at most once per file name and modification time,
+ *   and the least recently used blooms are evicted when there are more
+ *   than the maximum number of blooms, or bytes. Blooms which a
+ *   distributed_bloom call still holds a reference to are never evicted.
+ *
+ *  When a file is modified, lookups by name get the new bloom, but
+ *   the old one is kept, and its bytes counted, until it is released.
+ */
+public class NamedBloomRegistry {
+	private static final Logger LOG = Logger.getLogger( NamedBloomRegistry.class);
+	public static final int DEFAULT_MAX_BLOOMS = 16;
+	public static final long DEFAULT_MAX_BYTES = 1024L*1024L*1024L;
+
+	/// Every bloom which is loaded, by name and modification time
+	private final ConcurrentHashMap<EntryKey,Entry> entries = new ConcurrentHashMap<EntryKey,Entry>();
+	/// The latest bloom for each name
+	private final ConcurrentHashMap<String,Entry> latest = new ConcurrentHashMap<String,Entry>();
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private volatile int maxBlooms = DEFAULT_MAX_BLOOMS;
+	private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+
+	static class EntryKey {
+		final String name;
+		final long modTime;
+
+		EntryKey( String name, long modTime) {
+			this.name = name;
+			this.modTime = modTime;
+		}
+
+		@Override
+		public boolean equals( Object other) {
+			if( !(other instanceof EntryKey)) {
+				return false;
+			}
+			EntryKey otherKey = (EntryKey) other;
+			return modTime == otherKey.modTime && name.equals( otherKey.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode()*31 + (int) (modTime ^ (modTime >>> 32));
+		}
+	}
+
+	/**
+	 *  A loaded bloom. Acquiring a bloom returns its entry,
+	 *   which is given back to release that same bloom.
+	 */
+	public static class Entry {
+		final EntryKey key;
+		final BloomMembership bloom;
+		final long numBytes;
+		final AtomicInteger refCount = new AtomicInteger();
+		volatile long lastUsed;
+		/// Replaced by a newer bloom, but still referenced
+		boolean replaced = false;
+
+		Entry( String name, long modTime, BloomMembership bloom) {
+			this.key = new EntryKey( name, modTime);
+			this.bloom = bloom;
+			this.numBytes = bloom.getVectorSize()/8;
+		}
+
+		public BloomMembership getBloom() {
+			return bloom;
+		}
+
+		public String getName() {
+			return key.name;
+		}
+	}
+
+
+	/**
+	 *  Get the latest bloom which has already been loaded, or null.
+	 */
+	public BloomMembership get( String name) {
+		Entry entry = latest.get( name);
+		if( entry == null) {
+			//// Not counted as a miss, since it may be an encoded bloom, rather than a name
+			return null;
+		}
+		hits.incrementAndGet();
+		entry.lastUsed = clock.incrementAndGet();
+		return entry.bloom;
+	}
+
+	/**
+	 *  Get a bloom from a local file, loading it if it hasn't been loaded yet,
+	 *   or if the file has been modified since.
+	 *  The entry needs to be given back with release.
+	 */
+	public Entry acquire( String name) throws IOException {
+		return getOrLoad( name, true);
+	}
+
+	/**
+	 *  Get a bloom from a local file, without keeping a reference.
+	 */
+	public BloomMembership load( String name) throws IOException {
+		return getOrLoad( name, false).bloom;
+	}
+
+	/**
+	 *  Give back a reference taken with acquire.
+	 */
+	public synchronized void release( Entry entry) {
+		if( entry.refCount.decrementAndGet() == 0 && entry.replaced) {
+			remove( entry);
+		}
+		evict();
+	}
+
+	/**
+	 *  Add a bloom which doesn't come from a file.
+	 */
+	public void put( String name, Filter bloom) {
+		insert( new Entry( name, -1, BloomFactory.AsMembership( bloom)));
+	}
+
+	private Entry getOrLoad( String name, boolean reference) throws IOException {
+		File file = new File( name);
+		long modTime = LastModified( file);
+		if( !reference) {
+			Entry entry = latest.get( name);
+			if( entry != null && (entry.key.modTime == modTime || !file.exists())) {
+				hits.incrementAndGet();
+				entry.lastUsed = clock.incrementAndGet();
+				return entry;
+			}
+		}
+		//// References are taken under the lock, so that evict can't
+		////  remove the entry between finding it and counting the reference
+		synchronized( this) {
+			//// Another thread may have loaded it while we waited
+			Entry entry = latest.get( name);
+			if( entry != null && (entry.key.modTime == modTime || !file.exists())) {
+				hits.incrementAndGet();
+				entry.lastUsed = clock.incrementAndGet();
+				if( reference) {
+					entry.refCount.incrementAndGet();
+				}
+				return entry;
+			}
+			misses.incrementAndGet();
+			long start = System.currentTimeMillis();
+			BloomMembership bloom = BloomFactory.LoadNamedBloomFile( file);
+			loads.incrementAndGet();
+			entry = new Entry( name, modTime, bloom);
+			if( reference) {
+				/// Take the reference before it can be evicted
+				entry.refCount.incrementAndGet();
+			}
+			LOG.info(" Loaded bloom " + name + " of " + entry.numBytes + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+			insert( entry);
+			return entry;
+		}
+	}
+
+	private synchronized void insert( Entry entry) {
+		entry.lastUsed = clock.incrementAndGet();
+		Entry prev = entries.put( entry.key, entry);
+		bytes.addAndGet( entry.numBytes);
+		if( prev != null) {
+			replace( prev);
+		}
+		Entry prevLatest = latest.put( entry.key.name, entry);
+		if( prevLatest != null && prevLatest != prev) {
+			replace( prevLatest);
+		}
+		evict();
+	}
+
+	/**
+	 *  A bloom which has been replaced is dropped, unless it is still
+	 *   referenced, in which case it is dropped once it is released.
+	 */
+	private void replace( Entry entry) {
+		if( entry.refCount.get() > 0) {
+			entry.replaced = true;
+		} else {
+			remove( entry);
+		}
+	}
+
+	private void remove( Entry entry) {
+		entries.remove( entry.key, entry);
+		latest.remove( entry.key.name, entry);
+		bytes.addAndGet( -entry.numBytes);
+	}
+
+	/**
+	 *  Evict the least recently used blooms, which nobody holds
+	 *   a reference to, until we are under the limits.
+	 */
+	private synchronized void evict() {
+		while( entries.size() > maxBlooms || bytes.get() > maxBytes) {
+			Entry lru = null;
+			for( Entry entry : entries.values()) {
+				if( entry.refCount.get() <= 0 && (lru == null || entry.lastUsed < lru.lastUsed)) {
+					lru = entry;
+				}
+			}
+			if( lru == null) {
+				return;
+			}
+			LOG.info(" Evicting bloom " + lru.key.name + " of " + lru.numBytes + " bytes");
+			remove( lru);
+			evictions.incrementAndGet();
+		}
+	}
+
+	public void setLimits( int maxBlooms, long maxBytes) {
+		this.maxBlooms = maxBlooms;
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		latest.clear();
+		bytes.set( 0);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getLoads() {
+		return loads.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public String toString() {
+		return "NamedBloomRegistry blooms = " + size() + " bytes = " + getBytes()
+				+ " hits = " + getHits() + " misses = " + getMisses()
+				+ " loads = " + getLoads() + " evictions = " + getEvictions();
+	}
+
+	/**
+	 *  Modification time of a file, or the latest of the files in a directory.
+	 */
+	private static long LastModified( File file) {
+		long modTime = file.lastModified();
+		if( file.isDirectory()) {
+			File[] subFiles = file.listFiles();
+			if( subFiles != null) {
+				for( File subFile : subFiles) {
+					modTime = Math.max( modTime, subFile.lastModified());
+				}
+			}
+		}
+		return modTime;
+	}
+}
@@ -17,6 +17,7 @@ package brickhouse.udf.collect;
  **/
 
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -28,9 +29,13 @@ import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
 import org.apache.hadoop.hive.serde2.objectinspector.StandardListObjectInspector;
 import org.apache.log4j.Logger;
 
+import brickhouse.udf.collect.StandardObjectCopier.StandardObjectCopierFactory;
+
 
 /**
  * Return a  map of entries from a map, for a given set of keys.
@@ -45,9 +50,15 @@ public class ArrayIntersectUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger( ArrayIntersectUDF.class);
 	private StandardListObjectInspector retValInspector;
 	private ListObjectInspector[] listInspectorArr;
+	//// For arrays of primitives, sets which don't wrap each element
+	private PrimitiveObjectInspector[] primInspectorArr;
+	private PrimitiveSet checkSet;
+	private PrimitiveSet nextSet;
+	private PrimitiveSet emittedSet;
+	private StandardObjectCopier copier;
 	
 	
-	private class InspectableObject implements Comparable {
+	private class InspectableObject implements Comparable<InspectableObject> {
 		public Object o;
 		public ObjectInspector oi;
 		
@@ -63,22 +74,24 @@ public class ArrayIntersectUDF extends GenericUDF {
 		}
 
 		@Override
-		public int compareTo(Object arg0) {
-			InspectableObject otherInsp = (InspectableObject) arg0;
+		public int compareTo(InspectableObject otherInsp) {
 			return ObjectInspectorUtils.compare(o, oi, otherInsp.o ,otherInsp.oi);
 		}
 		
 		@Override
 		public boolean equals( Object other) {
-			return compareTo( other ) == 0;
+			return compareTo( (InspectableObject) other ) == 0;
 		}
 		
 	}
 
 	@Override
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
+		if( primInspectorArr != null) {
+			return evaluatePrimitive( arg0);
+		}
 	   	
-		HashMap checkSet = new HashMap();
+		HashMap<InspectableObject,InspectableObject> checkSet = new HashMap<InspectableObject,InspectableObject>();
 		Object firstUndeferred = arg0[0].get();
 		int firstArrSize = listInspectorArr[0].getListLength( firstUndeferred);
 		for( int i= 0; i < firstArrSize; ++i ) {
@@ -88,7 +101,7 @@ public class ArrayIntersectUDF extends GenericUDF {
 		}
 		for( int i=1; i<arg0.length; ++i) {
 			Object undeferred = arg0[i].get();
-			HashMap newSet = new HashMap();
+			HashMap<InspectableObject,InspectableObject> newSet = new HashMap<InspectableObject,InspectableObject>();
 			for(int j=0; j< listInspectorArr[i].getListLength( undeferred); ++j ){
 				Object nonStd = listInspectorArr[i].getListElement(undeferred, j);
 				InspectableObject stdInsp = new InspectableObject( nonStd, listInspectorArr[i].getListElementObjectInspector());
@@ -99,10 +112,9 @@ public class ArrayIntersectUDF extends GenericUDF {
 			checkSet = newSet;
 		}
 		
-		List retVal = (List) retValInspector.create(0);
-		for( Object io : checkSet.keySet()) {
-			InspectableObject inspObj = (InspectableObject) io;
-			
+		List<Object> retVal = new ArrayList<Object>();
+		for( InspectableObject inspObj : checkSet.keySet()) {
+
 			Object stdObj =  ObjectInspectorUtils.copyToStandardObject( inspObj.o, inspObj.oi);
 			retVal.add( stdObj );
 		}
@@ -110,6 +122,41 @@ public class ArrayIntersectUDF extends GenericUDF {
 	}
 
 
+	private Object evaluatePrimitive(DeferredObject[] arg0) throws HiveException {
+		checkSet.clear();
+		Object firstUndeferred = arg0[0].get();
+		int firstArrSize = listInspectorArr[0].getListLength( firstUndeferred);
+		for( int i= 0; i < firstArrSize; ++i ) {
+			checkSet.add( listInspectorArr[0].getListElement(firstUndeferred, i), primInspectorArr[0]);
+		}
+		for( int i=1; i<arg0.length; ++i) {
+			Object undeferred = arg0[i].get();
+			nextSet.clear();
+			int arrSize = listInspectorArr[i].getListLength( undeferred);
+			for(int j=0; j< arrSize; ++j ){
+				Object elem = listInspectorArr[i].getListElement(undeferred, j);
+				if( checkSet.contains( elem, primInspectorArr[i])) {
+					nextSet.add( elem, primInspectorArr[i]);
+				}
+			}
+			PrimitiveSet swap = checkSet;
+			checkSet = nextSet;
+			nextSet = swap;
+		}
+
+		//// Return the elements in the order of the first array
+		List<Object> retVal = new ArrayList<Object>();
+		emittedSet.clear();
+		for( int i= 0; i < firstArrSize; ++i ) {
+			Object elem = listInspectorArr[0].getListElement(firstUndeferred, i);
+			if( checkSet.contains( elem, primInspectorArr[0]) && emittedSet.add( elem, primInspectorArr[0])) {
+				retVal.add( copier.copy( elem));
+			}
+		}
+		return retVal;
+	}
+
+
 	@Override
 	public String getDisplayString(String[] arg0) {
 		return "intersect_array(" + arg0[0] + ", " + arg0[1] + " )";
@@ -142,6 +189,21 @@ public class ArrayIntersectUDF extends GenericUDF {
 		
         
 		retValInspector = (StandardListObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(first);
+
+		ObjectInspector elemInspector = listInspectorArr[0].getListElementObjectInspector();
+		if( elemInspector.getCategory() == Category.PRIMITIVE) {
+			primInspectorArr = new PrimitiveObjectInspector[ listInspectorArr.length];
+			for(int i=0; i<listInspectorArr.length; ++i) {
+				primInspectorArr[i] = (PrimitiveObjectInspector) listInspectorArr[i].getListElementObjectInspector();
+			}
+			PrimitiveCategory primCategory = primInspectorArr[0].getPrimitiveCategory();
+			checkSet = PrimitiveSet.ForCategory( primCategory);
+			nextSet = PrimitiveSet.ForCategory( primCategory);
+			emittedSet = PrimitiveSet.ForCategory( primCategory);
+			copier = StandardObjectCopierFactory.GenerateCopier( elemInspector);
+		} else {
+			primInspectorArr = null;
+		}
 		return retValInspector;
 	}
 
@@ -23,6 +23,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.*;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableConstantIntObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
@@ -64,84 +65,183 @@ public class CollectMaxUDAF extends AbstractGenericUDAFResolver {
        this.descending = desc;	
     }
 
-    public class SortedKeyValue implements Comparable {
-      private Object keyObj;
-      private Object valObj;
+    /**
+     *  Compare two entries in output order, ( largest value first for collect_max,
+     *   with ties broken by the key ), returning a negative number if
+     *   the first entry comes first.
+     */
+    protected int compareEntries( double value, Object keyObj, double otherValue, Object otherKeyObj) {
+      int cmp = (int) Math.signum( otherValue - value);
+      if( cmp == 0) {
+        cmp = ((Comparable) inputKeyOI.getPrimitiveJavaObject( keyObj)).compareTo( inputKeyOI.getPrimitiveJavaObject( otherKeyObj));
+      }
+      return ( descending ? cmp : -1*cmp);
+    }
 
+    /**
+     *  A key and value in the heap, so that a duplicate entry
+     *   can be found with a hash lookup.
+     */
+    static class HeapEntry {
+      Object key;
+      double value;
 
-      public SortedKeyValue(Object keyObj, Object valObj ) {
-    	this.keyObj = keyObj;
-        this.valObj = valObj;
+      HeapEntry() {
       }
 
-      @Override
-      public boolean equals(Object other) {
-        if(!(other instanceof SortedKeyValue )) {
-          return false;
-        }
-        SortedKeyValue otherKV= (SortedKeyValue)other;
-        if( getKey().equals(otherKV.getKey())) {
-          return true;
-        } else {
-          return false;
-        }
+      HeapEntry( Object key, double value) {
+        set( key, value);
       }
 
-      public Object getKey() { return (keyObj == null) ? null : inputKeyOI.getPrimitiveJavaObject(keyObj); }
-      public Double getValue() { return (valObj == null ? null : ((Number)inputValOI.getPrimitiveJavaObject(valObj)).doubleValue()); }
-      
-      public String toString() { return getKey() + ":=" + getValue(); }
+      void set( Object key, double value) {
+        this.key = key;
+        /// -0.0 and 0.0 are the same value
+        this.value = ( value == 0.0 ? 0.0 : value);
+      }
 
       @Override
-      public int compareTo(Object arg1) {
-        SortedKeyValue otherKV = (SortedKeyValue) arg1;
-        int cmp = compareKV( otherKV);
-        return ( descending ? cmp : -1*cmp);
-      }
-      
-      public int compareKV(SortedKeyValue otherKV) {
-        
-        double thisNumber = getValue(); 
-        double otherNumber = otherKV.getValue();
-        int sigNum  = (int) Math.signum(otherNumber - thisNumber);
-        if(sigNum !=0 )  {
-            return sigNum;
-        } else {
-          return ((Comparable)getKey()).compareTo(otherKV.getKey() );
+      public int hashCode() {
+        long bits = Double.doubleToLongBits( value);
+        return ( key == null ? 0 : key.hashCode()*31) + (int)(bits ^ (bits >>> 32));
+      }
+
+      @Override
+      public boolean equals( Object obj) {
+        if(!( obj instanceof HeapEntry)) {
+          return false;
         }
+        HeapEntry other = (HeapEntry) obj;
+        return Double.doubleToLongBits( value) == Double.doubleToLongBits( other.value)
+            && ( key == null ? other.key == null : key.equals( other.key));
       }
     }
 
+    /**
+     *  The top N entries, in a binary heap with the entry which would
+     *   be dropped next at the root. Values are kept as doubles alongside
+     *   copies of the keys and values, so a row which doesn't make the
+     *   top N is rejected without copying or boxing anything.
+     *  The entries are also kept in a hash set, so duplicates are found
+     *   without scanning the heap.
+     */
     class MapAggBuffer implements AggregationBuffer {
-      private TreeSet<SortedKeyValue> sortedValues = new TreeSet<SortedKeyValue>();
+      private double[] heapValues = new double[ numValues];
+      private Object[] heapKeys = new Object[ numValues];
+      private Object[] heapVals = new Object[ numValues];
+      private int size = 0;
+      private final HashSet<HeapEntry> entries = new HashSet<HeapEntry>();
+      /// Reused for lookups
+      private final HeapEntry probe = new HeapEntry();
 
 
       public void addValue(Object keyObj, Object valObj) {
-        if( sortedValues.size() < numValues) {
-          SortedKeyValue newValue =  new SortedKeyValue(inputKeyOI.copyObject(keyObj), inputValOI.copyObject(valObj) );
-      	  sortedValues.add( newValue);
+        double value = PrimitiveObjectInspectorUtils.getDouble( valObj, inputValOI);
+        if( size == numValues) {
+          if( size == 0
+              || compareEntries( value, keyObj, heapValues[0], heapKeys[0]) >= 0
+              || contains( value, keyObj)) {
+            return;
+          }
+          HeapEntry added = new HeapEntry( probe.key, value);
+          probe.set( inputKeyOI.getPrimitiveJavaObject( heapKeys[0]), heapValues[0]);
+          entries.remove( probe);
+          entries.add( added);
+          setEntry( 0, value, inputKeyOI.copyObject(keyObj), inputValOI.copyObject(valObj));
+          siftDown( 0);
         } else {
-          SortedKeyValue minValue = sortedValues.last();
-          SortedKeyValue biggerValue =  new SortedKeyValue(inputKeyOI.copyObject(keyObj), inputValOI.copyObject(valObj));
-          int cmp =  biggerValue.compareTo(minValue);
-          if( cmp < 0 ) {
-            sortedValues.remove( minValue);
-            sortedValues.add(biggerValue);
+          if( contains( value, keyObj)) {
+            return;
           }
+          entries.add( new HeapEntry( probe.key, value));
+          setEntry( size, value, inputKeyOI.copyObject(keyObj), inputValOI.copyObject(valObj));
+          siftUp( size++);
+        }
+      }
+
+      /**
+       *  Is the entry already in the heap ? Leaves the key, as a java object, in the probe.
+       */
+      private boolean contains( double value, Object keyObj) {
+        probe.set( inputKeyOI.getPrimitiveJavaObject( keyObj), value);
+        return entries.contains( probe);
+      }
+
+      private int compareAt( int i, int j) {
+        return compareEntries( heapValues[i], heapKeys[i], heapValues[j], heapKeys[j]);
+      }
+
+      private void setEntry( int i, double value, Object keyObj, Object valObj) {
+        heapValues[i] = value;
+        heapKeys[i] = keyObj;
+        heapVals[i] = valObj;
+      }
+
+      private void swap( int i, int j) {
+        double value = heapValues[i];
+        Object keyObj = heapKeys[i];
+        Object valObj = heapVals[i];
+        setEntry( i, heapValues[j], heapKeys[j], heapVals[j]);
+        setEntry( j, value, keyObj, valObj);
+      }
+
+      private void siftUp( int i) {
+        while( i > 0) {
+          int parent = (i - 1) >>> 1;
+          if( compareAt( i, parent) <= 0) {
+            break;
+          }
+          swap( i, parent);
+          i = parent;
+        }
+      }
+
+      private void siftDown( int i) {
+        while( true) {
+          int child = 2*i + 1;
+          if( child >= size) {
+            break;
+          }
+          if( child + 1 < size && compareAt( child + 1, child) > 0) {
+            child++;
+          }
+          if( compareAt( child, i) <= 0) {
+            break;
+          }
+          swap( i, child);
+          i = child;
         }
       }
 
 
       public Map getValueMap() {
+        Integer[] order = new Integer[ size];
+        for(int i=0; i<size; ++i) {
+          order[i] = i;
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+          public int compare(Integer i, Integer j) {
+            return compareAt( i, j);
+          }
+        });
         LinkedHashMap<Object, Object> reverseOrderMap = new LinkedHashMap<Object,Object>();
-        for( SortedKeyValue kv : sortedValues ) {
-          reverseOrderMap.put( kv.keyObj, kv.valObj);
+        for( Integer i : order ) {
+          reverseOrderMap.put( heapKeys[i], heapVals[i]);
         }
         return reverseOrderMap;
       }
 
       public void reset() {
-        sortedValues.clear();
+        if( heapValues.length != numValues) {
+          heapValues = new double[ numValues];
+          heapKeys = new Object[ numValues];
+          heapVals = new Object[ numValues];
+        } else {
+          Arrays.fill( heapKeys, 0, size, null);
+          Arrays.fill( heapVals, 0, size, null);
+        }
+        entries.clear();
+        probe.key = null;
+        size = 0;
       }
     }
 
@@ -22,11 +22,12 @@ package brickhouse.udf.collect;
  *   return an array with all the values
  */
 
-import java.util.ArrayList;
+import java.io.File;
 import java.util.HashMap;
 import java.util.List;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -41,9 +42,14 @@ import org.apache.hadoop.hive.serde2.objectinspector.StandardListObjectInspector
 import org.apache.hadoop.hive.serde2.objectinspector.StandardMapObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 
+import brickhouse.udf.collect.StandardObjectCopier.StandardObjectCopierFactory;
+import org.apache.hadoop.mapred.JobConf;
+
 
 @Description(name="collect",
-value = "_FUNC_(x) - Returns an array of all the elements in the aggregation group " 
+value = "_FUNC_(x) - Returns an array of all the elements in the aggregation group. " 
+		+ " Past brickhouse.collect.max.memory.elements, elements are spilled to local disk while aggregating, "
+		+ " but the array returned is built in memory, so a very large group can still run out of memory. "
 )
 public class CollectUDAF extends AbstractGenericUDAFResolver {
 
@@ -71,10 +77,37 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 		// of objs)
 		private ListObjectInspector internalMergeOI;
 		private StandardListObjectInspector retListOI;
+		private StandardObjectCopier copier;
+		private int maxMemoryElements = SpillableCollectBuffer.DEFAULT_MAX_MEMORY_ELEMENTS;
+		private File spillDir = null;
 
 
 		static class ArrayAggBuffer implements AggregationBuffer {
-			ArrayList collectArray = new ArrayList();
+			SpillableCollectBuffer collectArray;
+		}
+
+		/**
+		 *  Set the number of elements kept in memory for each group,
+		 *   before spilling to disk, from brickhouse.collect.max.memory.elements
+		 *
+		 *  Spill files go in the task's working directory, which Hadoop
+		 *   deletes when the task is done, rather than in java.io.tmpdir.
+		 */
+		@Override
+		public void configure(MapredContext context) {
+			JobConf conf = context.getJobConf();
+			if( conf != null) {
+				maxMemoryElements = conf.getInt( SpillableCollectBuffer.MAX_MEMORY_ELEMENTS_CONF, SpillableCollectBuffer.DEFAULT_MAX_MEMORY_ELEMENTS);
+			}
+			spillDir = new File( System.getProperty("user.dir"));
+		}
+
+		void setMaxMemoryElements( int maxMemoryElements) {
+			this.maxMemoryElements = maxMemoryElements;
+		}
+
+		void setSpillDir( File spillDir) {
+			this.spillDir = spillDir;
 		}
 
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
@@ -92,6 +125,7 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 				retListOI =  ObjectInspectorFactory
 						.getStandardListObjectInspector( 
 								ObjectInspectorUtils.getStandardObjectInspector(inputOI ));
+				copier = StandardObjectCopierFactory.GenerateCopier( inputOI);
 				return retListOI;
 			} else {
 				///if ( m == Mode.PARTIAL2 || m == Mode.FINAL) {
@@ -100,6 +134,7 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 					retListOI = ObjectInspectorFactory
 							.getStandardListObjectInspector( 
 									ObjectInspectorUtils.getStandardObjectInspector(internalMergeOI.getListElementObjectInspector()));
+					copier = StandardObjectCopierFactory.GenerateCopier( internalMergeOI.getListElementObjectInspector());
 					return retListOI;
 				///}
 			}
@@ -119,7 +154,7 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 
 			if (p != null) {
 				ArrayAggBuffer myagg = (ArrayAggBuffer) agg;
-				putIntoSet(p, myagg, this.inputOI);
+				putIntoSet(p, myagg);
 			}
 		}
 
@@ -130,30 +165,27 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 			int listSize = internalMergeOI.getListLength(partial);
 			for(int i=0; i<listSize; ++i) {
 				Object uninsp = internalMergeOI.getListElement(partial, i);
-				putIntoSet(uninsp, myagg, internalMergeOI.getListElementObjectInspector());
+				putIntoSet(uninsp, myagg);
 			}
 		}
 
 		@Override
 		public void reset(AggregationBuffer buff) throws HiveException {
 			ArrayAggBuffer arrayBuff = (ArrayAggBuffer) buff;
-			arrayBuff.collectArray = new ArrayList();
+			if( arrayBuff.collectArray != null) {
+				arrayBuff.collectArray.clear();
+			}
+			arrayBuff.collectArray = new SpillableCollectBuffer( retListOI.getListElementObjectInspector(), maxMemoryElements, spillDir);
 		}
 
 		@Override
 		public Object terminate(AggregationBuffer agg) throws HiveException {
 			ArrayAggBuffer myagg = (ArrayAggBuffer) agg;
-			int listSize = myagg.collectArray.size();
-			Object newList = retListOI.create( listSize);
-			for(int i=0; i<listSize; ++i) {
-               Object colVal = myagg.collectArray.get(i);
-			   retListOI.set( newList,i,colVal);
-			}
-			return newList;
+			return myagg.collectArray.toList( retListOI);
 		}
 
-		private void putIntoSet(Object p, ArrayAggBuffer myagg, ObjectInspector oi) {
-			Object standardP = ObjectInspectorUtils.copyToStandardObject(p, oi );
+		private void putIntoSet(Object p, ArrayAggBuffer myagg) throws HiveException {
+			Object standardP = copier.copy( p);
 			myagg.collectArray.add( standardP);
 		}
 
@@ -171,6 +203,8 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 		// of objs)
 		private StandardMapObjectInspector moi;
 		private StandardMapObjectInspector internalMergeOI;
+		private StandardObjectCopier keyCopier;
+		private StandardObjectCopier valCopier;
 
 
 		static class MapAggBuffer implements AggregationBuffer {
@@ -185,6 +219,7 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 			if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
 				inputKeyOI = (PrimitiveObjectInspector) parameters[0];
 				inputValOI = parameters[1];
+				initCopiers();
 				
 				return ObjectInspectorFactory.getStandardMapObjectInspector(
 						   ObjectInspectorUtils.getStandardObjectInspector(inputKeyOI),
@@ -195,6 +230,7 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 							.getStandardObjectInspector(parameters[0]);
 					inputValOI = ObjectInspectorUtils
 							.getStandardObjectInspector(parameters[1]);
+					initCopiers();
 					return (StandardMapObjectInspector) ObjectInspectorFactory
 							.getStandardMapObjectInspector(inputKeyOI, inputValOI);
 				} else {
@@ -202,11 +238,17 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 					inputKeyOI = (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector();
 					inputValOI = internalMergeOI.getMapValueObjectInspector();
 					moi =  (StandardMapObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(internalMergeOI);
+					initCopiers();
 					return moi;
 				}
 			}
 		}
 
+		private void initCopiers() {
+			keyCopier = StandardObjectCopierFactory.GenerateCopier( inputKeyOI);
+			valCopier = StandardObjectCopierFactory.GenerateCopier( inputValOI);
+		}
+
 		@Override
 		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
 			AggregationBuffer buff= new MapAggBuffer();
@@ -251,8 +293,8 @@ public class CollectUDAF extends AbstractGenericUDAFResolver {
 		}
 
 		private void putIntoSet(Object key, Object val, MapAggBuffer myagg) {
-			Object keyCopy = ObjectInspectorUtils.copyToStandardObject(key, this.inputKeyOI );
-			Object valCopy = ObjectInspectorUtils.copyToStandardObject(val, this.inputValOI );
+			Object keyCopy = keyCopier.copy( key);
+			Object valCopy = valCopier.copy( val);
 			
 			myagg.collectMap.put(keyCopy, valCopy);
 		}
@@ -38,8 +38,6 @@ import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 
 /**
  *  Aggregate function to combine several
@@ -73,6 +71,7 @@ public class CombineUniqueUDAF extends AbstractGenericUDAFResolver {
 		private static final Logger LOG = Logger.getLogger( CombineUniqueUDAFEvaluator.class);
 		// For PARTIAL1 and COMPLETE: ObjectInspectors for original data
 		private ListObjectInspector inputOI;
+		private PrimitiveObjectInspector elemOI;
 		// For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (list
 		// of objs)
 		//private StandardListObjectInspector loi;
@@ -80,15 +79,16 @@ public class CombineUniqueUDAF extends AbstractGenericUDAFResolver {
 
 
 		static class UniqueSetBuffer implements AggregationBuffer {
-			HashSet collectSet = new HashSet();
+			PrimitiveSet collectSet;
 		}
 
     public ObjectInspector init(Mode m, ObjectInspector[] parameters)
         throws HiveException {
       super.init(m, parameters);
       inputOI = (ListObjectInspector) parameters[0];
+      elemOI = (PrimitiveObjectInspector) inputOI.getListElementObjectInspector();
       ObjectInspector elemInsp = PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(
-          ((PrimitiveObjectInspector) (inputOI.getListElementObjectInspector())).getPrimitiveCategory());
+          elemOI.getPrimitiveCategory());
       return ObjectInspectorFactory
           .getStandardListObjectInspector(elemInsp );
     }
@@ -121,24 +121,22 @@ public class CombineUniqueUDAF extends AbstractGenericUDAFResolver {
 		@Override
 		public void reset(AggregationBuffer buff) throws HiveException {
 			UniqueSetBuffer arrayBuff = (UniqueSetBuffer) buff;
-			arrayBuff.collectSet = new HashSet();
+			arrayBuff.collectSet = PrimitiveSet.ForCategory( elemOI.getPrimitiveCategory());
 		}
 
 		@Override
 		public Object terminate(AggregationBuffer agg) throws HiveException {
 			UniqueSetBuffer myagg = (UniqueSetBuffer) agg;
 			ArrayList<Object> ret = new ArrayList<Object>(myagg.collectSet.size());
-			ret.addAll( myagg.collectSet );
+			myagg.collectSet.addJavaObjectsTo( ret);
 			return ret;
 
 		}
 
     private void putIntoSet(Object p, UniqueSetBuffer myagg) {
-      List pList = inputOI.getList(p);
-      ObjectInspector objInsp = inputOI.getListElementObjectInspector();
-      for( Object obj : pList) {
-        Object realObj = ((PrimitiveObjectInspector)objInsp).getPrimitiveJavaObject( obj);
-        myagg.collectSet.add( realObj);
+      int len = inputOI.getListLength(p);
+      for(int i=0; i<len; ++i) {
+        myagg.collectSet.add( inputOI.getListElement(p, i), elemOI);
       }
     }
 
@@ -146,7 +144,7 @@ public class CombineUniqueUDAF extends AbstractGenericUDAFResolver {
 		public Object terminatePartial(AggregationBuffer agg) throws HiveException {
 			UniqueSetBuffer myagg = (UniqueSetBuffer) agg;
 			ArrayList<Object> ret = new ArrayList<Object>(myagg.collectSet.size());
-			ret.addAll(myagg.collectSet);
+			myagg.collectSet.addJavaObjectsTo( ret);
 			return ret;
 		}
 	}
@@ -38,6 +38,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.StandardListObjectInspector
 import org.apache.hadoop.hive.serde2.objectinspector.StandardMapObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 
+import brickhouse.udf.collect.StandardObjectCopier.StandardObjectCopierFactory;
+
 
 @Description(name="gather",
 value = "_FUNC_(x) - Returns an array of all the elements in the aggregation group " 
@@ -68,6 +70,7 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 		// of objs)
 		private StandardListObjectInspector loi;
 		private StandardListObjectInspector internalMergeOI;
+		private StandardObjectCopier copier;
 
 
 		static class ArrayAggBuffer implements AggregationBuffer {
@@ -81,6 +84,7 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 			// The output of a partial aggregation is a list
 			if (m == Mode.PARTIAL1) {
 				inputOI = parameters[0];
+				copier = StandardObjectCopierFactory.GenerateCopier( inputOI);
 				return ObjectInspectorFactory
 						.getStandardListObjectInspector( ObjectInspectorUtils
 								.getStandardObjectInspector(inputOI));
@@ -89,12 +93,14 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 					//no map aggregation.
 					inputOI = ObjectInspectorUtils
 							.getStandardObjectInspector(parameters[0]);
+					copier = StandardObjectCopierFactory.GenerateCopier( inputOI);
 					return (StandardListObjectInspector) ObjectInspectorFactory
 							.getStandardListObjectInspector(inputOI);
 				} else {
 					internalMergeOI = (StandardListObjectInspector) parameters[0];
 					inputOI = internalMergeOI.getListElementObjectInspector();
 					loi = (StandardListObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(internalMergeOI);
+					copier = StandardObjectCopierFactory.GenerateCopier( inputOI);
 					return loi;
 				}
 			}
@@ -144,8 +150,7 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 		}
 
 		private void putIntoSet(Object p, ArrayAggBuffer myagg) {
-			Object pCopy = ObjectInspectorUtils.copyToStandardObject(p,
-					this.inputOI);
+			Object pCopy = copier.copy( p);
 			myagg.collectArray.add( pCopy);
 		}
 
@@ -166,6 +171,8 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 		// of objs)
 		private StandardMapObjectInspector moi;
 		private StandardMapObjectInspector internalMergeOI;
+		private StandardObjectCopier keyCopier;
+		private StandardObjectCopier valCopier;
 
 
 		static class MapAggBuffer implements AggregationBuffer {
@@ -180,6 +187,7 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 			if (m == Mode.PARTIAL1) {
 				inputKeyOI = (PrimitiveObjectInspector) parameters[0];
 				inputValOI = parameters[1];
+				initCopiers();
 				
 				return ObjectInspectorFactory.getStandardMapObjectInspector(
 						   ObjectInspectorUtils.getStandardObjectInspector(inputKeyOI),
@@ -190,6 +198,7 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 							.getStandardObjectInspector(parameters[0]);
 					inputValOI = ObjectInspectorUtils
 							.getStandardObjectInspector(parameters[1]);
+					initCopiers();
 					return (StandardMapObjectInspector) ObjectInspectorFactory
 							.getStandardMapObjectInspector(inputKeyOI, inputValOI);
 				} else {
@@ -197,11 +206,17 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 					inputKeyOI = (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector();
 					inputValOI = internalMergeOI.getMapValueObjectInspector();
 					moi =  (StandardMapObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(internalMergeOI);
+					initCopiers();
 					return moi;
 				}
 			}
 		}
 
+		private void initCopiers() {
+			keyCopier = StandardObjectCopierFactory.GenerateCopier( inputKeyOI);
+			valCopier = StandardObjectCopierFactory.GenerateCopier( inputValOI);
+		}
+
 		@Override
 		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
 			AggregationBuffer buff= new MapAggBuffer();
@@ -246,8 +261,8 @@ public class GatherUDAF extends AbstractGenericUDAFResolver {
 		}
 
 		private void putIntoSet(Object key, Object val, MapAggBuffer myagg) {
-			Object keyCopy = ObjectInspectorUtils.copyToStandardObject(key, this.inputKeyOI );
-			Object valCopy = ObjectInspectorUtils.copyToStandardObject(val, this.inputValOI );
+			Object keyCopy = keyCopier.copy( key);
+			Object valCopy = valCopier.copy( val);
 			
 			myagg.collectMap.put(keyCopy, valCopy);
 		}
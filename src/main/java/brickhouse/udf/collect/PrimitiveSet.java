@@ -0,0 +1,425 @@
+package brickhouse.udf.collect;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.ByteObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.ShortObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.Text;
+
+/**
+ *  A set of primitive values, read through their object inspectors.
+ *
+ *  Integer types are kept in an open addressing table of longs,
+ *   and strings by their UTF-8 bytes, so that adding or checking
+ *   a bigint or a Text doesn't allocate anything. Other types
+ *   fall back to a HashSet of the Java objects.
+ *
+ *  Values can be added and checked with different inspectors,
+ *   as long as they are of the same primitive category.
+ */
+public abstract class PrimitiveSet {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int INITIAL_CAPACITY = 16;
+	/// On clear, tables more than this many times bigger than they need to be are shrunk
+	private static final int SHRINK_FACTOR = 4;
+
+	/**
+	 *  A set suited to values of a primitive category.
+	 */
+	public static PrimitiveSet ForCategory( PrimitiveCategory category) {
+		switch( category) {
+		case LONG:
+		case INT:
+		case SHORT:
+		case BYTE:
+			return new LongSet( category);
+		case STRING:
+			return new BytesSet();
+		default:
+			return new ObjectSet();
+		}
+	}
+
+	/**
+	 *  Add a value, returning true if it wasn't already in the set.
+	 */
+	public abstract boolean add( Object obj, PrimitiveObjectInspector oi);
+
+	public abstract boolean contains( Object obj, PrimitiveObjectInspector oi);
+
+	public abstract int size();
+
+	/**
+	 *  Empty the set, keeping its tables for reuse, unless they
+	 *   grew much bigger than the last set of values needed.
+	 */
+	public abstract void clear();
+
+	/**
+	 *  Append the values to a list, as Java objects.
+	 */
+	public abstract void addJavaObjectsTo( List<Object> list);
+
+	/**
+	 *  Integer types, widened to longs. Zero marks an empty slot,
+	 *   so whether zero is in the set is kept separately.
+	 */
+	public static class LongSet extends PrimitiveSet {
+		private final PrimitiveCategory category;
+		private long[] table = new long[ INITIAL_CAPACITY];
+		private int size = 0;
+		private boolean hasZero = false;
+		private boolean hasNull = false;
+
+		public LongSet( PrimitiveCategory category) {
+			this.category = category;
+		}
+
+		private long getLong( Object obj, PrimitiveObjectInspector oi) {
+			switch( category) {
+			case LONG:
+				return ((LongObjectInspector) oi).get( obj);
+			case INT:
+				return ((IntObjectInspector) oi).get( obj);
+			case SHORT:
+				return ((ShortObjectInspector) oi).get( obj);
+			default:
+				return ((ByteObjectInspector) oi).get( obj);
+			}
+		}
+
+		private static int Slot( long val, int mask) {
+			long h = val * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+
+		public boolean add( Object obj, PrimitiveObjectInspector oi) {
+			if( obj == null) {
+				boolean added = !hasNull;
+				hasNull = true;
+				return added;
+			}
+			return addLong( getLong( obj, oi));
+		}
+
+		public boolean addLong( long val) {
+			if( val == 0) {
+				boolean added = !hasZero;
+				hasZero = true;
+				return added;
+			}
+			int mask = table.length - 1;
+			int slot = Slot( val, mask);
+			while( table[slot] != 0) {
+				if( table[slot] == val) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = val;
+			if( ++size*2 > table.length) {
+				rehash( table.length*2);
+			}
+			return true;
+		}
+
+		public boolean contains( Object obj, PrimitiveObjectInspector oi) {
+			if( obj == null) {
+				return hasNull;
+			}
+			return containsLong( getLong( obj, oi));
+		}
+
+		public boolean containsLong( long val) {
+			if( val == 0) {
+				return hasZero;
+			}
+			int mask = table.length - 1;
+			int slot = Slot( val, mask);
+			while( table[slot] != 0) {
+				if( table[slot] == val) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+
+		private void rehash( int capacity) {
+			long[] oldTable = table;
+			table = new long[ capacity];
+			int mask = capacity - 1;
+			for( long val : oldTable) {
+				if( val != 0) {
+					int slot = Slot( val, mask);
+					while( table[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					table[slot] = val;
+				}
+			}
+		}
+
+		public int size() {
+			return size + (hasZero ? 1 : 0) + (hasNull ? 1 : 0);
+		}
+
+		int capacity() {
+			return table.length;
+		}
+
+		public void clear() {
+			if( table.length > INITIAL_CAPACITY && table.length > SHRINK_FACTOR*2*size) {
+				table = new long[ INITIAL_CAPACITY];
+			} else if( size > 0) {
+				Arrays.fill( table, 0L);
+			}
+			size = 0;
+			hasZero = false;
+			hasNull = false;
+		}
+
+		private Object toJavaObject( long val) {
+			switch( category) {
+			case LONG:
+				return Long.valueOf( val);
+			case INT:
+				return Integer.valueOf( (int) val);
+			case SHORT:
+				return Short.valueOf( (short) val);
+			default:
+				return Byte.valueOf( (byte) val);
+			}
+		}
+
+		public void addJavaObjectsTo( List<Object> list) {
+			if( hasNull) {
+				list.add( null);
+			}
+			if( hasZero) {
+				list.add( toJavaObject( 0));
+			}
+			for( long val : table) {
+				if( val != 0) {
+					list.add( toJavaObject( val));
+				}
+			}
+		}
+	}
+
+	/**
+	 *  Strings, by their UTF-8 bytes, which are copied into one
+	 *   growing byte array. The table holds entry numbers plus one.
+	 */
+	public static class BytesSet extends PrimitiveSet {
+		private int[] table = new int[ INITIAL_CAPACITY];
+		private int[] hashes = new int[ INITIAL_CAPACITY];
+		private int[] starts = new int[ INITIAL_CAPACITY + 1];
+		private byte[] data = new byte[ INITIAL_CAPACITY*16];
+		private int size = 0;
+		private boolean hasNull = false;
+		private final Text scratch = new Text();
+
+		private Text getText( Object obj, PrimitiveObjectInspector oi) {
+			StringObjectInspector strOI = (StringObjectInspector) oi;
+			if( strOI.preferWritable()) {
+				return strOI.getPrimitiveWritableObject( obj);
+			}
+			String str = strOI.getPrimitiveJavaObject( obj);
+			if( str == null) {
+				return null;
+			}
+			scratch.set( str);
+			return scratch;
+		}
+
+		private static int Hash( byte[] bytes, int len) {
+			int h = 1;
+			for(int i=0; i<len; ++i) {
+				h = 31*h + bytes[i];
+			}
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			return h;
+		}
+
+		private boolean matches( int entry, int hash, byte[] bytes, int len) {
+			if( hashes[entry] != hash) {
+				return false;
+			}
+			int start = starts[entry];
+			if( starts[entry + 1] - start != len) {
+				return false;
+			}
+			for(int i=0; i<len; ++i) {
+				if( data[start + i] != bytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public boolean add( Object obj, PrimitiveObjectInspector oi) {
+			if( obj == null) {
+				boolean added = !hasNull;
+				hasNull = true;
+				return added;
+			}
+			Text text = getText( obj, oi);
+			if( text == null) {
+				boolean added = !hasNull;
+				hasNull = true;
+				return added;
+			}
+			byte[] bytes = text.getBytes();
+			int len = text.getLength();
+			int hash = Hash( bytes, len);
+			int mask = table.length - 1;
+			int slot = hash & mask;
+			while( table[slot] != 0) {
+				if( matches( table[slot] - 1, hash, bytes, len)) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if( size == hashes.length) {
+				hashes = Arrays.copyOf( hashes, size*2);
+				starts = Arrays.copyOf( starts, size*2 + 1);
+			}
+			int start = starts[size];
+			if( start + len > data.length) {
+				data = Arrays.copyOf( data, Math.max( start + len, data.length*2));
+			}
+			System.arraycopy( bytes, 0, data, start, len);
+			hashes[size] = hash;
+			starts[size + 1] = start + len;
+			table[slot] = ++size;
+			if( size*2 > table.length) {
+				rehash( table.length*2);
+			}
+			return true;
+		}
+
+		public boolean contains( Object obj, PrimitiveObjectInspector oi) {
+			if( obj == null) {
+				return hasNull;
+			}
+			Text text = getText( obj, oi);
+			if( text == null) {
+				return hasNull;
+			}
+			byte[] bytes = text.getBytes();
+			int len = text.getLength();
+			int hash = Hash( bytes, len);
+			int mask = table.length - 1;
+			int slot = hash & mask;
+			while( table[slot] != 0) {
+				if( matches( table[slot] - 1, hash, bytes, len)) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+
+		private void rehash( int capacity) {
+			table = new int[ capacity];
+			int mask = capacity - 1;
+			for(int entry=0; entry<size; ++entry) {
+				int slot = hashes[entry] & mask;
+				while( table[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = entry + 1;
+			}
+		}
+
+		public int size() {
+			return size + (hasNull ? 1 : 0);
+		}
+
+		int capacity() {
+			return table.length;
+		}
+
+		public void clear() {
+			int dataUsed = starts[size];
+			if( table.length > INITIAL_CAPACITY && table.length > SHRINK_FACTOR*2*size) {
+				table = new int[ INITIAL_CAPACITY];
+				hashes = new int[ INITIAL_CAPACITY];
+				starts = new int[ INITIAL_CAPACITY + 1];
+			} else if( size > 0) {
+				Arrays.fill( table, 0);
+			}
+			if( data.length > INITIAL_CAPACITY*16 && data.length > SHRINK_FACTOR*dataUsed) {
+				data = new byte[ INITIAL_CAPACITY*16];
+			}
+			size = 0;
+			hasNull = false;
+		}
+
+		/**
+		 *  Values come out in the order they were added
+		 */
+		public void addJavaObjectsTo( List<Object> list) {
+			if( hasNull) {
+				list.add( null);
+			}
+			for(int entry=0; entry<size; ++entry) {
+				list.add( new String( data, starts[entry], starts[entry + 1] - starts[entry], UTF8));
+			}
+		}
+	}
+
+	/**
+	 *  Any other primitive, as a HashSet of Java objects
+	 */
+	public static class ObjectSet extends PrimitiveSet {
+		private final HashSet<Object> set = new HashSet<Object>();
+
+		public boolean add( Object obj, PrimitiveObjectInspector oi) {
+			return set.add( oi.getPrimitiveJavaObject( obj));
+		}
+
+		public boolean contains( Object obj, PrimitiveObjectInspector oi) {
+			return set.contains( oi.getPrimitiveJavaObject( obj));
+		}
+
+		public int size() {
+			return set.size();
+		}
+
+		public void clear() {
+			set.clear();
+		}
+
+		public void addJavaObjectsTo( List<Object> list) {
+			list.addAll( set);
+		}
+	}
+}
@@ -16,7 +16,8 @@ package brickhouse.udf.collect;
  *
  **/
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -34,6 +35,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.StandardListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.StandardMapObjectInspector;
 
+import brickhouse.udf.collect.StandardObjectCopier.StandardObjectCopierFactory;
+
 /**
  *   UDF for the set difference of two arrays or maps.
  *
@@ -52,49 +55,47 @@ public class SetDifferenceUDF extends GenericUDF {
 	private PrimitiveObjectInspector prim2Inspector;
 	private StandardListObjectInspector stdListInspector;
 	private StandardMapObjectInspector stdMapInspector;
+	private StandardObjectCopier valCopier;
+	private PrimitiveSet negSet;
 
-	public List evaluate( List l1, List l2 ) {
+	public List<Object> evaluate( List<?> l1, List<?> l2 ) {
 		    if( l1 == null ) {
 		    	return null;
 		    }
-		    //// Use a HashSet to avoid linear lookups , for large lists 
-			HashSet negSet = new HashSet();
+		    //// Use a set to avoid linear lookups , for large lists 
+			negSet.clear();
 			if(l2 != null) {
 				for( Object lObj : l2) {
-					Object inspObj = prim2Inspector.getPrimitiveJavaObject( lObj);
-					negSet.add( inspObj);
+					negSet.add( lObj, prim2Inspector);
 				}
 			}
-			List newList =  (List) stdListInspector.create(0);
+			List<Object> newList = new ArrayList<Object>();
 			for( Object obj: l1) {
-				Object inspObj = prim1Inspector.getPrimitiveJavaObject(obj);
-				if( ! negSet.contains( inspObj )) {
-					newList.add( inspObj);
+				if( ! negSet.contains( obj, prim1Inspector )) {
+					newList.add( prim1Inspector.getPrimitiveJavaObject(obj));
 				}
 			}
 			return newList;
 	}
 	
-	public Map evaluate( Map m1, Map m2) {
-		Map newMap = (Map) stdMapInspector.create();
+	public Map<Object,Object> evaluate( Map<?,?> m1, Map<?,?> m2) {
+		Map<Object,Object> newMap = new HashMap<Object,Object>();
 		if( m1 == null) {
 			return null;
 		}
-		HashSet negSet = new HashSet();
+		negSet.clear();
 		if( m2 != null ) {
 		  for( Object mObj : m2.keySet()) {
-			Object inspObj = prim2Inspector.getPrimitiveJavaObject( mObj);
-			negSet.add( inspObj);
+			negSet.add( mObj, prim2Inspector);
 		  }
 		}
 		
 		if(  m1.size() > 0)
 			for(Object k : m1.keySet()) {
-				Object inspObj = prim1Inspector.getPrimitiveJavaObject(k);
-				if( !negSet.contains(inspObj)) {
+				if( !negSet.contains( k, prim1Inspector)) {
 				   Object valObj = m1.get( k);
-				   Object stdVal = ObjectInspectorUtils.copyToStandardObject( valObj, map1Inspector.getMapValueObjectInspector());
-				   newMap.put(inspObj, stdVal);
+				   Object stdVal = valCopier.copy( valObj);
+				   newMap.put( prim1Inspector.getPrimitiveJavaObject(k), stdVal);
 				}
 			}
 		return newMap;
@@ -103,15 +104,13 @@ public class SetDifferenceUDF extends GenericUDF {
 	@Override
 	public Object evaluate(DeferredObject[] args) throws HiveException {
 		if( category == Category.LIST) {
-			List theList1 = list1Inspector.getList( args[0].get());
-			List theList2 = list2Inspector.getList( args[1].get());
-			List retList = evaluate( theList1, theList2);
-			return retList;
+			List<?> theList1 = list1Inspector.getList( args[0].get());
+			List<?> theList2 = list2Inspector.getList( args[1].get());
+			return evaluate( theList1, theList2);
 		} else if( category == Category.MAP) {
-			Map theMap1 = map1Inspector.getMap( args[0].get());
-			Map theMap2 = map2Inspector.getMap( args[1].get());
-			Map retMap = evaluate( theMap1, theMap2);
-			return retMap;
+			Map<?,?> theMap1 = map1Inspector.getMap( args[0].get());
+			Map<?,?> theMap2 = map2Inspector.getMap( args[1].get());
+			return evaluate( theMap1, theMap2);
 		} else {
 			throw new HiveException(" Only maps or lists are supported ");
 		}
@@ -153,6 +152,7 @@ public class SetDifferenceUDF extends GenericUDF {
 	        if( prim1Inspector.getPrimitiveCategory() != prim2Inspector.getPrimitiveCategory() ) {
 			   throw new UDFArgumentException(" set_diff takes only lists of the same primitive type.");
 	        }
+	        negSet = PrimitiveSet.ForCategory( prim1Inspector.getPrimitiveCategory());
 			
 			stdListInspector =  ObjectInspectorFactory.getStandardListObjectInspector(
 					ObjectInspectorUtils.getStandardObjectInspector( prim1Inspector, ObjectInspectorUtils.ObjectInspectorCopyOption.JAVA ));
@@ -172,6 +172,8 @@ public class SetDifferenceUDF extends GenericUDF {
 	        if( prim1Inspector.getPrimitiveCategory() != prim2Inspector.getPrimitiveCategory() ) {
 			   throw new UDFArgumentException(" set_diff takes only maps of the same primitive type.");
 	        }
+	        negSet = PrimitiveSet.ForCategory( prim1Inspector.getPrimitiveCategory());
+	        valCopier = StandardObjectCopierFactory.GenerateCopier( map1Inspector.getMapValueObjectInspector());
 	        
 			stdMapInspector = ObjectInspectorFactory.getStandardMapObjectInspector(
 					 ObjectInspectorUtils.getStandardObjectInspector(prim1Inspector, ObjectInspectorUtils.ObjectInspectorCopyOption.JAVA),
@@ -0,0 +1,231 @@
+package brickhouse.udf.collect;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.ByteStream;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.lazy.ByteArrayRef;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinaryFactory;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinarySerDe;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinaryStruct;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinaryUtils;
+import org.apache.hadoop.hive.serde2.lazybinary.objectinspector.LazyBinaryStructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters.Converter;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StandardListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.log4j.Logger;
+
+/**
+ *  The elements collected for a group, with a cap on the number of them
+ *   kept in memory.
+ *
+ *  Once more than the cap have been added, the elements in memory are
+ *   serialized, in Hive's LazyBinary format, to a temp file on local disk,
+ *   and the file is streamed back, in order, when the list is built.
+ *   The file is deleted as soon as it has been read back.
+ *
+ *  The cap is set per query with brickhouse.collect.max.memory.elements.
+ *   Zero or less means never spill.
+ *
+ *  Only the aggregation is bounded. The list returned is built in memory,
+ *   so a group with more elements than fit in the heap will still fail.
+ */
+public class SpillableCollectBuffer {
+	private static final Logger LOG = Logger.getLogger(SpillableCollectBuffer.class);
+	public static final String MAX_MEMORY_ELEMENTS_CONF = "brickhouse.collect.max.memory.elements";
+	public static final int DEFAULT_MAX_MEMORY_ELEMENTS = 1000000;
+
+	/// standard inspector of the elements
+	private final ObjectInspector elementOI;
+	private final int maxMemoryElements;
+	/// Directory for the spill file, or null for java.io.tmpdir
+	private final File spillDir;
+	private final ArrayList<Object> inMemory = new ArrayList<Object>();
+
+	private File spillFile;
+	private int numSpilled = 0;
+
+	/// Elements are written as one field structs, so nulls are handled by LazyBinary
+	private List<ObjectInspector> structFieldOIs;
+	private LazyBinaryStructObjectInspector lazyStructOI;
+	private StructField lazyField;
+	private Converter fromLazyConverter;
+
+	public SpillableCollectBuffer( ObjectInspector elementOI, int maxMemoryElements) {
+		this( elementOI, maxMemoryElements, null);
+	}
+
+	public SpillableCollectBuffer( ObjectInspector elementOI, int maxMemoryElements, File spillDir) {
+		this.elementOI = elementOI;
+		this.maxMemoryElements = maxMemoryElements;
+		this.spillDir = spillDir;
+	}
+
+	/**
+	 *  Add an element, which should already be a copy
+	 *   of the standard object.
+	 */
+	public void add( Object standardObj) throws HiveException {
+		inMemory.add( standardObj);
+		if( maxMemoryElements > 0 && inMemory.size() > maxMemoryElements) {
+			spill();
+		}
+	}
+
+	public int size() {
+		return numSpilled + inMemory.size();
+	}
+
+	public int numSpilled() {
+		return numSpilled;
+	}
+
+	/**
+	 *  A new list, of all the elements in the order they were added.
+	 *
+	 *  Any spilled elements are in memory in the list anyway, so they are
+	 *   kept in memory from then on, and the spill file is deleted, rather
+	 *   than waiting for clear(), which Hive doesn't always call.
+	 */
+	public Object toList( StandardListObjectInspector listOI) throws HiveException {
+		Object newList = listOI.create( size());
+		int idx = 0;
+		if( numSpilled > 0) {
+			try {
+				idx = readSpilled( newList, listOI);
+			} catch(IOException ioExc) {
+				throw new HiveException("Unable to read collected elements back from " + spillFile, ioExc);
+			}
+		}
+		for(Object elem : inMemory) {
+			listOI.set( newList, idx++, elem);
+		}
+		if( numSpilled > 0) {
+			inMemory.clear();
+			inMemory.addAll( listOI.getList( newList));
+			numSpilled = 0;
+			deleteSpillFile();
+		}
+		return newList;
+	}
+
+	/**
+	 *  Drop all the elements, and delete any spill file.
+	 */
+	public void clear() {
+		inMemory.clear();
+		numSpilled = 0;
+		deleteSpillFile();
+	}
+
+	private void deleteSpillFile() {
+		if( spillFile != null) {
+			if(!spillFile.delete()) {
+				LOG.warn(" Unable to delete collect spill file " + spillFile);
+			}
+			spillFile = null;
+		}
+	}
+
+	private void initSerialization() {
+		structFieldOIs = Arrays.asList( elementOI);
+		ObjectInspector structOI = ObjectInspectorFactory.getStandardStructObjectInspector(
+				Arrays.asList("elem"), structFieldOIs);
+		lazyStructOI = (LazyBinaryStructObjectInspector) LazyBinaryUtils.getLazyBinaryObjectInspectorFromTypeInfo(
+				TypeInfoUtils.getTypeInfoFromObjectInspector( structOI));
+		lazyField = lazyStructOI.getAllStructFieldRefs().get(0);
+		fromLazyConverter = ObjectInspectorConverters.getConverter( lazyField.getFieldObjectInspector(), elementOI);
+	}
+
+	private void spill() throws HiveException {
+		if( structFieldOIs == null) {
+			initSerialization();
+		}
+		try {
+			if( spillFile == null) {
+				spillFile = File.createTempFile("brickhouse-collect-", ".spill", spillDir);
+				//// In case a buffer is dropped without being read or cleared
+				spillFile.deleteOnExit();
+				LOG.info(" Spilling collected elements to " + spillFile);
+			}
+			DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( spillFile, true), 64*1024));
+			try {
+				ByteStream.Output serialized = new ByteStream.Output();
+				Object[] struct = new Object[1];
+				for(Object elem : inMemory) {
+					serialized.reset();
+					struct[0] = elem;
+					LazyBinarySerDe.serializeStruct( serialized, struct, structFieldOIs);
+					WritableUtils.writeVInt( out, serialized.getCount());
+					out.write( serialized.getData(), 0, serialized.getCount());
+				}
+			} finally {
+				out.close();
+			}
+		} catch(IOException ioExc) {
+			throw new HiveException("Unable to spill collected elements to " + spillFile, ioExc);
+		} catch(SerDeException serdeExc) {
+			throw new HiveException("Unable to serialize collected elements", serdeExc);
+		}
+		numSpilled += inMemory.size();
+		inMemory.clear();
+	}
+
+	private int readSpilled( Object newList, StandardListObjectInspector listOI) throws IOException {
+		DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( spillFile), 64*1024));
+		try {
+			LazyBinaryStruct lazyStruct = (LazyBinaryStruct) LazyBinaryFactory.createLazyBinaryObject( lazyStructOI);
+			ByteArrayRef ref = new ByteArrayRef();
+			byte[] bytes = new byte[1024];
+			for(int i=0; i<numSpilled; ++i) {
+				int len = WritableUtils.readVInt( in);
+				if( len > bytes.length) {
+					bytes = new byte[ Math.max( len, bytes.length*2)];
+				}
+				in.readFully( bytes, 0, len);
+				ref.setData( bytes);
+				lazyStruct.init( ref, 0, len);
+				Object lazyElem = lazyStructOI.getStructFieldData( lazyStruct, lazyField);
+				//// The converter reuses its output, so take a copy
+				Object elem = ObjectInspectorUtils.copyToStandardObject( fromLazyConverter.convert( lazyElem), elementOI);
+				listOI.set( newList, i, elem);
+			}
+		} finally {
+			in.close();
+		}
+		return numSpilled;
+	}
+}
@@ -0,0 +1,297 @@
+package brickhouse.udf.collect;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.AbstractPrimitiveJavaObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BooleanObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ *  Copy objects to their standard representation, the same as
+ *   ObjectInspectorUtils.copyToStandardObject, but with the
+ *   type dispatch worked out once, in an evaluator's init(),
+ *   rather than for every object.
+ *
+ *  Java primitives which can't be changed, ( like String or Long ),
+ *   aren't copied at all.
+ */
+public interface StandardObjectCopier {
+
+	Object copy( Object obj);
+
+	final public class StandardObjectCopierFactory {
+		static public StandardObjectCopier GenerateCopier( ObjectInspector insp) {
+			return GenerateCopier( insp, ObjectInspectorCopyOption.DEFAULT);
+		}
+
+		static public StandardObjectCopier GenerateCopier( ObjectInspector insp, ObjectInspectorCopyOption option) {
+			switch( insp.getCategory()) {
+			case PRIMITIVE:
+				return GeneratePrimitiveCopier( (PrimitiveObjectInspector) insp, option);
+			case LIST:
+				return new ListCopier( (ListObjectInspector) insp, option);
+			case MAP:
+				return new MapCopier( (MapObjectInspector) insp, option);
+			case STRUCT:
+				return new StructCopier( (StructObjectInspector) insp, option);
+			default:
+				return new GenericCopier( insp, option);
+			}
+		}
+
+		static private StandardObjectCopier GeneratePrimitiveCopier( PrimitiveObjectInspector insp, ObjectInspectorCopyOption option) {
+			if( option == ObjectInspectorCopyOption.DEFAULT) {
+				option = insp.preferWritable() ? ObjectInspectorCopyOption.WRITABLE : ObjectInspectorCopyOption.JAVA;
+			}
+			if( option == ObjectInspectorCopyOption.JAVA) {
+				switch( insp.getPrimitiveCategory()) {
+				case BOOLEAN:
+				case BYTE:
+				case SHORT:
+				case INT:
+				case LONG:
+				case FLOAT:
+				case DOUBLE:
+				case STRING:
+				case VARCHAR:
+				case DECIMAL:
+					if( insp instanceof AbstractPrimitiveJavaObjectInspector) {
+						return new IdentityCopier();
+					}
+					return new JavaPrimitiveCopier( insp);
+				default:
+					return new GenericCopier( insp, option);
+				}
+			}
+			switch( insp.getPrimitiveCategory()) {
+			case STRING:
+				return new TextCopier( (StringObjectInspector) insp);
+			case LONG:
+				return new LongWritableCopier( (LongObjectInspector) insp);
+			case INT:
+				return new IntWritableCopier( (IntObjectInspector) insp);
+			case DOUBLE:
+				return new DoubleWritableCopier( (DoubleObjectInspector) insp);
+			case BOOLEAN:
+				return new BooleanWritableCopier( (BooleanObjectInspector) insp);
+			default:
+				return new GenericCopier( insp, option);
+			}
+		}
+	}
+
+	/**
+	 *  Immutable Java objects can just be shared
+	 */
+	class IdentityCopier implements StandardObjectCopier {
+		public Object copy( Object obj) {
+			return obj;
+		}
+	}
+
+	class JavaPrimitiveCopier implements StandardObjectCopier {
+		private final PrimitiveObjectInspector insp;
+
+		public JavaPrimitiveCopier( PrimitiveObjectInspector insp) {
+			this.insp = insp;
+		}
+
+		public Object copy( Object obj) {
+			return insp.getPrimitiveJavaObject( obj);
+		}
+	}
+
+	class TextCopier implements StandardObjectCopier {
+		private final StringObjectInspector insp;
+
+		public TextCopier( StringObjectInspector insp) {
+			this.insp = insp;
+		}
+
+		public Object copy( Object obj) {
+			if( obj == null) {
+				return null;
+			}
+			Text text = insp.getPrimitiveWritableObject( obj);
+			return text == null ? null : new Text( text);
+		}
+	}
+
+	class LongWritableCopier implements StandardObjectCopier {
+		private final LongObjectInspector insp;
+
+		public LongWritableCopier( LongObjectInspector insp) {
+			this.insp = insp;
+		}
+
+		public Object copy( Object obj) {
+			return obj == null ? null : new LongWritable( insp.get( obj));
+		}
+	}
+
+	class IntWritableCopier implements StandardObjectCopier {
+		private final IntObjectInspector insp;
+
+		public IntWritableCopier( IntObjectInspector insp) {
+			this.insp = insp;
+		}
+
+		public Object copy( Object obj) {
+			return obj == null ? null : new IntWritable( insp.get( obj));
+		}
+	}
+
+	class DoubleWritableCopier implements StandardObjectCopier {
+		private final DoubleObjectInspector insp;
+
+		public DoubleWritableCopier( DoubleObjectInspector insp) {
+			this.insp = insp;
+		}
+
+		public Object copy( Object obj) {
+			return obj == null ? null : new DoubleWritable( insp.get( obj));
+		}
+	}
+
+	class BooleanWritableCopier implements StandardObjectCopier {
+		private final BooleanObjectInspector insp;
+
+		public BooleanWritableCopier( BooleanObjectInspector insp) {
+			this.insp = insp;
+		}
+
+		public Object copy( Object obj) {
+			return obj == null ? null : new BooleanWritable( insp.get( obj));
+		}
+	}
+
+	class ListCopier implements StandardObjectCopier {
+		private final ListObjectInspector insp;
+		private final StandardObjectCopier elemCopier;
+
+		public ListCopier( ListObjectInspector insp, ObjectInspectorCopyOption option) {
+			this.insp = insp;
+			this.elemCopier = StandardObjectCopierFactory.GenerateCopier( insp.getListElementObjectInspector(), option);
+		}
+
+		public Object copy( Object obj) {
+			if( obj == null) {
+				return null;
+			}
+			int len = insp.getListLength( obj);
+			if( len < 0) {
+				return null;
+			}
+			List<Object> copy = new ArrayList<Object>( len);
+			for(int i=0; i<len; ++i) {
+				copy.add( elemCopier.copy( insp.getListElement( obj, i)));
+			}
+			return copy;
+		}
+	}
+
+	class MapCopier implements StandardObjectCopier {
+		private final MapObjectInspector insp;
+		private final StandardObjectCopier keyCopier;
+		private final StandardObjectCopier valCopier;
+
+		public MapCopier( MapObjectInspector insp, ObjectInspectorCopyOption option) {
+			this.insp = insp;
+			this.keyCopier = StandardObjectCopierFactory.GenerateCopier( insp.getMapKeyObjectInspector(), option);
+			this.valCopier = StandardObjectCopierFactory.GenerateCopier( insp.getMapValueObjectInspector(), option);
+		}
+
+		public Object copy( Object obj) {
+			if( obj == null) {
+				return null;
+			}
+			Map<?,?> map = insp.getMap( obj);
+			if( map == null) {
+				return null;
+			}
+			HashMap<Object,Object> copy = new HashMap<Object,Object>();
+			for( Map.Entry<?,?> entry : map.entrySet()) {
+				copy.put( keyCopier.copy( entry.getKey()), valCopier.copy( entry.getValue()));
+			}
+			return copy;
+		}
+	}
+
+	class StructCopier implements StandardObjectCopier {
+		private final StructObjectInspector insp;
+		private final List<? extends StructField> fields;
+		private final StandardObjectCopier[] fieldCopiers;
+
+		public StructCopier( StructObjectInspector insp, ObjectInspectorCopyOption option) {
+			this.insp = insp;
+			this.fields = insp.getAllStructFieldRefs();
+			this.fieldCopiers = new StandardObjectCopier[ fields.size()];
+			for(int i=0; i<fieldCopiers.length; ++i) {
+				fieldCopiers[i] = StandardObjectCopierFactory.GenerateCopier( fields.get(i).getFieldObjectInspector(), option);
+			}
+		}
+
+		public Object copy( Object obj) {
+			if( obj == null) {
+				return null;
+			}
+			List<Object> copy = new ArrayList<Object>( fieldCopiers.length);
+			for(int i=0; i<fieldCopiers.length; ++i) {
+				copy.add( fieldCopiers[i].copy( insp.getStructFieldData( obj, fields.get(i))));
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 *  Everything else, ( unions, timestamps, binary ... ), goes through Hive
+	 */
+	class GenericCopier implements StandardObjectCopier {
+		private final ObjectInspector insp;
+		private final ObjectInspectorCopyOption option;
+
+		public GenericCopier( ObjectInspector insp, ObjectInspectorCopyOption option) {
+			this.insp = insp;
+			this.option = option;
+		}
+
+		public Object copy( Object obj) {
+			return ObjectInspectorUtils.copyToStandardObject( obj, insp, option);
+		}
+	}
+}
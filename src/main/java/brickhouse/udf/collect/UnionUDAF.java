@@ -35,6 +35,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.StandardMapObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 
+import brickhouse.udf.collect.StandardObjectCopier.StandardObjectCopierFactory;
+
 
 @Description(name="union",
 value = "_FUNC_(x) - Returns a map which contains the union of an aggregation of maps " 
@@ -72,6 +74,8 @@ public class UnionUDAF extends AbstractGenericUDAFResolver {
 		// of objs)
 		private StandardMapObjectInspector moi;
 		private StandardMapObjectInspector internalMergeOI;
+		private StandardObjectCopier keyCopier;
+		private StandardObjectCopier valCopier;
 
 
 		static class MapAggBuffer implements AggregationBuffer {
@@ -88,6 +92,7 @@ public class UnionUDAF extends AbstractGenericUDAFResolver {
 				
 				inputKeyOI = inputMapOI.getMapKeyObjectInspector();
 				inputValOI = inputMapOI.getMapValueObjectInspector();
+				initCopiers();
 				
 				return ObjectInspectorFactory.getStandardMapObjectInspector(
 						   ObjectInspectorUtils.getStandardObjectInspector(inputKeyOI),
@@ -98,6 +103,7 @@ public class UnionUDAF extends AbstractGenericUDAFResolver {
 							.getStandardObjectInspector(parameters[0]);
 					inputValOI = ObjectInspectorUtils
 							.getStandardObjectInspector(parameters[0]);
+					initCopiers();
 					return (StandardMapObjectInspector) ObjectInspectorFactory
 							.getStandardMapObjectInspector(inputKeyOI, inputValOI);
 				} else {
@@ -105,11 +111,17 @@ public class UnionUDAF extends AbstractGenericUDAFResolver {
 					inputKeyOI = (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector();
 					inputValOI = internalMergeOI.getMapValueObjectInspector();
 					moi =  (StandardMapObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(internalMergeOI);
+					initCopiers();
 					return moi;
 				}
 			}
 		}
 
+		private void initCopiers() {
+			keyCopier = StandardObjectCopierFactory.GenerateCopier( inputKeyOI);
+			valCopier = StandardObjectCopierFactory.GenerateCopier( inputValOI);
+		}
+
 		@Override
 		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
 			AggregationBuffer buff= new MapAggBuffer();
@@ -157,8 +169,8 @@ public class UnionUDAF extends AbstractGenericUDAFResolver {
 		}
 
 		private void putIntoSet(Object key, Object val, MapAggBuffer myagg) {
-			Object keyCopy = ObjectInspectorUtils.copyToStandardObject(key, this.inputKeyOI );
-			Object valCopy = ObjectInspectorUtils.copyToStandardObject(val, this.inputValOI );
+			Object keyCopy = keyCopier.copy( key);
+			Object valCopy = valCopier.copy( val);
 			
 			myagg.collectMap.put(keyCopy, valCopy);
 		}
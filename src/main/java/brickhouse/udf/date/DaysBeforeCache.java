@@ -0,0 +1,107 @@
+package brickhouse.udf.date;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import org.apache.hadoop.io.Text;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ *  Number of days a YYYYMMDD date is before an as of date,
+ *   ( i.e Days.daysBetween( date, asofDate) ), for aggregations
+ *   which look up the date of every row.
+ *
+ *  The eight digits are read straight from the String or Text,
+ *   and looked up in a small table of the dates seen so far,
+ *   so Joda only has to parse each date once. Anything which
+ *   isn't eight digits is just parsed with Joda.
+ */
+public class DaysBeforeCache {
+	private static final DateTimeFormatter YYYYMMDD = DateTimeFormat.forPattern("yyyyMMdd");
+	private static final int TABLE_BITS = 9;
+
+	private final DateTime asofDate;
+	private final int[] dateKeys = new int[ 1 << TABLE_BITS];
+	private final int[] daysBefore = new int[ 1 << TABLE_BITS];
+
+	public DaysBeforeCache( DateTime asofDate) {
+		this.asofDate = asofDate;
+	}
+
+	public DaysBeforeCache( String asofDateStr) {
+		this( YYYYMMDD.parseDateTime( asofDateStr));
+	}
+
+	public DateTime getAsofDate() {
+		return asofDate;
+	}
+
+	public int daysBefore( String dateStr) {
+		int key = 0;
+		if( dateStr.length() == 8) {
+			for(int i=0; i<8; ++i) {
+				int digit = dateStr.charAt(i) - '0';
+				if( digit < 0 || digit > 9) {
+					return parseDaysBefore( dateStr);
+				}
+				key = key*10 + digit;
+			}
+			return lookup( key, dateStr);
+		}
+		return parseDaysBefore( dateStr);
+	}
+
+	public int daysBefore( Text dateText) {
+		int key = 0;
+		if( dateText.getLength() == 8) {
+			byte[] bytes = dateText.getBytes();
+			for(int i=0; i<8; ++i) {
+				int digit = bytes[i] - '0';
+				if( digit < 0 || digit > 9) {
+					return parseDaysBefore( dateText.toString());
+				}
+				key = key*10 + digit;
+			}
+			return lookup( key, null);
+		}
+		return parseDaysBefore( dateText.toString());
+	}
+
+	private int lookup( int key, String dateStr) {
+		//// Zero is never a valid date, so it marks an empty slot
+		int slot = (key * 0x9E3779B1) >>> (32 - TABLE_BITS);
+		if( dateKeys[slot] == key && key != 0) {
+			return daysBefore[slot];
+		}
+		if( dateStr == null) {
+			dateStr = Integer.toString( key);
+			while( dateStr.length() < 8) {
+				dateStr = "0" + dateStr;
+			}
+		}
+		int days = parseDaysBefore( dateStr);
+		dateKeys[slot] = key;
+		daysBefore[slot] = days;
+		return days;
+	}
+
+	private int parseDaysBefore( String dateStr) {
+		return Days.daysBetween( YYYYMMDD.parseDateTime( dateStr), asofDate).getDays();
+	}
+}
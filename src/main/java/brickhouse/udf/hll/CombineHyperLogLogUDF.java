@@ -21,51 +21,65 @@ import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
-import org.apache.hadoop.hive.serde2.lazy.ByteArrayRef;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.log4j.Logger;
 
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
-import com.clearspring.analytics.stream.cardinality.ICardinality;
-
 /**
- * Combine two HyperLogLog++ structures together.
+ * Combine HyperLogLog++ structures together.
+ *
+ * Either two or more binary blobs can be passed, or an array of blobs,
+ *  ( for example to roll up 30, 60 or 90 days of daily HyperLogLogs ).
+ *  The registers of each blob are merged straight from its bytes,
+ *  without building a HyperLogLogPlus for each one.
  *
  */
 @Description(name="combine_hyperloglog",
-    value = "_FUNC_(x) - Combined two  HyperLogLog++ binary blobs. "
+    value = "_FUNC_(x, y, ...) - Combine two or more HyperLogLog++ binary blobs. \n" +
+            "_FUNC_(array<binary>) - Combine an array of HyperLogLog++ binary blobs. "
 )
 public class CombineHyperLogLogUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger( CombineHyperLogLogUDF.class);
 	
-	private BinaryObjectInspector binary1Inspector;
-	private BinaryObjectInspector binary2Inspector;
+	private BinaryObjectInspector[] binaryInspectors;
+	private ListObjectInspector listInspector;
+	private BinaryObjectInspector elemInspector;
+	private final HLLBuffer hllBuffer = new HLLBuffer();
 	
 
 	@Override
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
 		try {
-		  Object blobObj1 = arg0[0].get();
-		  Object blobObj2 = arg0[1].get();
-		
-		  byte[] bref1 = this.binary1Inspector.getPrimitiveJavaObject(blobObj1);
-		  byte[] bref2 = this.binary2Inspector.getPrimitiveJavaObject(blobObj2);
-		
-		  if(bref1 != null && bref2 != null) {
-			  HyperLogLogPlus hll1 = HyperLogLogPlus.Builder.build( bref1 );
-			  HyperLogLogPlus hll2 = HyperLogLogPlus.Builder.build( bref2 );
-		  
-			  ICardinality merged = hll1.merge(hll2);
-		  return merged.getBytes();
+		  hllBuffer.reset();
+		  if( listInspector != null) {
+			  Object listObj = arg0[0].get();
+			  if( listObj == null) {
+				  return null;
+			  }
+			  int len = listInspector.getListLength( listObj);
+			  for(int i=0; i<len; ++i) {
+				  Object blobObj = listInspector.getListElement( listObj, i);
+				  /// Days without a HyperLogLog are just skipped
+				  if( blobObj != null) {
+					  mergeBlob( elemInspector.getPrimitiveWritableObject( blobObj));
+				  }
+			  }
 		  } else {
-			  return null;
+			  for(int i=0; i<arg0.length; ++i) {
+				  Object blobObj = arg0[i].get();
+				  if( blobObj == null) {
+					  return null;
+				  }
+				  mergeBlob( binaryInspectors[i].getPrimitiveWritableObject( blobObj));
+			  }
 		  }
-		  
+		  return hllBuffer.getPartial();
 		} catch(Exception e) {
 			LOG.error("Error", e);
 			throw new HiveException(e);
@@ -73,6 +87,14 @@ public class CombineHyperLogLogUDF extends GenericUDF {
 		
 	}
 
+	private void mergeBlob( BytesWritable bytes) throws Exception {
+		if( !hllBuffer.isReady()) {
+			/// Use the packed registers from the start, since we are merging whole blobs
+			hllBuffer.initDense( HLLBuffer.ReadPrecision( bytes.getBytes(), 0, bytes.getLength()));
+		}
+		hllBuffer.merge( bytes.getBytes(), 0, bytes.getLength());
+	}
+
 	@Override
 	public String getDisplayString(String[] arg0) {
 		StringBuilder sb = new StringBuilder("combine_hyperloglog( ");
@@ -88,21 +110,31 @@ public class CombineHyperLogLogUDF extends GenericUDF {
 	@Override
 	public ObjectInspector initialize(ObjectInspector[] arg0)
 			throws UDFArgumentException {
-		if( arg0.length != 2 ) {
-			throw new UDFArgumentException("combine_hyperloglog takes a pair of binary objects which were created with the hyperloglog UDAF");
-		}
-		if( arg0[0].getCategory() != Category.PRIMITIVE) {
-			throw new UDFArgumentException("combine_hyperloglog takes a pair of binary objects which were created with the hyperloglog UDAF");
-		}
-		PrimitiveObjectInspector primInsp = (PrimitiveObjectInspector) arg0[0];
-		if( primInsp.getPrimitiveCategory() != PrimitiveCategory.BINARY) {
-			throw new UDFArgumentException("hll_est_cardinality takes a binary object which was created with the hyperloglog UDAF");
+		if( arg0.length == 1 && arg0[0].getCategory() == Category.LIST) {
+			listInspector = (ListObjectInspector) arg0[0];
+			if( !IsBinaryInspector( listInspector.getListElementObjectInspector())) {
+				throw new UDFArgumentException("combine_hyperloglog takes an array of binary objects which were created with the hyperloglog UDAF");
+			}
+			elemInspector = (BinaryObjectInspector) listInspector.getListElementObjectInspector();
+		} else {
+			if( arg0.length < 2 ) {
+				throw new UDFArgumentException("combine_hyperloglog takes a pair of binary objects which were created with the hyperloglog UDAF, or an array of them");
+			}
+			binaryInspectors = new BinaryObjectInspector[ arg0.length];
+			for(int i=0; i<arg0.length; ++i) {
+				if( !IsBinaryInspector( arg0[i])) {
+					throw new UDFArgumentException("combine_hyperloglog takes a pair of binary objects which were created with the hyperloglog UDAF");
+				}
+				binaryInspectors[i] = (BinaryObjectInspector) arg0[i];
+			}
 		}
-		this.binary1Inspector = (BinaryObjectInspector) arg0[0];
-		this.binary2Inspector = (BinaryObjectInspector) arg0[1];
 		
 		return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
 	}
-	
+
+	private static boolean IsBinaryInspector( ObjectInspector oi) {
+		return oi.getCategory() == Category.PRIMITIVE
+				&& ((PrimitiveObjectInspector) oi).getPrimitiveCategory() == PrimitiveCategory.BINARY;
+	}
 
 }
@@ -27,10 +27,9 @@ import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.log4j.Logger;
 
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
-
 /**
  *  Interpret a list of strings as a sketch_set
  *  and return an estimated reach number
@@ -49,17 +48,12 @@ public class EstimateCardinalityUDF extends GenericUDF {
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
 		try {
 		  Object blobObj = arg0[0].get();
-		
-		  ///ByteArrayRef bref = this.binaryInspector.getPrimitiveJavaObject(blobObj);
-		  ///HyperLogLogPlus hll = HyperLogLogPlus.Builder.build( bref.getData() );
-		  
-		  byte[] bref = this.binaryInspector.getPrimitiveJavaObject(blobObj);
-		  if(bref == null)
+		  if(blobObj == null)
 			  return null;
-		  HyperLogLogPlus hll = HyperLogLogPlus.Builder.build( bref );
-		  
-		  
-		  return hll.cardinality();
+		
+		  /// Read the registers in place, rather than building a HyperLogLogPlus for every row
+		  BytesWritable bref = this.binaryInspector.getPrimitiveWritableObject(blobObj);
+		  return HLLEstimator.Estimate( bref.getBytes(), 0, bref.getLength());
 		} catch(Exception e) {
 			LOG.error("Error", e);
 			throw new HiveException(e);
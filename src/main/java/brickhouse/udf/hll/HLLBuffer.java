@@ -18,67 +18,454 @@ package brickhouse.udf.hll;
  **/
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
 import org.apache.log4j.Logger;
 
+import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
-import com.clearspring.analytics.stream.cardinality.ICardinality;
 
+/**
+ * Aggregation buffer for HyperLogLog++ estimators.
+ *
+ * Rather than keeping a HyperLogLogPlus object, and building another one
+ * for every partial which is merged, the registers are kept here directly,
+ * and serialized partials are merged straight from their bytes.
+ *
+ * Registers start out in a sparse list of (index, value) pairs, so that
+ * groups with only a few items don't allocate all 2^p registers, and are
+ * converted to packed registers, in the same ints as the serialized form,
+ * once the sparse list would be larger.
+ *
+ * Packed registers are merged a whole int at a time, with a branch-free
+ * maximum of the six 5-bit fields, so that merging many partials is a
+ * straight loop over two int arrays, which the JIT can vectorize.
+ *
+ * The bytes are the same as HyperLogLogPlus.getBytes() for the normal format
+ * ( and can be read with HyperLogLogPlus.Builder.build() ), i.e.
+ *   int p, int sp, int format (0), int number of bytes,
+ *   then the registers as big-endian ints, with six 5-bit registers per int.
+ * Serialized estimators in the sparse format (1) can also be merged, but the
+ * result is always written in the normal format.
+ */
 public class HLLBuffer implements AggregationBuffer {
   private static final Logger LOG = Logger.getLogger(HLLBuffer.class);
-  private ICardinality hll;
+  static final int NORMAL_FORMAT = 0;
+  static final int SPARSE_FORMAT = 1;
+  static final int HEADER_SIZE = 16;
+  static final int REGISTERS_PER_WORD = 6;
+  static final int REGISTER_BITS = 5;
+  static final int REGISTER_MASK = 31;
+  // registers 0, 2 and 4 of a packed int, and the bit above each of them
+  static final int EVEN_REGISTERS = 0x01F07C1F;
+  static final int EVEN_GUARDS = 0x02008020;
+  // sparse entries are packed as (index << 8 | value) into a positive int
+  static final int MAX_MERGE_PRECISION = 23;
+  private static final int MIN_SPARSE_CAPACITY = 16;
+
+  public static class HLLMergeException extends CardinalityMergeException {
+    private static final long serialVersionUID = 1L;
+
+    public HLLMergeException(String message) {
+      super(message);
+    }
+  }
+
   private int precision;
-  
+  // packed registers, once converted from the sparse list
+  private int[] words;
+  // serialized registers of the partial being merged
+  private int[] scratchWords;
+  // sparse list of (index << 8 | value), only sorted by compactSparse
+  private int[] sparse;
+  private int sparseSize;
+  private int sparseSorted;
+
   public HLLBuffer() {
-    hll = null;
     precision = 0;
   }
-  
+
   public boolean isReady() {
     return precision != 0;
   }
 
   public void init(int precision) {
     this.precision = precision;
-    hll = new HyperLogLogPlus(precision);
+    words = null;
+    sparse = new int[Math.min(MIN_SPARSE_CAPACITY, sparseThreshold())];
+    sparseSize = 0;
+    sparseSorted = 0;
+  }
+
+  /**
+   * Start with packed registers, for when many partials are going to be merged.
+   */
+  public void initDense(int precision) {
+    this.precision = precision;
+    words = new int[NumWords(precision)];
+    sparse = null;
+    sparseSize = 0;
+    sparseSorted = 0;
   }
 
   public void reset() {
-    hll = null;
     precision = 0;
+    words = null;
+    sparse = null;
+    sparseSize = 0;
+    sparseSorted = 0;
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  public boolean isSparse() {
+    return words == null;
   }
 
   public void addItem(String str) {
-    hll.offer(str);
+    // the same hash as HyperLogLogPlus.offer
+    offerHash(MurmurHash.hash64(str));
+  }
+
+  /**
+   * Add an item from its UTF-8 bytes, ( for example the backing bytes of a Text ).
+   * This hashes the same bytes as addItem(String) would on a UTF-8 platform,
+   * without decoding and re-encoding a String for every row.
+   */
+  public void addItemBytes(byte[] bytes, int length) {
+    offerHash(MurmurHash.hash64(bytes, length));
+  }
+
+  void offerHash(long hash) {
+    int idx = (int) (hash >>> (64 - precision));
+    int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+    setRegister(idx, rank);
   }
 
+  private void setRegister(int idx, int value) {
+    if (words != null) {
+      SetPacked(words, idx, Math.min(value, REGISTER_MASK));
+    } else {
+      if (sparseSize == sparse.length) {
+        growSparse(1);
+      }
+      if (words != null) {
+        setRegister(idx, value);
+      } else {
+        sparse[sparseSize++] = (idx << 8) | Math.min(value, REGISTER_MASK);
+      }
+    }
+  }
+
+  /**
+   * The sparse list costs an int per entry, so stop using it
+   * once it would take more memory than the packed registers.
+   */
+  private int sparseThreshold() {
+    return NumWords(precision);
+  }
+
+  /**
+   * Make room for at least the given number of entries in the sparse list,
+   * or convert to registers if the list would be too large.
+   */
+  private void growSparse(int needed) {
+    compactSparse();
+    int threshold = sparseThreshold();
+    if (sparseSize + needed > threshold) {
+      toDense();
+    } else if (sparseSize + needed > sparse.length) {
+      int capacity = Math.max(sparse.length * 2, sparseSize + needed);
+      sparse = Arrays.copyOf(sparse, Math.min(capacity, threshold));
+    }
+  }
+
+  /**
+   * Sort the sparse list by index, and keep only the largest
+   * value for each index.
+   */
+  private void compactSparse() {
+    if (sparseSorted == sparseSize) {
+      return;
+    }
+    Arrays.sort(sparse, 0, sparseSize);
+    int last = -1;
+    for (int i = 0; i < sparseSize; ++i) {
+      int entry = sparse[i];
+      if (last >= 0 && (sparse[last] >>> 8) == (entry >>> 8)) {
+        // sorted, so a later entry for the same index has a larger value
+        sparse[last] = entry;
+      } else {
+        sparse[++last] = entry;
+      }
+    }
+    sparseSize = last + 1;
+    sparseSorted = sparseSize;
+  }
+
+  private void toDense() {
+    compactSparse();
+    int[] dense = new int[NumWords(precision)];
+    for (int i = 0; i < sparseSize; ++i) {
+      SetPacked(dense, sparse[i] >>> 8, sparse[i] & 0xff);
+    }
+    LOG.debug("converting " + sparseSize + " sparse entries to " + (1 << precision) + " registers");
+    words = dense;
+    sparse = null;
+    sparseSize = 0;
+    sparseSorted = 0;
+  }
+
+  /**
+   * Merge a serialized HyperLogLogPlus, without deserializing it.
+   */
   public void merge(byte[] buffer) throws IOException,
       CardinalityMergeException {
     if (buffer == null) {
       return;
     }
-    
-    ICardinality other = HyperLogLogPlus.Builder.build(buffer);
-    
-    // if hll estimator hasn't been allocated yet, just set it equal to the partial 
-    if (hll == null) {
-      LOG.debug("hll is null; other.sizeof = " + other.sizeof());
-      hll = other;
-      precision = (int) Math.ceil(Math.log(other.sizeof())/Math.log(2.0));
-      LOG.debug("precision set to: " + precision);
+    merge(buffer, 0, buffer.length);
+  }
+
+  /**
+   * The precision of a serialized HyperLogLogPlus.
+   */
+  static int ReadPrecision(byte[] buffer, int offset, int length) throws IOException {
+    if (length < 12) {
+      throw new IOException("Serialized HyperLogLogPlus is too short: " + length + " bytes");
+    }
+    int p = ReadInt(buffer, offset);
+    if (p < HyperLogLogUDAF.MIN_PRECISION || p > MAX_MERGE_PRECISION) {
+      throw new IOException("Unsupported HyperLogLogPlus precision " + p);
+    }
+    return p;
+  }
+
+  public void merge(byte[] buffer, int offset, int length) throws IOException,
+      CardinalityMergeException {
+    int p = ReadPrecision(buffer, offset, length);
+    int format = ReadInt(buffer, offset + 8);
+
+    // if hll estimator hasn't been allocated yet, take the precision from the partial
+    if (precision == 0) {
+      init(p);
+    } else if (p != precision) {
+      throw new HLLMergeException("Cannot merge estimators of different sizes; precision " + p + " and " + precision);
+    }
+
+    if (format == NORMAL_FORMAT) {
+      mergeNormal(buffer, offset, length);
+    } else if (format == SPARSE_FORMAT) {
+      mergeSparse(buffer, offset, length);
     } else {
-      hll.merge(other);
+      throw new IOException("Unknown HyperLogLogPlus format " + format);
+    }
+  }
+
+  private void mergeNormal(byte[] buffer, int offset, int length) throws IOException {
+    int numBytes = ReadInt(buffer, offset + 12);
+    if (numBytes < 0 || HEADER_SIZE + numBytes > length) {
+      throw new IOException("Truncated HyperLogLogPlus; expected " + numBytes + " bytes of registers");
+    }
+    int m = 1 << precision;
+    int numWords = Math.min(numBytes / 4, NumWords(precision));
+    int start = offset + HEADER_SIZE;
+    if (words == null) {
+      // stay sparse if the partial only has a few registers set
+      int nonZero = CountNonZero(buffer, start, numWords, m);
+      if (sparseSize + nonZero > sparse.length) {
+        growSparse(nonZero);
+      }
+    }
+    if (words != null) {
+      if (scratchWords == null || scratchWords.length < numWords) {
+        scratchWords = new int[NumWords(precision)];
+      }
+      ReadWords(buffer, start, scratchWords, numWords);
+      MaxRegisters(words, scratchWords, numWords);
+      return;
+    }
+    for (int w = 0; w < numWords; ++w) {
+      int word = ReadInt(buffer, start + 4 * w);
+      if (word == 0) {
+        continue;
+      }
+      int idx = w * REGISTERS_PER_WORD;
+      for (int j = 0; j < REGISTERS_PER_WORD && idx < m; ++j, ++idx) {
+        int value = (word >>> (REGISTER_BITS * j)) & REGISTER_MASK;
+        if (value != 0) {
+          sparse[sparseSize++] = (idx << 8) | value;
+        }
+      }
+    }
+  }
+
+  /**
+   * The sparse format is a list of (int length, varint) pairs, terminated
+   * by a length of -1. The varints are deltas of sorted, encoded hashes
+   * at the sparse precision sp.
+   */
+  private void mergeSparse(byte[] buffer, int offset, int length) throws IOException {
+    int sp = ReadInt(buffer, offset + 4);
+    if (sp < precision || sp > 32) {
+      throw new IOException("Invalid HyperLogLogPlus sparse precision " + sp);
+    }
+    int end = offset + length;
+    int pos = offset + 12;
+    int encoded = 0;
+    while (pos + 4 <= end) {
+      int len = ReadInt(buffer, pos);
+      pos += 4;
+      if (len <= 0) {
+        return;
+      }
+      if (pos + len > end) {
+        break;
+      }
+      encoded += ReadUnsignedVarInt(buffer, pos, len);
+      pos += len;
+      setRegister(SparseIndex(encoded, precision, sp), SparseRank(encoded, precision, sp));
+    }
+    throw new IOException("Truncated sparse HyperLogLogPlus");
+  }
+
+  static int SparseIndex(int encoded, int p, int sp) {
+    int sparseIndex = (encoded & 1) == 1 ? encoded >>> 7 : encoded >>> 1;
+    return sparseIndex >>> (sp - p);
+  }
+
+  static int SparseRank(int encoded, int p, int sp) {
+    if ((encoded & 1) == 1) {
+      return ((encoded >>> 1) & 63) ^ 63;
+    }
+    return Integer.numberOfLeadingZeros(encoded << (p + 31 - sp)) + 1;
+  }
+
+  /**
+   * Take the maximum of each packed register in acc and other, keeping it in acc.
+   * There are no branches or calls in the loop, so that it can be vectorized.
+   */
+  static void MaxRegisters(int[] acc, int[] other, int numWords) {
+    for (int w = 0; w < numWords; ++w) {
+      int a = acc[w];
+      int b = other[w];
+      int aEven = a & EVEN_REGISTERS;
+      int bEven = b & EVEN_REGISTERS;
+      int aOdd = (a >>> REGISTER_BITS) & EVEN_REGISTERS;
+      int bOdd = (b >>> REGISTER_BITS) & EVEN_REGISTERS;
+      // with the guard bit set above each register of a, the subtraction
+      // can't borrow across registers, and leaves the guard bit set if a >= b
+      int evenGE = ((aEven | EVEN_GUARDS) - bEven) & EVEN_GUARDS;
+      int oddGE = ((aOdd | EVEN_GUARDS) - bOdd) & EVEN_GUARDS;
+      int evenMask = evenGE - (evenGE >>> REGISTER_BITS);
+      int oddMask = oddGE - (oddGE >>> REGISTER_BITS);
+      acc[w] = ((aEven & evenMask) | (bEven & ~evenMask))
+          | (((aOdd & oddMask) | (bOdd & ~oddMask)) << REGISTER_BITS);
     }
   }
 
+  /**
+   * Read the big-endian ints of serialized registers.
+   */
+  static void ReadWords(byte[] buffer, int start, int[] words, int numWords) {
+    ByteBuffer.wrap(buffer, start, 4 * numWords).asIntBuffer().get(words, 0, numWords);
+  }
+
+  private static void SetPacked(int[] words, int idx, int value) {
+    int w = idx / REGISTERS_PER_WORD;
+    int shift = REGISTER_BITS * (idx - w * REGISTERS_PER_WORD);
+    if (((words[w] >>> shift) & REGISTER_MASK) < value) {
+      words[w] = (words[w] & ~(REGISTER_MASK << shift)) | (value << shift);
+    }
+  }
+
+  private static int CountNonZero(byte[] buffer, int start, int numWords, int m) {
+    int count = 0;
+    for (int w = 0; w < numWords; ++w) {
+      int word = ReadInt(buffer, start + 4 * w);
+      if (word == 0) {
+        continue;
+      }
+      int idx = w * REGISTERS_PER_WORD;
+      for (int j = 0; j < REGISTERS_PER_WORD && idx < m; ++j, ++idx) {
+        if (((word >>> (REGISTER_BITS * j)) & REGISTER_MASK) != 0) {
+          ++count;
+        }
+      }
+    }
+    return count;
+  }
+
+  static int ReadInt(byte[] buffer, int pos) {
+    return ((buffer[pos] & 0xff) << 24) | ((buffer[pos + 1] & 0xff) << 16)
+        | ((buffer[pos + 2] & 0xff) << 8) | (buffer[pos + 3] & 0xff);
+  }
+
+  static void WriteInt(byte[] buffer, int pos, int val) {
+    buffer[pos] = (byte) (val >>> 24);
+    buffer[pos + 1] = (byte) (val >>> 16);
+    buffer[pos + 2] = (byte) (val >>> 8);
+    buffer[pos + 3] = (byte) val;
+  }
+
+  private static int ReadUnsignedVarInt(byte[] buffer, int pos, int len) throws IOException {
+    int value = 0;
+    int shift = 0;
+    for (int i = 0; i < len; ++i) {
+      int b = buffer[pos + i];
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+      if (shift > 35) {
+        throw new IOException("Variable length quantity is too long");
+      }
+    }
+    throw new IOException("Truncated variable length quantity");
+  }
+
+  /**
+   * Number of ints in the serialized registers, ( the same as the RegisterSet size ).
+   */
+  static int NumWords(int p) {
+    int bits = (1 << p) / REGISTERS_PER_WORD;
+    return (bits % 32 == 0) ? bits : bits + 1;
+  }
+
+  /**
+   * Serialize packed registers in the normal format.
+   */
+  static byte[] WriteWords(int p, int[] words) {
+    int numWords = NumWords(p);
+    byte[] bytes = new byte[HEADER_SIZE + 4 * numWords];
+    WriteInt(bytes, 0, p);
+    WriteInt(bytes, 4, 0);
+    WriteInt(bytes, 8, NORMAL_FORMAT);
+    WriteInt(bytes, 12, 4 * numWords);
+    for (int w = 0; w < numWords; ++w) {
+      WriteInt(bytes, HEADER_SIZE + 4 * w, words[w]);
+    }
+    return bytes;
+  }
+
   public byte[] getPartial() throws IOException {
-    if (hll == null) {
+    if (precision == 0) {
       return null;
     }
-    
-    return hll.getBytes();
+    if (words != null) {
+      return WriteWords(precision, words);
+    }
+    compactSparse();
+    int[] packed = new int[NumWords(precision)];
+    for (int i = 0; i < sparseSize; ++i) {
+      SetPacked(packed, sparse[i] >>> 8, sparse[i] & 0xff);
+    }
+    return WriteWords(precision, packed);
   }
 
-}
\ No newline at end of file
+}
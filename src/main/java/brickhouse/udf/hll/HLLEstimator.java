@@ -0,0 +1,312 @@
+package brickhouse.udf.hll;
+
+/**
+ * Copyright 2012,2013 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import org.apache.log4j.Logger;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+
+/**
+ * Estimate the cardinality of a serialized HyperLogLogPlus, reading the
+ * registers straight from the bytes, rather than building the estimator.
+ *
+ * Gives the same estimates as HyperLogLogPlus.cardinality(). The constants
+ * for each precision, ( alpha * m^2, the linear counting threshold, and the
+ * empirical raw estimate and bias arrays ), are looked up once and cached,
+ * and the harmonic mean uses a table of 2^-r rather than Math.pow.
+ *
+ * The raw estimate and bias arrays are package private in stream-lib, so
+ * they are read by reflection. If that fails, estimates fall back to
+ * HyperLogLogPlus.Builder.build(bytes).cardinality().
+ */
+public class HLLEstimator {
+  private static final Logger LOG = Logger.getLogger(HLLEstimator.class);
+  // number of nearest raw estimates to average the bias over
+  private static final int NUM_NEIGHBORS = 6;
+  private static final double[] INVERSE_POW2 = new double[HLLBuffer.REGISTER_MASK + 1];
+  private static final HLLEstimator[] ESTIMATORS = new HLLEstimator[HLLBuffer.MAX_MERGE_PRECISION + 1];
+  private static double[] thresholdData;
+  private static double[][] rawEstimateData;
+  private static double[][] biasData;
+  private static boolean hasBiasData;
+  // estimators are shared by all threads, so the bias neighbors are kept per thread
+  private static final ThreadLocal<Neighbors> NEIGHBORS = new ThreadLocal<Neighbors>() {
+    @Override
+    protected Neighbors initialValue() {
+      return new Neighbors();
+    }
+  };
+
+  private static class Neighbors {
+    final double[] dist = new double[NUM_NEIGHBORS];
+    final int[] idx = new int[NUM_NEIGHBORS];
+  }
+
+  static {
+    for (int r = 0; r < INVERSE_POW2.length; ++r) {
+      INVERSE_POW2[r] = Math.pow(2.0, -r);
+    }
+    try {
+      thresholdData = (double[]) GetStaticField("thresholdData");
+      rawEstimateData = (double[][]) GetStaticField("rawEstimateData");
+      biasData = (double[][]) GetStaticField("biasData");
+      hasBiasData = true;
+    } catch (Exception exc) {
+      LOG.warn("Unable to read HyperLogLogPlus bias correction data; estimates will build a HyperLogLogPlus", exc);
+      hasBiasData = false;
+    }
+  }
+
+  /**
+   * Whether stream-lib's bias correction data could be read, so that
+   * estimates don't need to build a HyperLogLogPlus.
+   */
+  static boolean HasBiasData() {
+    return hasBiasData;
+  }
+
+  private static Object GetStaticField(String name) throws Exception {
+    Field field = HyperLogLogPlus.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return field.get(null);
+  }
+
+  private final int m;
+  private final double alphaMM;
+  private final double threshold;
+  private final double[] rawEstimates;
+  private final double[] biases;
+
+  private HLLEstimator(int p) {
+    this.m = 1 << p;
+    switch (p) {
+    case 4:
+      alphaMM = 0.673 * m * m;
+      break;
+    case 5:
+      alphaMM = 0.697 * m * m;
+      break;
+    case 6:
+      alphaMM = 0.709 * m * m;
+      break;
+    default:
+      alphaMM = (0.7213 / (1 + 1.079 / m)) * m * m;
+    }
+    int tableIdx = p - HyperLogLogUDAF.MIN_PRECISION;
+    if (tableIdx < thresholdData.length && tableIdx < rawEstimateData.length && tableIdx < biasData.length) {
+      threshold = thresholdData[tableIdx];
+      rawEstimates = rawEstimateData[tableIdx];
+      biases = biasData[tableIdx];
+    } else {
+      threshold = 0;
+      rawEstimates = null;
+      biases = null;
+    }
+  }
+
+  /**
+   * The cached estimator for a precision, or null if the
+   * bias correction data isn't available.
+   */
+  public static HLLEstimator ForPrecision(int p) {
+    if (!hasBiasData || p < HyperLogLogUDAF.MIN_PRECISION || p >= ESTIMATORS.length) {
+      return null;
+    }
+    HLLEstimator estimator = ESTIMATORS[p];
+    if (estimator == null) {
+      // harmless if two threads race to create the same one
+      estimator = new HLLEstimator(p);
+      if (estimator.rawEstimates == null) {
+        return null;
+      }
+      ESTIMATORS[p] = estimator;
+    }
+    return estimator;
+  }
+
+  /**
+   * Estimate the cardinality of a serialized HyperLogLogPlus.
+   */
+  public static long Estimate(byte[] buffer, int offset, int length) throws IOException {
+    int p = HLLBuffer.ReadPrecision(buffer, offset, length);
+    int format = HLLBuffer.ReadInt(buffer, offset + 8);
+    HLLEstimator estimator = ForPrecision(p);
+    if (estimator == null) {
+      return BuildEstimator(buffer, offset, length).cardinality();
+    }
+    if (format == HLLBuffer.NORMAL_FORMAT) {
+      int numBytes = HLLBuffer.ReadInt(buffer, offset + 12);
+      if (numBytes < 0 || HLLBuffer.HEADER_SIZE + numBytes > length) {
+        throw new IOException("Truncated HyperLogLogPlus; expected " + numBytes + " bytes of registers");
+      }
+      return estimator.cardinality(buffer, offset + HLLBuffer.HEADER_SIZE, numBytes / 4);
+    } else if (format == HLLBuffer.SPARSE_FORMAT) {
+      return SparseCardinality(buffer, offset, length);
+    } else {
+      throw new IOException("Unknown HyperLogLogPlus format " + format);
+    }
+  }
+
+  private static HyperLogLogPlus BuildEstimator(byte[] buffer, int offset, int length) throws IOException {
+    byte[] bytes = buffer;
+    if (offset != 0 || length != buffer.length) {
+      bytes = new byte[length];
+      System.arraycopy(buffer, offset, bytes, 0, length);
+    }
+    return HyperLogLogPlus.Builder.build(bytes);
+  }
+
+  /**
+   * Estimate from packed registers, serialized as big-endian ints.
+   */
+  public long cardinality(byte[] buffer, int start, int numWords) {
+    double sum = 0;
+    int zeros = 0;
+    int idx = 0;
+    for (int w = 0; w < numWords && idx < m; ++w) {
+      int word = HLLBuffer.ReadInt(buffer, start + 4 * w);
+      for (int j = 0; j < HLLBuffer.REGISTERS_PER_WORD && idx < m; ++j, ++idx) {
+        int r = (word >>> (HLLBuffer.REGISTER_BITS * j)) & HLLBuffer.REGISTER_MASK;
+        sum += INVERSE_POW2[r];
+        if (r == 0) {
+          ++zeros;
+        }
+      }
+    }
+    // registers missing from a short array are zero
+    for (; idx < m; ++idx) {
+      sum += 1.0;
+      ++zeros;
+    }
+    return estimate(sum, zeros);
+  }
+
+  /**
+   * Estimate from packed registers.
+   */
+  public long cardinality(int[] words) {
+    double sum = 0;
+    int zeros = 0;
+    int idx = 0;
+    for (int w = 0; w < words.length && idx < m; ++w) {
+      int word = words[w];
+      for (int j = 0; j < HLLBuffer.REGISTERS_PER_WORD && idx < m; ++j, ++idx) {
+        int r = (word >>> (HLLBuffer.REGISTER_BITS * j)) & HLLBuffer.REGISTER_MASK;
+        sum += INVERSE_POW2[r];
+        if (r == 0) {
+          ++zeros;
+        }
+      }
+    }
+    for (; idx < m; ++idx) {
+      sum += 1.0;
+      ++zeros;
+    }
+    return estimate(sum, zeros);
+  }
+
+  /**
+   * The same steps as HyperLogLogPlus.cardinality(), from the sum of 2^-register
+   * and the number of zero registers.
+   */
+  private long estimate(double registerSum, int zeros) {
+    double estimate = alphaMM * (1 / registerSum);
+    double estimatePrime = estimate;
+    if (estimate <= 5 * m) {
+      estimatePrime = estimate - estimateBias(estimate);
+    }
+    double h;
+    if (zeros > 0) {
+      h = m * Math.log(m / (double) zeros);
+    } else {
+      h = estimatePrime;
+    }
+    if (h < threshold) {
+      return Math.round(h);
+    }
+    return Math.round(estimatePrime);
+  }
+
+  /**
+   * Average the bias of the nearest raw estimates. Like stream-lib's TreeMap
+   * of squared distances, a later raw estimate at the same distance replaces
+   * an earlier one, and the biases are summed in order of distance.
+   */
+  private double estimateBias(double estimate) {
+    Neighbors neighbors = NEIGHBORS.get();
+    double[] nearestDist = neighbors.dist;
+    int[] nearestIdx = neighbors.idx;
+    int numNearest = 0;
+    for (int i = 0; i < rawEstimates.length; ++i) {
+      double diff = estimate - rawEstimates[i];
+      double dist = diff * diff;
+      int pos = numNearest;
+      while (pos > 0 && nearestDist[pos - 1] > dist) {
+        --pos;
+      }
+      if (pos > 0 && nearestDist[pos - 1] == dist) {
+        nearestIdx[pos - 1] = i;
+        continue;
+      }
+      if (pos == NUM_NEIGHBORS) {
+        continue;
+      }
+      int last = Math.min(numNearest, NUM_NEIGHBORS - 1);
+      for (int k = last; k > pos; --k) {
+        nearestDist[k] = nearestDist[k - 1];
+        nearestIdx[k] = nearestIdx[k - 1];
+      }
+      nearestDist[pos] = dist;
+      nearestIdx[pos] = i;
+      if (numNearest < NUM_NEIGHBORS) {
+        ++numNearest;
+      }
+    }
+    double bias = 0;
+    for (int k = 0; k < numNearest; ++k) {
+      bias += biases[nearestIdx[k]];
+    }
+    return bias / numNearest;
+  }
+
+  /**
+   * The sparse format is estimated with linear counting, over 2^sp registers,
+   * of which the number of sparse entries are set.
+   */
+  private static long SparseCardinality(byte[] buffer, int offset, int length) throws IOException {
+    int sp = HLLBuffer.ReadInt(buffer, offset + 4);
+    int end = offset + length;
+    int pos = offset + 12;
+    int numEntries = 0;
+    while (pos + 4 <= end) {
+      int len = HLLBuffer.ReadInt(buffer, pos);
+      pos += 4;
+      if (len <= 0) {
+        int sm = (int) Math.pow(2.0, sp);
+        return (int) Math.round(sm * Math.log(sm / (double) (sm - numEntries)));
+      }
+      pos += len;
+      ++numEntries;
+    }
+    throw new IOException("Truncated sparse HyperLogLogPlus");
+  }
+
+}
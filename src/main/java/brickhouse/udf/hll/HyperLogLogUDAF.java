@@ -32,6 +32,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.log4j.Logger;
 
 /**
@@ -168,8 +170,14 @@ public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
       // string object to be added to hll
       Object strObj = parameters[0];
       
-      String str = inputStrOI.getPrimitiveJavaObject(strObj);
-      myagg.addItem(str);
+      if (inputStrOI.preferWritable()) {
+        // hash the Text bytes directly, rather than decoding a String
+        Text text = inputStrOI.getPrimitiveWritableObject(strObj);
+        myagg.addItemBytes(text.getBytes(), text.getLength());
+      } else {
+        String str = inputStrOI.getPrimitiveJavaObject(strObj);
+        myagg.addItem(str);
+      }
     }
 
     @Override
@@ -182,9 +190,9 @@ public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
       try {
         HLLBuffer myagg = (HLLBuffer) agg;
         
-        byte[] partialBuffer = this.partialBufferOI
-            .getPrimitiveJavaObject(partial);
-        myagg.merge(partialBuffer);
+        BytesWritable partialBytes = this.partialBufferOI
+            .getPrimitiveWritableObject(partial);
+        myagg.merge(partialBytes.getBytes(), 0, partialBytes.getLength());
       } catch (Exception e) {
         throw new HiveException(e);
       }
@@ -0,0 +1,389 @@
+package brickhouse.udf.hll;
+/**
+ * Copyright 2012,2013 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.clearspring.analytics.hash.MurmurHash;
+
+/**
+ * Count events, and estimate uniques with a HyperLogLog++, over several day periods,
+ *  ( i.e produce 1, 7 and 30 day counts and reach ), like multiday_sketch,
+ *  but for windows with too many uniques for a 5000 item sketch set.
+ *
+ *  <p>Input is a YYYYMMDD representation of the date associated with the events,
+ *   a bigint of the event count for that date,
+ *   an array of uniques for that date ( or a single unique string ),
+ *   a YYYYMMDD representation of the date counts are being generated as of,
+ *   an array of ints representing the days being counted over ( ie. [1,7,30] ),
+ *   and an optional constant precision for the HyperLogLogs.
+ *  </p>
+ *
+ *  <p>Output is an array of structs containing the number of days, the sum of events
+ *   over that period, and the HyperLogLog++ of the uniques, which can be passed to
+ *   hll_est_cardinality or combine_hyperloglog. The partial aggregation has the same type.
+ *  </p>
+ *
+ *  The number of days between the event date and the as of date is computed
+ *   once per row, and each unique is hashed once, and added to all the windows
+ *   the row falls in.
+ */
+@Description(name="multiday_hll",
+    value = "_FUNC_(string event_date, bigint cnt, array<string> uniques, string asof_date, array<int> days, [int precision]) - " +
+            "Returns an array of structs with the number of days, the count and a HyperLogLog++ of the uniques for each period."
+)
+public class MultiDayHyperLogLogUDAF extends AbstractGenericUDAFResolver {
+  private static final Logger LOG = Logger.getLogger(MultiDayHyperLogLogUDAF.class);
+  static final String NUM_DAYS_FIELD = "num_days";
+  static final String COUNT_FIELD = "cnt";
+  static final String HLL_FIELD = "hll";
+
+  /**
+   *  Parameters are event date, event count, event uniques, asof date, period array, and optional precision
+   */
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+      throws SemanticException {
+    if (parameters.length != 5 && parameters.length != 6) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "multiday_hll takes date, count, array, date, array, [precision] ");
+    }
+    if (!IsPrimitive(parameters[0], PrimitiveCategory.STRING)
+        || !IsPrimitive(parameters[3], PrimitiveCategory.STRING)) {
+      throw new UDFArgumentTypeException(0,
+          "multiday_hll dates must be strings in YYYYMMDD format");
+    }
+    if (!IsPrimitive(parameters[1], PrimitiveCategory.LONG)
+        && !IsPrimitive(parameters[1], PrimitiveCategory.INT)) {
+      throw new UDFArgumentTypeException(1,
+          "multiday_hll count must be a bigint, not " + parameters[1].getTypeName());
+    }
+    if (!IsPrimitive(parameters[2], PrimitiveCategory.STRING)
+        && !(parameters[2].getCategory() == Category.LIST
+        && IsPrimitive(((ListTypeInfo) parameters[2]).getListElementTypeInfo(), PrimitiveCategory.STRING))) {
+      throw new UDFArgumentTypeException(2,
+          "multiday_hll uniques must be an array of strings, or a string, not " + parameters[2].getTypeName());
+    }
+    if (parameters[4].getCategory() != Category.LIST
+        || !IsPrimitive(((ListTypeInfo) parameters[4]).getListElementTypeInfo(), PrimitiveCategory.INT)) {
+      throw new UDFArgumentTypeException(4,
+          "multiday_hll days must be an array of ints, not " + parameters[4].getTypeName());
+    }
+    if (parameters.length == 6 && !IsPrimitive(parameters[5], PrimitiveCategory.INT)) {
+      throw new UDFArgumentTypeException(5,
+          "multiday_hll precision must be an int, not " + parameters[5].getTypeName());
+    }
+    return new MultiDayHLLUDAFEvaluator();
+  }
+
+  private static boolean IsPrimitive(TypeInfo typeInfo, PrimitiveCategory category) {
+    return typeInfo.getCategory() == Category.PRIMITIVE
+        && ((PrimitiveTypeInfo) typeInfo).getPrimitiveCategory() == category;
+  }
+
+  public static class MultiDayHLLUDAFEvaluator extends GenericUDAFEvaluator {
+    private static DateTimeFormatter yyyymmdd = DateTimeFormat.forPattern("yyyyMMdd");
+    private int[] daysArr;
+    private DateTime asofDate;
+    private int precision = HyperLogLogUDAF.DEFAULT_PRECISION;
+    // the last event date, and its days before the asof date
+    private String lastDateStr;
+    private int lastDaysBetween;
+
+    // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
+    private StringObjectInspector dtInspector;
+    private PrimitiveObjectInspector countInspector;
+    private ListObjectInspector uniqListInspector;
+    private StringObjectInspector uniqInspector;
+    private StringObjectInspector asofInspector;
+    private ListObjectInspector daysArrInspector;
+
+    // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations
+    private ListObjectInspector partialListInspector;
+    private StructObjectInspector partialStructInspector;
+    private StructField numDaysField;
+    private StructField countField;
+    private StructField hllField;
+
+    static class MultiDayHLLBuffer implements AggregationBuffer {
+      long[] counts;
+      HLLBuffer[] hlls;
+    }
+
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+        throws HiveException {
+      super.init(m, parameters);
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        dtInspector = (StringObjectInspector) parameters[0];
+        countInspector = (PrimitiveObjectInspector) parameters[1];
+        if (parameters[2].getCategory() == Category.LIST) {
+          uniqListInspector = (ListObjectInspector) parameters[2];
+          uniqInspector = (StringObjectInspector) uniqListInspector.getListElementObjectInspector();
+        } else {
+          uniqInspector = (StringObjectInspector) parameters[2];
+        }
+        asofInspector = (StringObjectInspector) parameters[3];
+        daysArrInspector = (ListObjectInspector) parameters[4];
+        if (parameters.length > 5) {
+          if (!(parameters[5] instanceof ConstantObjectInspector)) {
+            throw new HiveException("multiday_hll precision must be an int constant");
+          }
+          precision = PrimitiveObjectInspectorUtils.getInt(
+              ((ConstantObjectInspector) parameters[5]).getWritableConstantValue(), (PrimitiveObjectInspector) parameters[5]);
+          if (precision < HyperLogLogUDAF.MIN_PRECISION || precision > HyperLogLogUDAF.MAX_PRECISION) {
+            throw new HiveException("multiday_hll precision must be in [4,16], but you supplied " + precision + ".");
+          }
+        }
+      } else {
+        partialListInspector = (ListObjectInspector) parameters[0];
+        partialStructInspector = (StructObjectInspector) partialListInspector.getListElementObjectInspector();
+        numDaysField = partialStructInspector.getStructFieldRef(NUM_DAYS_FIELD);
+        countField = partialStructInspector.getStructFieldRef(COUNT_FIELD);
+        hllField = partialStructInspector.getStructFieldRef(HLL_FIELD);
+        // precision comes from the partial HyperLogLogs
+        precision = 0;
+      }
+
+      // The partial aggregate type is the same as the final type
+      List<String> fieldNames = new ArrayList<String>();
+      List<ObjectInspector> fieldInspectors = new ArrayList<ObjectInspector>();
+      fieldNames.add(NUM_DAYS_FIELD);
+      fieldInspectors.add(PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+      fieldNames.add(COUNT_FIELD);
+      fieldInspectors.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+      fieldNames.add(HLL_FIELD);
+      fieldInspectors.add(PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector);
+      return ObjectInspectorFactory.getStandardListObjectInspector(
+          ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors));
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      MultiDayHLLBuffer buff = new MultiDayHLLBuffer();
+      reset(buff);
+      return buff;
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      MultiDayHLLBuffer myagg = (MultiDayHLLBuffer) agg;
+      if (daysArr == null) {
+        // allocated once we've seen the days array
+        myagg.counts = null;
+        myagg.hlls = null;
+        return;
+      }
+      myagg.counts = new long[daysArr.length];
+      myagg.hlls = new HLLBuffer[daysArr.length];
+      for (int i = 0; i < daysArr.length; ++i) {
+        myagg.hlls[i] = new HLLBuffer();
+        if (precision != 0) {
+          myagg.hlls[i].init(precision);
+        }
+      }
+    }
+
+    private void setDaysArr(Object obj) throws HiveException {
+      if (obj == null) {
+        throw new HiveException("multiday_hll days array cannot be null");
+      }
+      IntObjectInspector dayInspector = (IntObjectInspector) daysArrInspector.getListElementObjectInspector();
+      int len = daysArrInspector.getListLength(obj);
+      daysArr = new int[len];
+      for (int i = 0; i < len; ++i) {
+        daysArr[i] = dayInspector.get(daysArrInspector.getListElement(obj, i));
+      }
+    }
+
+    /**
+     * Days between the event date and the asof date, only parsing the
+     * date again when it changes.
+     */
+    private int daysBetween(String dateStr) {
+      if (!dateStr.equals(lastDateStr)) {
+        lastDaysBetween = Days.daysBetween(yyyymmdd.parseDateTime(dateStr), asofDate).getDays();
+        lastDateStr = dateStr;
+      }
+      return lastDaysBetween;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+        throws HiveException {
+      if (parameters[0] == null) {
+        return;
+      }
+      MultiDayHLLBuffer myagg = (MultiDayHLLBuffer) agg;
+      if (daysArr == null) {
+        setDaysArr(parameters[4]);
+      }
+      if (myagg.counts == null) {
+        reset(myagg);
+      }
+      if (asofDate == null) {
+        asofDate = yyyymmdd.parseDateTime(asofInspector.getPrimitiveJavaObject(parameters[3]));
+      }
+
+      int daysBetween = daysBetween(dtInspector.getPrimitiveJavaObject(parameters[0]));
+      long cnt = parameters[1] == null ? 0 : PrimitiveObjectInspectorUtils.getLong(parameters[1], countInspector);
+      int numWindows = 0;
+      for (int i = 0; i < daysArr.length; ++i) {
+        if (daysBetween < daysArr[i]) {
+          myagg.counts[i] += cnt;
+          ++numWindows;
+        }
+      }
+      if (numWindows == 0 || parameters[2] == null) {
+        return;
+      }
+
+      if (uniqListInspector != null) {
+        Object uniqList = parameters[2];
+        int len = uniqListInspector.getListLength(uniqList);
+        for (int j = 0; j < len; ++j) {
+          Object uniqObj = uniqListInspector.getListElement(uniqList, j);
+          if (uniqObj != null) {
+            addHash(myagg, daysBetween, hashUnique(uniqObj));
+          }
+        }
+      } else {
+        addHash(myagg, daysBetween, hashUnique(parameters[2]));
+      }
+    }
+
+    /**
+     * The same hash as HLLBuffer.addItem, from the Text bytes if we can.
+     */
+    private long hashUnique(Object uniqObj) {
+      if (uniqInspector.preferWritable()) {
+        Text text = uniqInspector.getPrimitiveWritableObject(uniqObj);
+        return MurmurHash.hash64(text.getBytes(), text.getLength());
+      } else {
+        return MurmurHash.hash64(uniqInspector.getPrimitiveJavaObject(uniqObj));
+      }
+    }
+
+    private void addHash(MultiDayHLLBuffer myagg, int daysBetween, long hash) {
+      for (int i = 0; i < daysArr.length; ++i) {
+        if (daysBetween < daysArr[i]) {
+          myagg.hlls[i].offerHash(hash);
+        }
+      }
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+        throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      MultiDayHLLBuffer myagg = (MultiDayHLLBuffer) agg;
+      int len = partialListInspector.getListLength(partial);
+      if (daysArr == null) {
+        daysArr = new int[len];
+        for (int i = 0; i < len; ++i) {
+          Object struct = partialListInspector.getListElement(partial, i);
+          daysArr[i] = PrimitiveObjectInspectorUtils.getInt(
+              partialStructInspector.getStructFieldData(struct, numDaysField),
+              (PrimitiveObjectInspector) numDaysField.getFieldObjectInspector());
+        }
+      }
+      if (len != daysArr.length) {
+        throw new HiveException("multiday_hll partial has " + len + " periods, rather than " + daysArr.length);
+      }
+      if (myagg.counts == null) {
+        reset(myagg);
+      }
+
+      BinaryObjectInspector hllInspector = (BinaryObjectInspector) hllField.getFieldObjectInspector();
+      for (int i = 0; i < len; ++i) {
+        Object struct = partialListInspector.getListElement(partial, i);
+        Object cntObj = partialStructInspector.getStructFieldData(struct, countField);
+        if (cntObj != null) {
+          myagg.counts[i] += PrimitiveObjectInspectorUtils.getLong(cntObj,
+              (PrimitiveObjectInspector) countField.getFieldObjectInspector());
+        }
+        Object hllObj = partialStructInspector.getStructFieldData(struct, hllField);
+        if (hllObj != null) {
+          BytesWritable hllBytes = hllInspector.getPrimitiveWritableObject(hllObj);
+          try {
+            myagg.hlls[i].merge(hllBytes.getBytes(), 0, hllBytes.getLength());
+          } catch (Exception e) {
+            LOG.error("Error merging HyperLogLog for " + daysArr[i] + " days", e);
+            throw new HiveException(e);
+          }
+        }
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      MultiDayHLLBuffer myagg = (MultiDayHLLBuffer) agg;
+      if (myagg.counts == null) {
+        return null;
+      }
+      List<Object[]> ret = new ArrayList<Object[]>();
+      for (int i = 0; i < daysArr.length; ++i) {
+        try {
+          ret.add(new Object[] { daysArr[i], myagg.counts[i], myagg.hlls[i].getPartial() });
+        } catch (Exception e) {
+          LOG.error("Error serializing HyperLogLog for " + daysArr[i] + " days", e);
+          throw new HiveException(e);
+        }
+      }
+      return ret;
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate(agg);
+    }
+  }
+
+}
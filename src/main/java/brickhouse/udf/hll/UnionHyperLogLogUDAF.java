@@ -28,6 +28,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspe
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.log4j.Logger;
 
 /**
@@ -120,8 +121,9 @@ public class UnionHyperLogLogUDAF extends AbstractGenericUDAFResolver {
       
     	try {
     	  HLLBuffer myagg = (HLLBuffer) agg;
-        byte[] partialBuffer = this.inputAndPartialBinaryOI.getPrimitiveJavaObject(partial);
-        myagg.merge(partialBuffer);
+        // merge the registers from the bytes, without copying them out of the BytesWritable
+        BytesWritable partialBytes = this.inputAndPartialBinaryOI.getPrimitiveWritableObject(partial);
+        myagg.merge(partialBytes.getBytes(), 0, partialBytes.getLength());
     	} catch(Exception e) {
     		LOG.error("Error",e);
     		throw new HiveException(e);
@@ -15,8 +15,6 @@ package brickhouse.udf.json;
  * limitations under the License.
  *
  **/
-import java.io.IOException;
-
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
@@ -29,9 +27,6 @@ import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.Pr
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.BooleanObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.io.BooleanWritable;
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonProcessingException;
-import org.codehaus.jackson.map.ObjectMapper;
 
 /**
  *  Generate an arbitrary Hive structure from a JSON string,
@@ -55,25 +50,12 @@ value = "_FUNC_(json,template,convert_flag) - Returns an arbitrary Hive Structur
 public class FromJsonUDF extends GenericUDF {
 	private StringObjectInspector jsonInspector;
 	private InspectorHandle inspHandle;
-	private boolean convertFromCamelCase = false;
 	
 
 	@Override
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
-		try {
-		   String jsonString = jsonInspector.getPrimitiveJavaObject( arg0[0].get());
-		   if(jsonString == null)
-		       return null;
-		
-		    ObjectMapper jacksonParser = new ObjectMapper();
-			JsonNode jsonNode = jacksonParser.readTree( jsonString);
-			
-			return inspHandle.parseJson(jsonNode);
-		} catch (JsonProcessingException e) {
-			throw new HiveException(e);
-		} catch (IOException e) {
-			throw new HiveException(e);
-		}
+		/// Stream the tokens into the template, skipping anything not in it
+		return InspectorHandle.InspectorHandleFactory.ParseJson( inspHandle, jsonInspector, arg0[0].get());
 	}
 
 	@Override
@@ -92,13 +74,24 @@ public class FromJsonUDF extends GenericUDF {
 		    throw new UDFArgumentException("from_json expects a JSON string and a template object");
 		}
 		jsonInspector = (StringObjectInspector) arg0[0];
+		inspHandle = GenerateTemplateHandle( arg0[1], arg0.length > 2 ? arg0[2] : null, true);
+		
+		return inspHandle.getReturnType();
+	}
+	
+	/**
+	 *  Generate the InspectorHandle for a template object, or a constant type string,
+	 *   with an optional constant camel case flag.
+	 */
+	static InspectorHandle GenerateTemplateHandle( ObjectInspector templateInsp, ObjectInspector flagInsp, boolean reuseResult) throws UDFArgumentException {
+		boolean convertFromCamelCase = false;
 		/// Parse the camel case flag
-		if( arg0.length >2) {
-	       if( !( arg0[2] instanceof ConstantObjectInspector)
-	    		   || !(arg0[2] instanceof BooleanObjectInspector)) {
+		if( flagInsp != null) {
+	       if( !( flagInsp instanceof ConstantObjectInspector)
+	    		   || !(flagInsp instanceof BooleanObjectInspector)) {
 		      throw new UDFArgumentException("camel case flag must be true or false");
 		   }
-	       ConstantObjectInspector camelFlagInsp = (ConstantObjectInspector) arg0[2];
+	       ConstantObjectInspector camelFlagInsp = (ConstantObjectInspector) flagInsp;
 	       Object camelFlagObj = camelFlagInsp.getWritableConstantValue();
 	       if(camelFlagObj instanceof Boolean) {
 	    	  convertFromCamelCase = (Boolean)camelFlagObj;
@@ -108,20 +101,18 @@ public class FromJsonUDF extends GenericUDF {
 		      throw new UDFArgumentException("camel case flag must be true or false");
 	       }
 		}
-		if( arg0[1].getCategory() == Category.PRIMITIVE
-		        && ((PrimitiveObjectInspector)arg0[1]).getPrimitiveCategory() == PrimitiveCategory.STRING) {
-		    if( !( arg0[1] instanceof ConstantObjectInspector) ) {
+		if( templateInsp.getCategory() == Category.PRIMITIVE
+		        && ((PrimitiveObjectInspector)templateInsp).getPrimitiveCategory() == PrimitiveCategory.STRING) {
+		    if( !( templateInsp instanceof ConstantObjectInspector) ) {
 		       throw new UDFArgumentException("typeinfo string must be constant");
 		    }
-		    ConstantObjectInspector typeInsp = (ConstantObjectInspector) arg0[1];
+		    ConstantObjectInspector typeInsp = (ConstantObjectInspector) templateInsp;
 		    
 		    String typeStr = typeInsp.getWritableConstantValue().toString();
-		    inspHandle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo(typeStr, convertFromCamelCase);
+		    return InspectorHandle.InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo(typeStr, convertFromCamelCase, reuseResult);
 		} else {
-		  inspHandle = InspectorHandle.InspectorHandleFactory.GenerateInspectorHandle( arg0[1], convertFromCamelCase);
+		    return InspectorHandle.InspectorHandleFactory.GenerateInspectorHandle( templateInsp, convertFromCamelCase, reuseResult);
 		}
-		
-		return inspHandle.getReturnType();
 	}
 	
 	
@@ -1,13 +1,17 @@
 package brickhouse.udf.json;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
@@ -23,7 +27,15 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
@@ -31,21 +43,80 @@ import org.joda.time.format.ISODateTimeFormat;
 public interface InspectorHandle {
 	
 	Object parseJson(JsonNode jsonNode);
+
+	/**
+	 *  Parse straight from the token stream, without building a JsonNode.
+	 *   The parser is on the first token of the value when called,
+	 *   and is left on its last token, ( as with skipChildren() ).
+	 */
+	Object parseJson(JsonParser parser) throws IOException;
     ObjectInspector getReturnType();	
     
     final public class InspectorHandleFactory {
+    	/// JsonFactory is thread-safe, and recycles its parsing buffers
+    	static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    	/**
+    	 *  Parse a JSON string, read with the given inspector,
+    	 *   without going through a JsonNode tree. Text values are
+    	 *   parsed from their UTF-8 bytes, without decoding to a String.
+    	 */
+    	static public Object ParseJson( InspectorHandle handle, StringObjectInspector strInsp, Object jsonObj) throws HiveException {
+    		try {
+    			JsonParser parser = CreateParser( strInsp, jsonObj);
+    			if( parser == null)
+    				return null;
+    			try {
+    				if( parser.nextToken() == null) {
+    					throw new HiveException("No JSON content to parse");
+    				}
+    				return handle.parseJson( parser);
+    			} finally {
+    				parser.close();
+    			}
+    		} catch (IOException e) {
+    			throw new HiveException(e);
+    		}
+    	}
+
+    	/**
+    	 *  A parser over a JSON string, or null if the string is null.
+    	 */
+    	static public JsonParser CreateParser( StringObjectInspector strInsp, Object jsonObj) throws IOException {
+    		if( jsonObj == null)
+    			return null;
+    		if( strInsp.preferWritable()) {
+    			Text jsonText = strInsp.getPrimitiveWritableObject( jsonObj);
+    			if( jsonText == null)
+    				return null;
+    			return JSON_FACTORY.createJsonParser( jsonText.getBytes(), 0, jsonText.getLength());
+    		} else {
+    			String jsonString = strInsp.getPrimitiveJavaObject( jsonObj);
+    			if( jsonString == null)
+    				return null;
+    			return JSON_FACTORY.createJsonParser( jsonString);
+    		}
+    	}
+
     	static public InspectorHandle GenerateInspectorHandle( ObjectInspector insp) throws UDFArgumentException {
     		return GenerateInspectorHandle( insp, false);
     	}
     	static public InspectorHandle GenerateInspectorHandle( ObjectInspector insp, boolean convertFromCamelCase) throws UDFArgumentException {
+    		return GenerateInspectorHandle( insp, convertFromCamelCase, false);
+    	}
+    	/**
+    	 *  With reuseResult, structs are parsed into the same Object[] for every row,
+    	 *   ( except within arrays and maps ), for UDFs which return a new value each row.
+    	 */
+    	static public InspectorHandle GenerateInspectorHandle( ObjectInspector insp, boolean convertFromCamelCase, boolean reuseResult) throws UDFArgumentException {
     		Category cat = insp.getCategory();
     		switch( cat)  {
     		case LIST:
     			return new InspectorHandle.ListHandle( (ListObjectInspector)insp );
     		case MAP:
-    			return new InspectorHandle.MapHandle( (MapObjectInspector)insp);
+    			return new InspectorHandle.MapHandle( (MapObjectInspector)insp, reuseResult);
     		case STRUCT:
-    			return new InspectorHandle.StructHandle( (StructObjectInspector)insp, convertFromCamelCase);
+    			return new InspectorHandle.StructHandle( (StructObjectInspector)insp, convertFromCamelCase, reuseResult);
     		case PRIMITIVE:
     			return new InspectorHandle.PrimitiveHandle( (PrimitiveObjectInspector)insp);
     		}
@@ -53,9 +124,12 @@ public interface InspectorHandle {
     	}
     	
     	static public InspectorHandle GenerateInspectorHandleFromTypeInfo( String typeStr, boolean convertFromCamelCase ) throws UDFArgumentException {
+    	    return GenerateInspectorHandleFromTypeInfo( typeStr, convertFromCamelCase, false);
+    	}
+    	static public InspectorHandle GenerateInspectorHandleFromTypeInfo( String typeStr, boolean convertFromCamelCase, boolean reuseResult ) throws UDFArgumentException {
     	    TypeInfo typeInfo = TypeInfoUtils.getTypeInfoFromTypeString(typeStr);
     	    ObjectInspector objInsp = TypeInfoUtils.getStandardJavaObjectInspectorFromTypeInfo(typeInfo);
-    	    return GenerateInspectorHandle(objInsp, convertFromCamelCase);
+    	    return GenerateInspectorHandle(objInsp, convertFromCamelCase, reuseResult);
     	}
     }
     /** 
@@ -68,20 +142,93 @@ public interface InspectorHandle {
     	 */
     	private List<String> fieldNames;
     	private List<InspectorHandle> handleList;
-    	private boolean convertFromCamelCase = false;
+    	private InspectorHandle[] handles;
+    	/// The JSON keys for each field, converted to camel case once, here
+    	private String[] jsonNames;
+    	/// Field positions, grouped by the length of their JSON key
+    	private int[][] slotsByLength;
+    	/// If set, the same array is returned for every row
+    	private Object[] reusedVals;
     	
     	
     	public StructHandle( StructObjectInspector structInspector, boolean convertFromCamelCase) throws UDFArgumentException {
+    		this( structInspector, convertFromCamelCase, false);
+    	}
+
+    	/**
+    	 *  If reuseResult is true, parseJson returns the same Object[] each time,
+    	 *   so the result can't be held on to between rows. 
+    	 */
+    	public StructHandle( StructObjectInspector structInspector, boolean convertFromCamelCase, boolean reuseResult) throws UDFArgumentException {
     		fieldNames = new ArrayList<String>();
     		handleList = new ArrayList<InspectorHandle>();
-    		this.convertFromCamelCase = convertFromCamelCase;
     		
     		List<? extends StructField> refs =  structInspector.getAllStructFieldRefs();
+    		jsonNames = new String[ refs.size()];
+    		int maxLength = 0;
     		for( StructField ref : refs) {
+    			InspectorHandle fieldHandle = InspectorHandleFactory.GenerateInspectorHandle( ref.getFieldObjectInspector(), false, reuseResult);
+    			/// Jackson interns field names, so most matches are by reference
+    			String jsonName = ( convertFromCamelCase ? FromJsonUDF.ToCamelCase( ref.getFieldName()) : ref.getFieldName()).intern();
+    			jsonNames[ fieldNames.size()] = jsonName;
+    			maxLength = Math.max( maxLength, jsonName.length());
     			fieldNames.add( ref.getFieldName());
-    			InspectorHandle fieldHandle = InspectorHandleFactory.GenerateInspectorHandle( ref.getFieldObjectInspector() );
     			handleList.add( fieldHandle);
     		}
+    		handles = handleList.toArray( new InspectorHandle[ handleList.size()]);
+
+    		int[] numByLength = new int[ maxLength + 1];
+    		for( String jsonName : jsonNames) {
+    			numByLength[ jsonName.length()]++;
+    		}
+    		slotsByLength = new int[ maxLength + 1][];
+    		for(int len=0; len<=maxLength; ++len) {
+    			slotsByLength[len] = new int[ numByLength[len]];
+    			numByLength[len] = 0;
+    		}
+    		for(int i=0; i<jsonNames.length; ++i) {
+    			int len = jsonNames[i].length();
+    			slotsByLength[len][ numByLength[len]++] = i;
+    		}
+    		if( reuseResult) {
+    			reusedVals = new Object[ jsonNames.length];
+    		}
+    	}
+
+    	/**
+    	 *  The field position for a JSON key, or -1 if it isn't in the template.
+    	 *   Only the fields with keys of the same length are compared.
+    	 */
+    	int fieldSlot( String jsonName) {
+    		int len = jsonName.length();
+    		if( len >= slotsByLength.length) {
+    			return -1;
+    		}
+    		int[] slots = slotsByLength[len];
+    		for(int i=0; i<slots.length; ++i) {
+    			if( jsonNames[ slots[i]] == jsonName) {
+    				return slots[i];
+    			}
+    		}
+    		for(int i=0; i<slots.length; ++i) {
+    			if( jsonNames[ slots[i]].equals( jsonName)) {
+    				return slots[i];
+    			}
+    		}
+    		return -1;
+    	}
+
+    	/// Fields missing from the JSON are null
+    	private Object[] newValues() {
+    		if( reusedVals != null) {
+    			Arrays.fill( reusedVals, null);
+    			return reusedVals;
+    		}
+    		return new Object[ handles.length];
+    	}
+
+    	private Object result( Object[] vals) {
+    		return reusedVals != null ? vals : Arrays.asList( vals);
     	}
 
     	@Override
@@ -89,21 +236,37 @@ public interface InspectorHandle {
     		/// For structs, they just return a list of object values
     		if(jsonNode == null || jsonNode.isNull())
     			return null;
-    		List<Object> valList = new ArrayList<Object>();
+    		Object[] vals = newValues();
     		
-    		for(int i=0; i< fieldNames.size(); ++i) {
-    			String key = fieldNames.get( i);
-    			if( this.convertFromCamelCase) {
-    				key = FromJsonUDF.ToCamelCase(key);
-    			}
-    			JsonNode valNode = jsonNode.get( key);
-    			InspectorHandle valHandle = handleList.get(i);
-    			
-    			Object valObj = valHandle.parseJson(valNode);
-    			valList.add( valObj);
+    		for(int i=0; i< handles.length; ++i) {
+    			JsonNode valNode = jsonNode.get( jsonNames[i]);
+    			vals[i] = handles[i].parseJson(valNode);
     		}
     		
-    		return valList;
+    		return result( vals);
+    	}
+
+    	@Override
+    	public Object parseJson(JsonParser parser) throws IOException {
+    		JsonToken token = parser.getCurrentToken();
+    		if( token == JsonToken.VALUE_NULL)
+    			return null;
+    		Object[] vals = newValues();
+    		if( token != JsonToken.START_OBJECT) {
+    			parser.skipChildren();
+    			return result( vals);
+    		}
+    		while( parser.nextToken() == JsonToken.FIELD_NAME) {
+    			int slot = fieldSlot( parser.getCurrentName());
+    			parser.nextToken();
+    			if( slot >= 0) {
+    				vals[slot] = handles[slot].parseJson( parser);
+    			} else {
+    				/// Skip over anything not in the template
+    				parser.skipChildren();
+    			}
+    		}
+    		return result( vals);
     	}
 
     	@Override
@@ -121,36 +284,173 @@ public interface InspectorHandle {
 	class MapHandle implements InspectorHandle {
 		private InspectorHandle mapValHandle;
 		private StandardMapObjectInspector retInspector;
+		/// bigint, int and double values are read straight into reused writables,
+		///  if the map itself can be reused; otherwise null 
+		private PrimitiveCategory writableCategory;
+		private Map<String,Object> reusedMap;
+		private List<Object> writablePool;
+		/// The largest map seen so far, to size new maps
+		private int sizeHint = 0;
 
 		/// for JSON maps (or "objects"), the keys are always string objects
 		///  
 		public MapHandle( MapObjectInspector insp) throws UDFArgumentException {
+			this( insp, false);
+		}
+
+		/**
+		 *  If reuseResult is true, parseJson returns the same map each time,
+		 *   and primitive values are returned as reused writables.
+		 */
+		public MapHandle( MapObjectInspector insp, boolean reuseResult) throws UDFArgumentException {
 			if( !(insp.getMapKeyObjectInspector() instanceof StringObjectInspector)) {
 				throw new RuntimeException( " JSON maps can only have strings as keys");
 			}
 			mapValHandle = InspectorHandleFactory.GenerateInspectorHandle( insp.getMapValueObjectInspector() );
+			if( reuseResult) {
+				reusedMap = new HashMap<String,Object>();
+				ObjectInspector valInsp = insp.getMapValueObjectInspector();
+				if( valInsp.getCategory() == Category.PRIMITIVE) {
+					switch( ((PrimitiveObjectInspector)valInsp).getPrimitiveCategory()) {
+					case LONG:
+					case INT:
+					case DOUBLE:
+						writableCategory = ((PrimitiveObjectInspector)valInsp).getPrimitiveCategory();
+						writablePool = new ArrayList<Object>();
+						break;
+					default:
+						break;
+					}
+				}
+			}
+		}
+
+		private Map<String,Object> newMap() {
+			if( reusedMap != null) {
+				reusedMap.clear();
+				return reusedMap;
+			}
+			return new HashMap<String,Object>( Math.max( 16, (int)(sizeHint/0.75f) + 1));
+		}
+
+		private Object finish( Map<String,Object> map) {
+			sizeHint = Math.max( sizeHint, map.size());
+			return map;
+		}
+
+		/// The i-th value of a map, reusing the writable from earlier rows
+		private Object pooledWritable( int i) {
+			if( i < writablePool.size()) {
+				return writablePool.get( i);
+			}
+			Object writable;
+			switch( writableCategory) {
+			case LONG:
+				writable = new LongWritable();
+				break;
+			case INT:
+				writable = new IntWritable();
+				break;
+			default:
+				writable = new DoubleWritable();
+				break;
+			}
+			writablePool.add( writable);
+			return writable;
+		}
+
+		/// Set a writable from a Java value, as returned by the value's handle 
+		private Object toWritable( int i, Object val) {
+			if( val == null) {
+				return null;
+			}
+			Object writable = pooledWritable( i);
+			switch( writableCategory) {
+			case LONG:
+				((LongWritable)writable).set( (Long)val);
+				break;
+			case INT:
+				((IntWritable)writable).set( (Integer)val);
+				break;
+			default:
+				((DoubleWritable)writable).set( (Double)val);
+				break;
+			}
+			return writable;
 		}
+
+		/// Read a number straight from the parser, with the same results as PrimitiveHandle
+		private Object readWritable( int i, JsonParser parser) throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if( token == JsonToken.VALUE_NULL) {
+				return null;
+			}
+			Object writable = pooledWritable( i);
+			if( !token.isNumeric()) {
+				parser.skipChildren();
+			}
+			switch( writableCategory) {
+			case LONG:
+				((LongWritable)writable).set( token.isNumeric() ? PrimitiveHandle.LongValue( parser) : 0L);
+				break;
+			case INT:
+				((IntWritable)writable).set( token.isNumeric() ? PrimitiveHandle.IntValue( parser) : 0);
+				break;
+			default:
+				((DoubleWritable)writable).set( token.isNumeric() ? parser.getDoubleValue() : 0.0);
+				break;
+			}
+			return writable;
+		}
+
 		@Override
 		public Object parseJson(JsonNode jsonNode) {
 			if(jsonNode == null || jsonNode.isNull()) 
 				return null;
-			Map<String,Object> newMap = (Map<String,Object>)retInspector.create();
+			Map<String,Object> newMap = newMap();
 			
 			Iterator<String> keys = jsonNode.getFieldNames();
+			int i = 0;
 			while( keys.hasNext()) {
 				String key = keys.next();
 				JsonNode valNode = jsonNode.get( key);
 				Object val = mapValHandle.parseJson(valNode);
-				newMap.put( key, val);
+				newMap.put( key, writableCategory != null ? toWritable( i++, val) : val);
+			}
+			return finish( newMap);
+		}
+
+		@Override
+		public Object parseJson(JsonParser parser) throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if( token == JsonToken.VALUE_NULL)
+				return null;
+			Map<String,Object> newMap = newMap();
+			if( token != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				return finish( newMap);
 			}
-			return newMap;
+			int i = 0;
+			while( parser.nextToken() == JsonToken.FIELD_NAME) {
+				String key = parser.getCurrentName();
+				parser.nextToken();
+				if( writableCategory != null) {
+					newMap.put( key, readWritable( i++, parser));
+				} else {
+					newMap.put( key, mapValHandle.parseJson( parser));
+				}
+			}
+			return finish( newMap);
 		}
 
 		@Override
 		public ObjectInspector getReturnType() {
+			ObjectInspector valInspector = writableCategory != null
+					? PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector( writableCategory)
+					: mapValHandle.getReturnType();
 			retInspector = ObjectInspectorFactory.getStandardMapObjectInspector(
 					PrimitiveObjectInspectorFactory.javaStringObjectInspector,
-					mapValHandle.getReturnType() );
+					valInspector );
 			return retInspector;
 		}
 		
@@ -183,6 +483,26 @@ public interface InspectorHandle {
 			return newList;
 		}
 
+		@Override
+		public Object parseJson(JsonParser parser) throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if( token == JsonToken.VALUE_NULL)
+				return null;
+			List<Object> newList = new ArrayList<Object>();
+			if( token == JsonToken.START_ARRAY) {
+				while( parser.nextToken() != JsonToken.END_ARRAY) {
+					newList.add( elemHandle.parseJson( parser));
+				}
+			} else if( token == JsonToken.START_OBJECT) {
+				/// Same as JsonNode.getElements(), the values of an object
+				while( parser.nextToken() == JsonToken.FIELD_NAME) {
+					parser.nextToken();
+					newList.add( elemHandle.parseJson( parser));
+				}
+			}
+			return newList;
+		}
+
 		@Override
 		public ObjectInspector getReturnType() {
 			retInspector =  ObjectInspectorFactory.getStandardListObjectInspector( elemHandle.getReturnType() );
@@ -241,6 +561,93 @@ public interface InspectorHandle {
 			return null;
 		}
 
+		/**
+		 *  Parse a value from the token stream, with the same results
+		 *   as the JsonNode accessors, which return zero or false
+		 *   for values of the wrong type.
+		 */
+		@Override
+		public Object parseJson(JsonParser parser) throws IOException {
+			JsonToken token = parser.getCurrentToken();
+			if( token == JsonToken.VALUE_NULL) {
+				return null;
+			}
+			switch( category) {
+			case STRING:
+				if( token == JsonToken.VALUE_STRING)
+					return parser.getText();
+				else
+					return writeValue( parser);
+			case LONG:
+				return token.isNumeric() ? LongValue( parser) : skipValue( parser, 0L);
+			case SHORT:
+				return token.isNumeric() ? (short)IntValue( parser) : skipValue( parser, (short)0);
+			case BYTE:
+				return token.isNumeric() ? (byte)IntValue( parser) : skipValue( parser, (byte)0);
+			case BINARY:
+				if( token != JsonToken.VALUE_STRING) {
+					return skipValue( parser, null);
+				}
+				try {
+				  return parser.getBinaryValue();
+				} catch(IOException ioExc) {
+					return writeValue( parser);
+				}
+			case INT:
+				return token.isNumeric() ? IntValue( parser) : skipValue( parser, 0);
+			case FLOAT:
+				return new Float( token.isNumeric() ? parser.getDoubleValue() : skipValue( parser, 0.0));
+			case DOUBLE:
+				return token.isNumeric() ? parser.getDoubleValue() : skipValue( parser, 0.0);
+			case BOOLEAN:
+				return token.isScalarValue() ? token == JsonToken.VALUE_TRUE : skipValue( parser, false);
+			case TIMESTAMP:
+			    long time = isoFormatter.parseMillis( token == JsonToken.VALUE_STRING ? parser.getText() : null);
+				return new Timestamp(time);
+			}
+			parser.skipChildren();
+			return null;
+		}
+
+		/// Objects and arrays are skipped over, so the parser is left on their last token
+		private static <T> T skipValue( JsonParser parser, T defaultVal) throws IOException {
+			parser.skipChildren();
+			return defaultVal;
+		}
+
+		/// Serialize the value back to JSON, as JsonNode.toString() would
+		private String writeValue( JsonParser parser) throws IOException {
+			StringWriter writer = new StringWriter();
+			JsonGenerator gen = InspectorHandleFactory.JSON_FACTORY.createJsonGenerator( writer);
+			gen.copyCurrentStructure( parser);
+			gen.close();
+			return writer.toString();
+		}
+
+		/// Out of range values are truncated, rather than an error
+		static long LongValue( JsonParser parser) throws IOException {
+			switch( parser.getNumberType()) {
+			case INT:
+			case LONG:
+				return parser.getLongValue();
+			case BIG_INTEGER:
+				return parser.getBigIntegerValue().longValue();
+			default:
+				return (long)parser.getDoubleValue();
+			}
+		}
+
+		static int IntValue( JsonParser parser) throws IOException {
+			switch( parser.getNumberType()) {
+			case INT:
+			case LONG:
+			case BIG_INTEGER:
+				return (int)LongValue( parser);
+			default:
+				return (int)parser.getDoubleValue();
+			}
+		}
+
 		@Override
 		public ObjectInspector getReturnType() {
 			return PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(category);
@@ -0,0 +1,133 @@
+package brickhouse.udf.json;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import brickhouse.udf.json.InspectorHandle.InspectorHandleFactory;
+
+/**
+ *  Explode a JSON array into rows, parsing each element
+ *   with a template, the same as from_json.
+ *
+ *  Elements are parsed straight from the JSON, and forwarded as
+ *   they are read, so the array is never built, and the elements
+ *   aren't turned back into strings, as with json_split.
+ *
+ *  If the template is a struct, its fields are the columns.
+ *   Otherwise there is one column, "col".
+ *
+ *   For example,
+ *    select ev.* from clicks
+ *     lateral view json_explode( clicks.json, 'struct<page:string,ts:bigint>' ) ev;
+ *
+ *  A JSON object, rather than an array, is exploded as a single row.
+ */
+@Description(name="json_explode",
+value = "_FUNC_(json,template,convert_flag) - Explodes a JSON array into a row for each element, parsed with an example template object."
+)
+public class JsonExplodeUDTF extends GenericUDTF {
+	private StringObjectInspector jsonInspector;
+	private InspectorHandle inspHandle;
+	private boolean isStruct;
+	private Object[] forwardObj;
+	private Object[] nullRow;
+
+	@Override
+	public StructObjectInspector initialize(ObjectInspector[] argOIs)
+			throws UDFArgumentException {
+		if( argOIs.length != 2 && argOIs.length != 3) {
+		    throw new UDFArgumentException("json_explode expects a JSON string and a template object");
+		}
+		if(argOIs[0].getCategory() != Category.PRIMITIVE
+				|| ((PrimitiveObjectInspector)argOIs[0]).getPrimitiveCategory() != PrimitiveCategory.STRING ) {
+		    throw new UDFArgumentException("json_explode expects a JSON string and a template object");
+		}
+		jsonInspector = (StringObjectInspector) argOIs[0];
+		/// Each element is forwarded before the next is parsed, so structs can be reused
+		inspHandle = FromJsonUDF.GenerateTemplateHandle( argOIs[1], argOIs.length > 2 ? argOIs[2] : null, true);
+
+		ObjectInspector elemInsp = inspHandle.getReturnType();
+		if( elemInsp.getCategory() == Category.STRUCT) {
+			isStruct = true;
+			nullRow = new Object[ ((StructObjectInspector)elemInsp).getAllStructFieldRefs().size()];
+			return (StructObjectInspector) elemInsp;
+		} else {
+			forwardObj = new Object[1];
+			ArrayList<String> fieldNames = new ArrayList<String>();
+			fieldNames.add("col");
+			ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+			fieldOIs.add( elemInsp);
+			return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+		}
+	}
+
+	private void forwardElement( JsonParser parser) throws IOException, HiveException {
+		Object elem = inspHandle.parseJson( parser);
+		if( isStruct) {
+			forward( elem != null ? elem : nullRow);
+		} else {
+			forwardObj[0] = elem;
+			forward( forwardObj);
+		}
+	}
+
+	@Override
+	public void process(Object[] args) throws HiveException {
+		try {
+			JsonParser parser = InspectorHandleFactory.CreateParser( jsonInspector, args[0]);
+			if( parser == null) {
+				return;
+			}
+			try {
+				JsonToken token = parser.nextToken();
+				if( token == JsonToken.START_ARRAY) {
+					while( parser.nextToken() != JsonToken.END_ARRAY) {
+						forwardElement( parser);
+					}
+				} else if( token == JsonToken.START_OBJECT) {
+					forwardElement( parser);
+				}
+			} finally {
+				parser.close();
+			}
+		} catch( IOException ioExc) {
+			throw new HiveException( ioExc);
+		}
+	}
+
+	@Override
+	public void close() throws HiveException {
+
+	}
+
+}
@@ -0,0 +1,372 @@
+package brickhouse.udf.json;
+/**
+ * Copyright 2012 Klout, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BooleanObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import brickhouse.udf.json.InspectorHandle.InspectorHandleFactory;
+
+/**
+ *  Extract many values from a JSON string in one pass,
+ *   rather than calling get_json_object for each of them.
+ *
+ *  The paths are compiled into a tree of JSON keys and array indexes,
+ *   and anything not on a path is skipped over, without being parsed
+ *   into objects. Parsing stops as soon as every path has been found,
+ *   so malformed JSON after the last path isn't noticed, and if a key
+ *   is repeated, the first value is returned.
+ *
+ *  With a third argument of true, the whole document is read, as
+ *   get_json_object does; malformed JSON gives a null, and if a key
+ *   is repeated, the last value is returned.
+ *
+ *   For example,
+ *    json_extract_multi( '{"user":{"id":23,"tags":["a","b"]},"event":"click"}',
+ *                   array( "$.user.id", "$.user.tags[1]", "$.event", "$.user.name" ) )
+ *       = [ "23", "b", "click", null ]
+ *
+ *  Values are returned as strings. Objects and arrays are returned as JSON.
+ */
+@Description(name="json_extract_multi",
+value = "_FUNC_(json, array(paths), [validate]) - Returns an array of values, one for each path like '$.a.b[0]', parsing the JSON only once. "
+    + " Parsing stops once every path is found, and a repeated key gives its first value. "
+    + " If validate is true, the whole JSON is read, and as with get_json_object, malformed JSON gives null and a repeated key gives its last value. "
+)
+public class JsonExtractMultiUDF extends GenericUDF {
+	private StringObjectInspector jsonInspector;
+	private PathNode pathRoot;
+	/// Values are returned as strings, the same as from_json would for a string field
+	private InspectorHandle valueHandle;
+	private Object[] results;
+	private int numPaths;
+	private int numRemaining;
+	/// Read the whole document, as get_json_object does, rather than stopping early
+	private boolean validate = false;
+	private long rowNum = 0;
+
+	/**
+	 *  A step along one or more paths.
+	 */
+	static class PathNode {
+		/// Positions in the result of the paths which end here
+		int[] resultSlots = new int[0];
+		Map<String,PathNode> fieldChildren;
+		PathNode[] indexChildren;
+		/// The row this step was last matched in
+		long lastRow = -1;
+
+		PathNode getOrAddField( String name) {
+			if( fieldChildren == null) {
+				fieldChildren = new HashMap<String,PathNode>();
+			}
+			PathNode child = fieldChildren.get( name);
+			if( child == null) {
+				child = new PathNode();
+				fieldChildren.put( name, child);
+			}
+			return child;
+		}
+
+		PathNode getOrAddIndex( int idx) {
+			if( indexChildren == null) {
+				indexChildren = new PathNode[ idx + 1];
+			} else if( indexChildren.length <= idx) {
+				indexChildren = Arrays.copyOf( indexChildren, idx + 1);
+			}
+			if( indexChildren[idx] == null) {
+				indexChildren[idx] = new PathNode();
+			}
+			return indexChildren[idx];
+		}
+
+		/**
+		 *  Forget the values found at or below this step,
+		 *   for when its key is repeated.
+		 */
+		void clearResults( Object[] results) {
+			for( int slot : resultSlots) {
+				results[slot] = null;
+			}
+			if( fieldChildren != null) {
+				for( PathNode child : fieldChildren.values()) {
+					child.clearResults( results);
+				}
+			}
+			if( indexChildren != null) {
+				for( PathNode child : indexChildren) {
+					if( child != null) {
+						child.clearResults( results);
+					}
+				}
+			}
+		}
+
+		void addResultSlot( int slot) {
+			resultSlots = Arrays.copyOf( resultSlots, resultSlots.length + 1);
+			resultSlots[ resultSlots.length - 1] = slot;
+		}
+
+		boolean hasChildren() {
+			return fieldChildren != null || indexChildren != null;
+		}
+	}
+
+	/**
+	 *  Split a path like "$.a.b[2].c" into its steps,
+	 *   with JSON keys as Strings and array indexes as Integers.
+	 *   The leading "$" is optional.
+	 */
+	static List<Object> ParsePath( String path) throws UDFArgumentException {
+		List<Object> steps = new ArrayList<Object>();
+		int pos = 0;
+		if( path.startsWith("$")) {
+			pos = 1;
+		} else if( !path.startsWith("[")) {
+			path = "." + path;
+		}
+		while( pos < path.length()) {
+			char ch = path.charAt( pos);
+			if( ch == '.') {
+				int end = pos + 1;
+				while( end < path.length() && path.charAt( end) != '.' && path.charAt( end) != '[') {
+					++end;
+				}
+				if( end == pos + 1) {
+					throw new UDFArgumentException("Empty key in JSON path " + path);
+				}
+				steps.add( path.substring( pos + 1, end));
+				pos = end;
+			} else if( ch == '[') {
+				int end = path.indexOf( ']', pos);
+				if( end < 0) {
+					throw new UDFArgumentException("Unclosed array index in JSON path " + path);
+				}
+				try {
+					int idx = Integer.parseInt( path.substring( pos + 1, end).trim());
+					if( idx < 0) {
+						throw new UDFArgumentException("Negative array index in JSON path " + path);
+					}
+					steps.add( idx);
+				} catch(NumberFormatException numberExc) {
+					throw new UDFArgumentException("Only numeric array indexes are supported in JSON path " + path);
+				}
+				pos = end + 1;
+			} else {
+				throw new UDFArgumentException("Unexpected character '" + ch + "' in JSON path " + path);
+			}
+		}
+		return steps;
+	}
+
+	static PathNode CompilePaths( List<String> paths) throws UDFArgumentException {
+		PathNode root = new PathNode();
+		for(int i=0; i<paths.size(); ++i) {
+			if( paths.get(i) == null) {
+				throw new UDFArgumentException("JSON paths can't be null");
+			}
+			PathNode node = root;
+			for( Object step : ParsePath( paths.get(i))) {
+				if( step instanceof Integer) {
+					node = node.getOrAddIndex( (Integer) step);
+				} else {
+					node = node.getOrAddField( (String) step);
+				}
+			}
+			node.addResultSlot( i);
+		}
+		return root;
+	}
+
+	@Override
+	public ObjectInspector initialize(ObjectInspector[] arguments)
+			throws UDFArgumentException {
+		if( arguments.length != 2 && arguments.length != 3) {
+			throw new UDFArgumentException("Usage : json_extract_multi( jsonstring, array( paths), [validate] )");
+		}
+		if( arguments[0].getCategory() != Category.PRIMITIVE
+				|| ((PrimitiveObjectInspector)arguments[0]).getPrimitiveCategory() != PrimitiveCategory.STRING) {
+			throw new UDFArgumentException("Usage : json_extract_multi( jsonstring, array( paths) )");
+		}
+		jsonInspector = (StringObjectInspector) arguments[0];
+
+		if( arguments[1].getCategory() != Category.LIST
+				|| !(arguments[1] instanceof ConstantObjectInspector)) {
+			throw new UDFArgumentException("json_extract_multi( jsonstring, array( paths) ) : paths must be a constant array of strings");
+		}
+		ListObjectInspector pathsInsp = (ListObjectInspector) arguments[1];
+		if( !(pathsInsp.getListElementObjectInspector() instanceof StringObjectInspector)) {
+			throw new UDFArgumentException("json_extract_multi( jsonstring, array( paths) ) : paths must be a constant array of strings");
+		}
+		StringObjectInspector pathInsp = (StringObjectInspector) pathsInsp.getListElementObjectInspector();
+		List<?> pathObjs = (List<?>) ((ConstantObjectInspector) arguments[1]).getWritableConstantValue();
+		List<String> paths = new ArrayList<String>();
+		for( Object pathObj : pathObjs) {
+			paths.add( pathInsp.getPrimitiveJavaObject( pathObj));
+		}
+		pathRoot = CompilePaths( paths);
+		numPaths = paths.size();
+		results = new Object[ numPaths];
+
+		if( arguments.length > 2) {
+			if( !(arguments[2] instanceof BooleanObjectInspector)
+					|| !(arguments[2] instanceof ConstantObjectInspector)) {
+				throw new UDFArgumentException("json_extract_multi( jsonstring, array( paths), validate ) : validate must be a constant boolean");
+			}
+			Object validateObj = ((ConstantObjectInspector) arguments[2]).getWritableConstantValue();
+			validate = validateObj != null && ((BooleanObjectInspector) arguments[2]).get( validateObj);
+		}
+
+		valueHandle = InspectorHandleFactory.GenerateInspectorHandle( PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		return ObjectInspectorFactory.getStandardListObjectInspector( valueHandle.getReturnType());
+	}
+
+	/**
+	 *  Extract the paths below a node, from the value the parser is on.
+	 *   The parser is left on the last token of the value,
+	 *   unless every path has been found.
+	 */
+	private void extract( JsonParser parser, PathNode node) throws IOException {
+		if( node.resultSlots.length > 0) {
+			JsonToken token = parser.getCurrentToken();
+			Object val;
+			if( node.hasChildren()
+					&& ( token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY)) {
+				/// Some paths go further than this one, so the value is read
+				///  into a buffer once, for both its string and the paths below
+				TokenBuffer buffer = new TokenBuffer( parser.getCodec());
+				buffer.copyCurrentStructure( parser);
+				JsonParser bufParser = buffer.asParser();
+				bufParser.nextToken();
+				val = valueHandle.parseJson( bufParser);
+				setResults( node, val);
+				bufParser = buffer.asParser();
+				bufParser.nextToken();
+				extractChildren( bufParser, node);
+			} else {
+				val = valueHandle.parseJson( parser);
+				setResults( node, val);
+			}
+			return;
+		}
+		extractChildren( parser, node);
+	}
+
+	private void setResults( PathNode node, Object val) {
+		for( int slot : node.resultSlots) {
+			results[slot] = val;
+		}
+		numRemaining -= node.resultSlots.length;
+	}
+
+	private void extractChildren( JsonParser parser, PathNode node) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if( token == JsonToken.START_OBJECT && node.fieldChildren != null) {
+			while( parser.nextToken() == JsonToken.FIELD_NAME) {
+				PathNode child = node.fieldChildren.get( parser.getCurrentName());
+				parser.nextToken();
+				if( child != null && child.lastRow == rowNum && validate) {
+					/// If a key is repeated, the last value wins, as in get_json_object
+					child.clearResults( results);
+					extract( parser, child);
+				} else if( child != null && child.lastRow != rowNum) {
+					/// Otherwise only the first is looked at
+					child.lastRow = rowNum;
+					extract( parser, child);
+					if( numRemaining == 0 && !validate) {
+						return;
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} else if( token == JsonToken.START_ARRAY && node.indexChildren != null) {
+			int idx = 0;
+			while( parser.nextToken() != JsonToken.END_ARRAY) {
+				PathNode child = idx < node.indexChildren.length ? node.indexChildren[idx] : null;
+				if( child != null) {
+					child.lastRow = rowNum;
+					extract( parser, child);
+					if( numRemaining == 0 && !validate) {
+						return;
+					}
+				} else {
+					parser.skipChildren();
+				}
+				++idx;
+			}
+		} else {
+			parser.skipChildren();
+		}
+	}
+
+	@Override
+	public Object evaluate(DeferredObject[] arguments) throws HiveException {
+		try {
+			JsonParser parser = InspectorHandleFactory.CreateParser( jsonInspector, arguments[0].get());
+			if( parser == null) {
+				return null;
+			}
+			Arrays.fill( results, null);
+			numRemaining = numPaths;
+			++rowNum;
+			try {
+				if( parser.nextToken() == null) {
+					return null;
+				}
+				extract( parser, pathRoot);
+			} finally {
+				parser.close();
+			}
+			return results;
+		} catch( JsonProcessingException jsonExc) {
+			/// Same as get_json_object, malformed JSON gives a null
+			return null;
+		} catch( IOException ioExc) {
+			throw new HiveException( ioExc);
+		}
+	}
+
+	@Override
+	public String getDisplayString(String[] children) {
+		return "json_extract_multi( " + children[0] + " , " + children[1] + " )";
+	}
+
+}
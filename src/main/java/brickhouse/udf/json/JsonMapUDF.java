@@ -16,10 +16,6 @@ package brickhouse.udf.json;
  *
  **/
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
@@ -36,9 +32,6 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspe
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
 import org.apache.hadoop.io.Text;
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonProcessingException;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import brickhouse.udf.json.InspectorHandle.InspectorHandleFactory;
 
@@ -91,7 +84,7 @@ public class JsonMapUDF extends GenericUDF {
 		    
 		    MapObjectInspector mapInsp = ObjectInspectorFactory.getStandardMapObjectInspector(keyInsp, valInsp);
 		    
-		    inspHandle = InspectorHandleFactory.GenerateInspectorHandle(mapInsp);
+		    inspHandle = InspectorHandleFactory.GenerateInspectorHandle(mapInsp, false, true);
 		    
 		    return inspHandle.getReturnType();
 		    
@@ -101,7 +94,7 @@ public class JsonMapUDF extends GenericUDF {
 		
 		    MapObjectInspector mapInsp = ObjectInspectorFactory.getStandardMapObjectInspector(keyInsp, valueInsp);
 		    
-		    inspHandle = InspectorHandleFactory.GenerateInspectorHandle(mapInsp);
+		    inspHandle = InspectorHandleFactory.GenerateInspectorHandle(mapInsp, false, true);
 		    
 		    return inspHandle.getReturnType();
 		}
@@ -109,19 +102,8 @@ public class JsonMapUDF extends GenericUDF {
 
 	@Override
 	public Object evaluate(DeferredObject[] arguments) throws HiveException {
-		try {
-		    String jsonString =  this.stringInspector.getPrimitiveJavaObject(arguments[0].get());
-			
-		    //// Logic is the same as "from_json"
-            ObjectMapper om = new ObjectMapper();
-            JsonNode jsonNode = om.readTree( jsonString);
-            return inspHandle.parseJson(jsonNode);
-            
-		} catch (JsonProcessingException e) {
-			throw new HiveException(e);
-		} catch (IOException e) {
-			throw new HiveException(e);
-		}
+		//// Logic is the same as "from_json"
+		return InspectorHandleFactory.ParseJson( inspHandle, stringInspector, arguments[0].get());
 	}
 
 	@Override
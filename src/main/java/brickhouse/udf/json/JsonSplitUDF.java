@@ -16,10 +16,6 @@ package brickhouse.udf.json;
  *
  **/
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
@@ -35,9 +31,6 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspe
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
 import org.apache.hadoop.io.Text;
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonProcessingException;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import brickhouse.udf.json.InspectorHandle.InspectorHandleFactory;
 
@@ -56,22 +49,8 @@ public class JsonSplitUDF extends GenericUDF {
 
   @Override
   public Object evaluate(DeferredObject[] arguments) throws HiveException {
-    try {
-      String jsonString = this.stringInspector.getPrimitiveJavaObject(arguments[0].get());
-      
-      //// Logic is the same as "from_json"
-      ObjectMapper om = new ObjectMapper();
-      JsonNode jsonNode = om.readTree( jsonString);
-      return inspHandle.parseJson(jsonNode);
-
-
-    } catch( JsonProcessingException jsonProc) {
-      throw new HiveException(jsonProc);
-    } catch (IOException e) {
-      throw new HiveException(e);
-    } catch (NullPointerException npe){
-      return null;
-    }
+    //// Logic is the same as "from_json"
+    return InspectorHandleFactory.ParseJson( inspHandle, stringInspector, arguments[0].get());
 
   }
 
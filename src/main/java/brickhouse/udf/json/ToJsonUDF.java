@@ -17,9 +17,7 @@ package brickhouse.udf.json;
  **/
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +26,7 @@ import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.ByteStream;
 import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
@@ -49,9 +48,12 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.ShortObjectInspec
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.TimestampObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableConstantBooleanObjectInspector;
+import org.apache.hadoop.io.Text;
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
@@ -78,6 +80,10 @@ public class ToJsonUDF extends GenericUDF {
 	private InspectorHandle inspHandle;
 	private Boolean convertFlag = Boolean.FALSE;
 	private JsonFactory jsonFactory;
+	/// The JSON is written as UTF-8 into the same buffer for every row, 
+	///  and returned as a Text, without going through a String
+	private ByteStream.Output jsonBuffer = new ByteStream.Output();
+	private Text jsonText = new Text();
 	
 	
 	private interface  InspectorHandle {
@@ -128,17 +134,21 @@ public class ToJsonUDF extends GenericUDF {
 	
 	private class StructInspectorHandle implements InspectorHandle {
 		private StructObjectInspector structInspector;
-		private List<String> fieldNames;
-		private List<InspectorHandle> fieldInspectorHandles;
+		private List<? extends StructField> fieldList;
+		/// Field names are converted and quoted once, rather than every row
+		private SerializedString[] fieldNames;
+		private InspectorHandle[] fieldInspectorHandles;
 		
 		public StructInspectorHandle(StructObjectInspector insp) throws UDFArgumentException {
 			structInspector = insp;
-			List<? extends StructField> fieldList = insp.getAllStructFieldRefs();
-			this.fieldNames = new ArrayList<String>();
-			this.fieldInspectorHandles = new ArrayList<InspectorHandle>();
-			for(StructField sf : fieldList) {
-			   fieldNames.add( sf.getFieldName());
-			   fieldInspectorHandles.add( GenerateInspectorHandle( sf.getFieldObjectInspector() ));
+			fieldList = insp.getAllStructFieldRefs();
+			this.fieldNames = new SerializedString[ fieldList.size()];
+			this.fieldInspectorHandles = new InspectorHandle[ fieldList.size()];
+			for(int i=0; i<fieldList.size(); ++i) {
+			   StructField sf = fieldList.get(i);
+			   String fieldName = convertFlag ? FromJsonUDF.ToCamelCase( sf.getFieldName()) : sf.getFieldName();
+			   fieldNames[i] = new SerializedString( fieldName);
+			   fieldInspectorHandles[i] = GenerateInspectorHandle( sf.getFieldObjectInspector() );
 			}
 		}
 
@@ -149,16 +159,9 @@ public class ToJsonUDF extends GenericUDF {
 				gen.writeNull();
 			} else {
 				gen.writeStartObject();
-				List structObjs = structInspector.getStructFieldsDataAsList(obj);
-
-				for(int i=0; i<fieldNames.size(); ++i) {
-					String fieldName = fieldNames.get(i);
-					if( convertFlag) {
-						gen.writeFieldName( FromJsonUDF.ToCamelCase(fieldName)) ;
-					} else {
-						gen.writeFieldName( fieldName);
-					}
-					fieldInspectorHandles.get(i).generateJson( gen, structObjs.get(i));
+				for(int i=0; i<fieldNames.length; ++i) {
+					gen.writeFieldName( fieldNames[i]);
+					fieldInspectorHandles[i].generateJson( gen, structInspector.getStructFieldData( obj, fieldList.get(i)));
 				}
 				gen.writeEndObject();
 			}
@@ -205,6 +208,10 @@ public class ToJsonUDF extends GenericUDF {
 		public void generateJson(JsonGenerator gen, Object obj) throws JsonGenerationException, IOException {
 			if( obj == null) {
 				gen.writeNull();
+			} else if( strInspector.preferWritable()) {
+				/// Text is already UTF-8, so it can be escaped and copied as is 
+				Text text = strInspector.getPrimitiveWritableObject(obj);
+				gen.writeUTF8String( text.getBytes(), 0, text.getLength());
 			} else {
 				String str = strInspector.getPrimitiveJavaObject(obj);
 				gen.writeString( str);
@@ -413,12 +420,12 @@ public class ToJsonUDF extends GenericUDF {
   @Override
   public Object evaluate(DeferredObject[] args) throws HiveException {
 	  try { 
-		  StringWriter writer = new StringWriter();
-		  JsonGenerator gen = jsonFactory.createJsonGenerator( writer);
+		  jsonBuffer.reset();
+		  JsonGenerator gen = jsonFactory.createJsonGenerator( jsonBuffer, JsonEncoding.UTF8);
 		  inspHandle.generateJson(gen,  args[0].get() );
 		  gen.close();
-		  writer.close();
-		  return writer.toString();
+		  jsonText.set( jsonBuffer.getData(), 0, jsonBuffer.getCount());
+		  return jsonText;
 	  } catch(  IOException io ) {
 		 throw new HiveException(io);
 	  }
@@ -437,7 +444,6 @@ public class ToJsonUDF extends GenericUDF {
       throw new UDFArgumentException(" ToJson takes an object as an argument, and an optional to_camel_case flag");
     }
     ObjectInspector oi= args[0];
-    inspHandle = GenerateInspectorHandle( oi);
     
     if(args.length == 2 ) {
     	ObjectInspector flagInsp = args[1];
@@ -450,10 +456,12 @@ public class ToJsonUDF extends GenericUDF {
     	WritableConstantBooleanObjectInspector constInsp= (WritableConstantBooleanObjectInspector) flagInsp;
     	convertFlag = constInsp.getWritableConstantValue().get();
     }
+    /// The flag is needed to work out the struct field names
+    inspHandle = GenerateInspectorHandle( oi);
     
     jsonFactory = new JsonFactory();
 
-    return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+    return PrimitiveObjectInspectorFactory.writableStringObjectInspector;
   }
 
 }
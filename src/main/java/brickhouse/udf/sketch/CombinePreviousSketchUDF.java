@@ -33,6 +33,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.Pr
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
 
 /**
@@ -73,15 +74,27 @@ public class CombinePreviousSketchUDF extends GenericUDF {
 			lastGrouping = grouping;
 			prevValue = new SketchSet();
 		}
-		List<String> prevHashItems = prevValue.getMinHashItems();
+		List<String> prevHashItems = prevValue.getMarkedMinHashItems();
 		
 		
-		List newList = listInspector.getList( args[1].get());
-		if(newList != null) {
-		  for( Object strObj : newList) {
+		List<?> newList = listInspector.getList( args[1].get());
+		if(newList != null && newList.size() > 0) {
+		  String firstItem = ((StringObjectInspector)listInspector.getListElementObjectInspector()).getPrimitiveJavaObject( newList.get(0));
+		  HashFamily hashFamily = SketchSetUDAF.SketchHashFamily( firstItem, null, "combine_previous_sketch");
+		  if( hashFamily != prevValue.getHashFamily()) {
+			  //// The grouping takes on the hash of its first sketch
+			  if( prevValue.size() > 0) {
+				  throw SketchSetUDAF.MixedHashes( prevValue.getHashFamily(), hashFamily, "combine_previous_sketch");
+			  }
+			  prevValue = new SketchSet( prevValue.getMaxItems(), false, hashFamily);
+		  }
+		  //// New sketch is sorted by hash, so it can be merged in linear time 
+		  SketchSet newSketch = new SketchSet( prevValue.getMaxItems(), false, hashFamily);
+		  for( Object strObj : newList.subList( SketchSetUDAF.NumMarkerItems( firstItem), newList.size())) {
 			  String str = ((StringObjectInspector)listInspector.getListElementObjectInspector()).getPrimitiveJavaObject(strObj);
-		      prevValue.addItem( str );
+		      newSketch.addItem( str );
 	      }
+		  prevValue.combine( newSketch);
 		}
 	    return prevHashItems;	
 	}
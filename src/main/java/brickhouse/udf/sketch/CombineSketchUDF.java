@@ -16,6 +16,7 @@ package brickhouse.udf.sketch;
  *
  **/
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.hadoop.hive.ql.exec.Description;
@@ -33,6 +34,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspect
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
 
 /**
@@ -45,7 +47,7 @@ import brickhouse.analytics.uniques.SketchSet;
  *
  */
 @Description(name="combine_sketch",
-    value = "_FUNC_(x) - Combine two sketch sets. "
+    value = "_FUNC_(x) - Combine two sketch sets. Sketches of strings are combined with the hash they were built with. "
 )
 public class CombineSketchUDF extends GenericUDF {
 	private ListObjectInspector listInspectors[];
@@ -54,29 +56,55 @@ public class CombineSketchUDF extends GenericUDF {
 	
 	@Override
 	public Object evaluate(DeferredObject[] arg0) throws HiveException {
-		SketchSet ss = new SketchSet(sketchSetSize);
+		boolean hashOnly = (elemCategory == PrimitiveCategory.LONG);
+		//// Sketches of strings are combined with the hash they were built with,
+		//// and those of hashes are just combined
+		HashFamily hashFamily = null;
+		//// Each sketch is already sorted by hash, so
+		//// build a run for each one, and do one k-way merge 
+		List<SketchSet> runs = new ArrayList<SketchSet>( arg0.length);
 		for( int i=0; i< arg0.length; ++i) {
 			Object listObj = arg0[i].get();
 			int listLen = listInspectors[i].getListLength(listObj);
-			for(int j=0; j< listLen; ++j ) {
+			if( listLen <= 0) {
+				continue;
+			}
+			HashFamily runFamily = HashFamily.DEFAULT;
+			int start = 0;
+			if( elemCategory == PrimitiveCategory.STRING) {
+				StringObjectInspector strInspector = (StringObjectInspector) listInspectors[i].getListElementObjectInspector();
+				String firstItem = strInspector.getPrimitiveJavaObject( listInspectors[i].getListElement(listObj, 0));
+				runFamily = SketchSetUDAF.SketchHashFamily( firstItem, null, "combine_sketch");
+				start = SketchSetUDAF.NumMarkerItems( firstItem);
+			}
+			if( hashFamily == null) {
+				hashFamily = runFamily;
+			} else if( runFamily != hashFamily) {
+				throw SketchSetUDAF.MixedHashes( hashFamily, runFamily, "combine_sketch");
+			}
+			SketchSet run = new SketchSet(sketchSetSize, hashOnly, runFamily);
+			for(int j=start; j< listLen; ++j ) {
 		       Object uninspObj = listInspectors[i].getListElement(listObj, j);
 		       switch( elemCategory) {
 		       case STRING:
 		    	   StringObjectInspector strInspector = (StringObjectInspector) listInspectors[i].getListElementObjectInspector();
 		    	   String item = strInspector.getPrimitiveJavaObject(uninspObj);
-		    	   ss.addItem(item);
+		    	   run.addItem(item);
 		    	   break;
 		       case LONG: 
 		    	   LongObjectInspector bigintInspector = (LongObjectInspector) listInspectors[i].getListElementObjectInspector();
 		    	   long itemHash = bigintInspector.get(uninspObj);
-		    	   ss.addHash( itemHash);
+		    	   run.addHash( itemHash);
 		    	   break;
 		       }
 			}
+			runs.add( run);
 		}
+		SketchSet ss = new SketchSet(sketchSetSize, hashOnly, hashFamily != null ? hashFamily : HashFamily.DEFAULT);
+		ss.combineAll( runs);
 	    switch( elemCategory) {
 	      case STRING:
-	    	  return ss.getMinHashItems();
+	    	  return ss.getMarkedMinHashItems();
 	      case LONG:
 	    	  return ss.getMinHashes();
 	      default:
@@ -37,6 +37,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspe
 import org.apache.hadoop.io.IntWritable;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
 
 /*
@@ -47,7 +48,8 @@ import brickhouse.analytics.uniques.SketchSet;
  *    and converting to sketch sets.
  */
 @Description(name="convert_to_sketch",
-value = "_FUNC_(x) - Truncate a large array of strings, and return a list of strings representing a sketch of those items "
+value = "_FUNC_(x) - Truncate a large array of strings, and return a list of strings representing a sketch of those items. "
+      + " A sketch which names its hash keeps that hash. "
 )
 public class ConvertToSketchUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger( ConvertToSketchUDF.class);
@@ -62,9 +64,16 @@ public class ConvertToSketchUDF extends GenericUDF {
 		if(obj == null) {
 			return null;
 		}
-		List oldList = listInspector.getList(obj);
-		SketchSet sketchSet  = new SketchSet( sketchSetSize);
-		for( Object oldObj : oldList) {
+		List<?> oldList = listInspector.getList(obj);
+		HashFamily hashFamily = HashFamily.DEFAULT;
+		int start = 0;
+		if( oldList.size() > 0) {
+			String firstItem = listElemInspector.getPrimitiveJavaObject( oldList.get(0));
+			hashFamily = SketchSetUDAF.SketchHashFamily( firstItem, null, "convert_to_sketch");
+			start = SketchSetUDAF.NumMarkerItems( firstItem);
+		}
+		SketchSet sketchSet  = new SketchSet( sketchSetSize, false, hashFamily);
+		for( Object oldObj : oldList.subList( start, oldList.size())) {
 			if( oldObj == null) {
 				LOG.warn(" Object in uninspected List is null");
 			} else {
@@ -72,7 +81,7 @@ public class ConvertToSketchUDF extends GenericUDF {
 				sketchSet.addItem(newStr);
 			}
 		}
-		return sketchSet.getMinHashItems();
+		return sketchSet.getMarkedMinHashItems();
 	}
 
 	@Override
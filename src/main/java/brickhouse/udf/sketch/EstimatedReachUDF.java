@@ -23,6 +23,7 @@ import org.apache.hadoop.hive.ql.exec.UDF;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
@@ -34,6 +35,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
 
 /**
@@ -42,7 +44,9 @@ import brickhouse.analytics.uniques.SketchSet;
  *
  */
 @Description(name="estimated_reach",
-    value = "_FUNC_(x) - Estimate reach from a  sketch set of Strings. "
+    value = "_FUNC_(x, [size], [hash]) - Estimate reach from a  sketch set of Strings, "
+        + " with an optional sketch size, and the hash function the sketch was built with ( md5, murmur3 or xxhash64 ). "
+        + " By default the hash is the one named in the sketch. If it is given, fails if the sketch was built with a different hash. "
 )
 public class EstimatedReachUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger( EstimatedReachUDF.class);
@@ -51,6 +55,8 @@ public class EstimatedReachUDF extends GenericUDF {
 	private PrimitiveObjectInspector elemInspector;
 	private PrimitiveCategory elemCategory;
 	private IntObjectInspector lengthInspector;
+	/// Only set when the hash is passed explicitly; otherwise it is read from the sketch
+	private HashFamily hashFamily = null;
 	
 
 	@Override
@@ -62,18 +68,27 @@ public class EstimatedReachUDF extends GenericUDF {
 		}
 		
 		int listLen = listInspector.getListLength( listObj);
+		//// Sketches not hashed with MD5 start with a marker naming the hash
+		int start = 0;
+		HashFamily sketchFamily = HashFamily.DEFAULT;
+		if( listLen > 0 && elemCategory == PrimitiveCategory.STRING) {
+			String firstItem = ((StringObjectInspector) elemInspector).getPrimitiveJavaObject( listInspector.getListElement( listObj, 0));
+			sketchFamily = SketchSetUDAF.SketchHashFamily( firstItem, hashFamily, "estimated_reach");
+			start = SketchSetUDAF.NumMarkerItems( firstItem);
+			listLen -= start;
+		}
 		if( listLen < maxItems ) {
 			return (long)listLen;
 		}
 		if( listLen > maxItems) {
 			LOG.warn( "estimated_reach: List length " + listLen + " is greater than sketch set Max items " + maxItems);
 		}
-		Object uninspMax = listInspector.getListElement( listObj, maxItems -1);
+		Object uninspMax = listInspector.getListElement( listObj, start + maxItems -1);
 		switch( this.elemCategory) {
 		case STRING :
 			StringObjectInspector strInspector = (StringObjectInspector) elemInspector;
 			String lastItem = strInspector.getPrimitiveJavaObject(uninspMax);
-			double reach = SketchSet.EstimatedReach( lastItem, maxItems);
+			double reach = SketchSet.EstimatedReach( lastItem, maxItems, sketchFamily);
 			if( reach > listLen)
 			   return (long)(reach);
 			else 
@@ -107,8 +122,8 @@ public class EstimatedReachUDF extends GenericUDF {
 	@Override
 	public ObjectInspector initialize(ObjectInspector[] arg0)
 			throws UDFArgumentException {
-		if( arg0.length != 1 && arg0.length != 2 ) {
-			throw new UDFArgumentException("estimated_reach takes an array of strings or an array of hashes, and an optional sketch size");
+		if( arg0.length < 1 || arg0.length > 3 ) {
+			throw new UDFArgumentException("estimated_reach takes an array of strings or an array of hashes, and an optional sketch size and hash");
 		}
 		if( arg0[0].getCategory() != Category.LIST) {
 			throw new UDFArgumentException("estimated_reach takes an array of strings or an array of hashes, and an optional sketch size");
@@ -131,6 +146,9 @@ public class EstimatedReachUDF extends GenericUDF {
 			}
 			this.lengthInspector = (IntObjectInspector) arg0[1];
 		}
+		if( arg0.length > 2) {
+			this.hashFamily = SketchSetUDAF.GetHashFamily( arg0[2], "estimated_reach");
+		}
 		
 		return PrimitiveObjectInspectorFactory.javaLongObjectInspector;
 	}
@@ -3,9 +3,7 @@ package brickhouse.udf.sketch;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
 
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
+import brickhouse.analytics.uniques.HashFamily;
 
 /**
  *  Calculate the MD5 hash for a String.
@@ -18,15 +16,11 @@ import com.google.common.hash.Hashing;
 value = "_FUNC_(x) - Hash MD5. "
 )
 public class HashMD5UDF extends UDF {
-	private HashFunction hash = Hashing.md5();
-
 
 	public Long evaluate( String str) {
 		if(str == null) {
 			return null;
 		}
-		HashCode hc = hash.hashString( str);
-
-		return hc.asLong();
+		return HashFamily.MD5.hashString( str);
 	}
 }
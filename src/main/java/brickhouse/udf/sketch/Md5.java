@@ -25,20 +25,25 @@ import java.security.*;
  * Calculate md5 of the string
  */
 public final class Md5 extends UDF {
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+	private MessageDigest md;
+	private final char[] hexChars = new char[32];
 
 	public Text evaluate(final Text s) {
 	    if (s == null) {
                 return null;
 	    }
 	    try {
-	    	MessageDigest md = MessageDigest.getInstance("MD5");
-	    	md.update(s.toString().getBytes());
+	    	if (md == null) {
+	    	    md = MessageDigest.getInstance("MD5");
+	    	}
+	    	md.update(s.getBytes(), 0, s.getLength());
 	    	byte[] md5hash = md.digest();
-	    	StringBuilder builder = new StringBuilder();
-	    	for (byte b : md5hash) {
-	    	    builder.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+	    	for (int i = 0; i < md5hash.length; ++i) {
+	    	    hexChars[2*i] = HEX_CHARS[(md5hash[i] >> 4) & 0xf];
+	    	    hexChars[2*i + 1] = HEX_CHARS[md5hash[i] & 0xf];
 	    	}
-		return new Text(builder.toString());
+		return new Text(new String(hexChars));
 	    } catch (NoSuchAlgorithmException nsae) {
 	    	System.out.println("Cannot find digest algorithm");
                 System.exit(1);
@@ -17,6 +17,8 @@ package brickhouse.udf.sketch;
  **/
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 import org.apache.hadoop.hive.ql.exec.Description;
@@ -37,13 +39,12 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.log4j.Logger;
-import org.joda.time.DateTime;
-import org.joda.time.Days;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
+import brickhouse.udf.date.DaysBeforeCache;
 
 
 /**
@@ -103,9 +104,10 @@ public class MultiDaySketcherUDAF extends AbstractGenericUDAFResolver {
     }
 
     public static class MultiDayAggUDAFEvaluator extends GenericUDAFEvaluator {
-        private static DateTimeFormatter yyyymmdd = DateTimeFormat.forPattern("yyyyMMdd");
         private Integer[] daysArr;
-        private DateTime asofDate;
+        /// indexes of daysArr, from the shortest window to the longest
+        private int[] sortedWindows;
+        private DaysBeforeCache daysBeforeCache;
         // For PARTIAL2 and FINAL: ObjectInspectors for partial aggregations (list
         // of objs)
         private StandardListObjectInspector internalMergeOI;
@@ -185,18 +187,61 @@ public class MultiDaySketcherUDAF extends AbstractGenericUDAFResolver {
             }
         }
 
-        private void addMultiDay( MultiDaySketchBuffer mdCounter, DateTime dt , Long cnt, List<Object> uniqs) {
-            for(int i=0; i<daysArr.length; ++i) {
-                int daysBetween = Days.daysBetween( dt, asofDate).getDays();
-                ///LOG.info( " DT = "+ dt + " asofDate = " + asofDate +  " daysBetween = " + daysBetween);
-                if(daysBetween < (Integer)daysArr[i] ) {
-                    mdCounter.counts[i]  += cnt;
-                    ///LOG.info( "Days between = " + daysBetween + " for idx "+ i + " with val " + daysArr[i] +  " cnt = " + mdCounter.counts[i] );
-                    for( Object unObj : uniqs) {
-                        String uniqStr = ((StringObjectInspector)uniqInspector.getListElementObjectInspector()).getPrimitiveJavaObject(unObj);
-                        ///LOG.info( "   Adding Unique str " + uniqStr);
-                        mdCounter.sketches[i].addItem( uniqStr);
+        /**
+         *  The windows a row falls in are all the windows of at least
+         *   daysBefore + 1 days, so with the windows sorted by length
+         *   they are a suffix of the sorted windows, and each smaller window
+         *   is contained in all of the larger ones.
+         */
+        private int firstWindow( int daysBefore) {
+            int first = sortedWindows.length;
+            while( first > 0 && daysBefore < daysArr[ sortedWindows[first - 1]]) {
+                first--;
+            }
+            return first;
+        }
+
+        private void addMultiDay( MultiDaySketchBuffer mdCounter, int daysBefore, long cnt, Object uniqs) {
+            int first = firstWindow( daysBefore);
+            if( first == sortedWindows.length) {
+                return;
+            }
+            for(int w=first; w<sortedWindows.length; ++w) {
+                mdCounter.counts[ sortedWindows[w]] += cnt;
+            }
+            if( uniqs == null) {
+                return;
+            }
+            StringObjectInspector uniqStrInspector = (StringObjectInspector)uniqInspector.getListElementObjectInspector();
+            HashFamily hashFamily = mdCounter.sketches[ sortedWindows[first]].getHashFamily();
+            int numUniqs = uniqInspector.getListLength( uniqs);
+            for(int j=0; j<numUniqs; ++j) {
+                Object unObj = uniqInspector.getListElement( uniqs, j);
+                if( unObj == null) {
+                    continue;
+                }
+                //// Hash each unique once, and only decode the string if a sketch keeps it
+                Text uniqText = null;
+                String uniqStr = null;
+                long hash;
+                if( uniqStrInspector.preferWritable()) {
+                    uniqText = uniqStrInspector.getPrimitiveWritableObject( unObj);
+                    hash = hashFamily.hashUTF8( uniqText.getBytes(), 0, uniqText.getLength());
+                } else {
+                    uniqStr = uniqStrInspector.getPrimitiveJavaObject( unObj);
+                    hash = hashFamily.hashString( uniqStr);
+                }
+                for(int w=first; w<sortedWindows.length; ++w) {
+                    SketchSet sketch = mdCounter.sketches[ sortedWindows[w]];
+                    if( sketch.isFull() && hash >= sketch.lastHash()) {
+                        //// The larger windows contain this one, so their
+                        ////  sketches are full, with max hashes no larger
+                        break;
                     }
+                    if( uniqStr == null && !sketch.isHashOnly()) {
+                        uniqStr = uniqText.toString();
+                    }
+                    sketch.addHashItem( hash, uniqStr);
                 }
             }
         }
@@ -210,26 +255,44 @@ public class MultiDaySketcherUDAF extends AbstractGenericUDAFResolver {
             for( Object elem : inspected) {
                 daysArr[idx++] = (Integer) ((IntObjectInspector)daysArrInspector.getListElementObjectInspector()).getPrimitiveJavaObject(elem);
             }
+            sortWindows();
+        }
+
+        /**
+         *  Sort the window indexes by the number of days
+         */
+        private void sortWindows() {
+            Integer[] order = new Integer[ daysArr.length];
+            for(int i=0; i<order.length; ++i) {
+                order[i] = i;
+            }
+            Arrays.sort( order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return daysArr[a].compareTo( daysArr[b]);
+                }
+            });
+            sortedWindows = new int[ order.length];
+            for(int i=0; i<order.length; ++i) {
+                sortedWindows[i] = order[i];
+            }
         }
 
         private void setAsofDate( Object obj) {
             String str = asofInspector.getPrimitiveJavaObject(obj);
-            asofDate = getDateTime(str);
+            daysBeforeCache = new DaysBeforeCache( str);
         }
 
-        private DateTime getDateTime(String str) {
-            DateTime dt = yyyymmdd.parseDateTime(str);
-            return dt;
+        private int getDaysBefore( Object dtObj) {
+            if( dtInspector.preferWritable()) {
+                return daysBeforeCache.daysBefore( dtInspector.getPrimitiveWritableObject( dtObj));
+            }
+            return daysBeforeCache.daysBefore( dtInspector.getPrimitiveJavaObject( dtObj));
         }
 
         private long getLong( Object obj) {
             return longInspector.get( obj);
         }
 
-        private List getList( Object obj) {
-            return this.uniqInspector.getList(obj);
-        }
-
         @Override
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
             AggregationBuffer buff= new MultiDaySketchBuffer();
@@ -244,15 +307,14 @@ public class MultiDaySketcherUDAF extends AbstractGenericUDAFResolver {
                 setDaysArr( parameters[4]);
                 reset(agg);
             }
-            if(asofDate == null ) {
+            if(daysBeforeCache == null ) {
                 setAsofDate( parameters[3]);
             }
 
             MultiDaySketchBuffer myagg = (MultiDaySketchBuffer) agg;
-            DateTime dt = getDateTime( dtInspector.getPrimitiveJavaObject(parameters[0]));
+            int daysBefore = getDaysBefore( parameters[0]);
             long cnt = getLong( parameters[1]);
-            List<Object> uniqList = getList( parameters[2]);
-            addMultiDay( myagg, dt, cnt, uniqList);
+            addMultiDay( myagg, daysBefore, cnt, parameters[2]);
         }
 
 
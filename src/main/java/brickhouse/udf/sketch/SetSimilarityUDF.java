@@ -6,6 +6,7 @@ import java.util.Map;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
 
 /**
@@ -27,6 +28,15 @@ public class SetSimilarityUDF extends UDF {
 		if( a.size() ==0 || b.size() == 0 ) {
 			return 0.0;
 		}
+		//// Sketches are re-hashed with the hash they were built with, which must be the same for both
+		HashFamily aFamily = SketchSet.ReadHashMarker( a.get(0));
+		HashFamily bFamily = SketchSet.ReadHashMarker( b.get(0));
+		HashFamily hashFamily = ( aFamily != null ? aFamily : HashFamily.DEFAULT);
+		if( hashFamily != ( bFamily != null ? bFamily : HashFamily.DEFAULT)) {
+			throw new IllegalArgumentException("set_similarity can't compare sketches built with different hashes");
+		}
+		a = a.subList( aFamily != null ? 1 : 0, a.size());
+		b = b.subList( bFamily != null ? 1 : 0, b.size());
 		/// For now, assume min sketch size is 5000...
 		/// otherwise it is better to use array_intersect
 		/// XXX TODO convert to GenericUDF, so that it can be passed in 
@@ -35,9 +45,9 @@ public class SetSimilarityUDF extends UDF {
 		if( sketchSize < SketchSetUDAF.DEFAULT_SKETCH_SET_SIZE)
 		    sketchSize = SketchSetUDAF.DEFAULT_SKETCH_SET_SIZE;
 		
-		SketchSet sketchA = new SketchSet(sketchSize);
-		SketchSet sketchB = new SketchSet(sketchSize);
-		SketchSet sketchAUB = new SketchSet(sketchSize);
+		SketchSet sketchA = new SketchSet(sketchSize, true, hashFamily);
+		SketchSet sketchB = new SketchSet(sketchSize, true, hashFamily);
+		SketchSet sketchAUB = new SketchSet(sketchSize, true, hashFamily);
 		
 		
 		for(String aStr : a) {
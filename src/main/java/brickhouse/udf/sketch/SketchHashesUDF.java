@@ -31,14 +31,15 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
 
 /*
- * Return the set of MD5 hashes from a sketch set,
- *    
+ * Return the set of hashes from a sketch set,
+ *    with the hash it was built with, MD5 by default.
  */
 @Description(name="sketch_hashes",
-value = "_FUNC_(x) - Return the MD5 hashes associated with a KMV sketch set of strings "
+value = "_FUNC_(x) - Return the hashes associated with a KMV sketch set of strings, from the hash the sketch was built with "
 )
 public class SketchHashesUDF extends GenericUDF {
 	private static final Logger LOG = Logger.getLogger( SketchHashesUDF.class);
@@ -52,10 +53,17 @@ public class SketchHashesUDF extends GenericUDF {
 		if( obj == null) {
 			return null;
 		}
-		List oldList = listInspector.getList(obj);
-		int sketchSize = listInspector.getListLength( obj);
-		SketchSet sketchSet = new SketchSet(sketchSize );
-		for( Object oldObj : oldList) {
+		List<?> oldList = listInspector.getList(obj);
+		HashFamily hashFamily = HashFamily.DEFAULT;
+		int start = 0;
+		if( oldList.size() > 0) {
+			String firstItem = listElemInspector.getPrimitiveJavaObject( oldList.get(0));
+			hashFamily = SketchSetUDAF.SketchHashFamily( firstItem, null, "sketch_hashes");
+			start = SketchSetUDAF.NumMarkerItems( firstItem);
+		}
+		int sketchSize = oldList.size() - start;
+		SketchSet sketchSet = new SketchSet(sketchSize, true, hashFamily );
+		for( Object oldObj : oldList.subList( start, oldList.size())) {
 			if( oldObj == null) {
 				LOG.warn(" Object in uninspected List is null");
 			} else {
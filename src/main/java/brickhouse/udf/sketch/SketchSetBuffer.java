@@ -1,26 +1,63 @@
 package brickhouse.udf.sketch;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
+import brickhouse.analytics.uniques.SketchSetFormat;
 
 class SketchSetBuffer implements AggregationBuffer {
+	/// Number of partials to hold before doing a k-way merge
+	static final int MAX_PENDING_RUNS = 16;
+
 	private SketchSet sketchSet = null;
+	private List<SketchSet> pendingRuns = new ArrayList<SketchSet>();
 	
 
 	public void init(int size) {
+		init( size, HashFamily.DEFAULT);
+	}
+
+	public void init(int size, HashFamily hashFamily) {
 		if( sketchSet == null || 
-		    ((sketchSet.getMaxItems() != size) && (size != -1))) {
-			sketchSet = new SketchSet( size);
+		    ((sketchSet.getMaxItems() != size) && (size != -1))
+		    || sketchSet.getHashFamily() != hashFamily) {
+			sketchSet = new SketchSet( size, false, hashFamily);
 		} else {
 			sketchSet.clear();
 		}
+		pendingRuns.clear();
 	}
+	/**
+	 *  Hash items with the family a sketch being unioned was built with.
+	 *   An empty buffer takes it on, but a buffer which already
+	 *   holds items from another hash can't.
+	 */
+	public void useHashFamily( HashFamily hashFamily, String funcName) throws HiveException {
+		if( sketchSet.getHashFamily() == hashFamily) {
+			return;
+		}
+		flushPendingRuns();
+		if( sketchSet.size() > 0) {
+			throw SketchSetUDAF.MixedHashes( sketchSet.getHashFamily(), hashFamily, funcName);
+		}
+		sketchSet = new SketchSet( sketchSet.getMaxItems(), false, hashFamily);
+	}
+
 	public void reset() {
 	  sketchSet.clear();
+	  pendingRuns.clear();
 	}
 	
 	public int getSize() {
@@ -31,20 +68,116 @@ class SketchSetBuffer implements AggregationBuffer {
 	  }
 	}
 	
+	/**
+	 *  The final result, with a marker for the hash family
+	 *   unless it is MD5 ( see SketchSet.getMarkedMinHashItems )
+	 */
 	public List<String> getSketchItems() {
-       return sketchSet.getMinHashItems();
+	   flushPendingRuns();
+       return sketchSet.getMarkedMinHashItems();
 	}
 	
-    public Map<Long,String> getPartialMap() {
-	    Map<Long,String> partial =  sketchSet.getHashItemMap();
-	    partial.put( (long)sketchSet.getMaxItems(), SketchSetUDAF.SKETCH_SIZE_STR);
-	    return partial;
-    }
+	/**
+	 *  Partial aggregation in the binary sketch format 
+	 */
+	public byte[] getPartialBytes() {
+		flushPendingRuns();
+		return SketchSetFormat.ToBytes( sketchSet);
+	}
+	
+	/**
+	 *  Partials are decoded as sorted runs, and 
+	 *   merged in batches, so that the merge can stop after 
+	 *   the K minimum hashes of the whole batch.
+	 */
+	public void mergePartialBytes( byte[] bytes, int offset, int length) {
+		if( getSize() == -1 || (sketchSet.size() == 0 && pendingRuns.isEmpty())) {
+			//// Take the size and the hash from the first partial 
+			init( SketchSetFormat.ReadMaxItems( bytes, offset, length),
+			      SketchSetFormat.ReadHashFamily( bytes, offset, length));
+		}
+		SketchSet run = SketchSetFormat.ReadRun( sketchSet, bytes, offset, length);
+		if( run.size() > 0) {
+			pendingRuns.add( run);
+			if( pendingRuns.size() >= MAX_PENDING_RUNS) {
+				flushPendingRuns();
+			}
+		}
+	}
+	
+	/**
+	 *  Merge a partial, which is either a binary sketch, or an older
+	 *   map of hashes and strings, with the size as a magic entry.
+	 */
+	public void mergePartial( Object partial, BinaryObjectInspector binaryOI, MapObjectInspector mapOI) throws HiveException {
+		if( partial == null) {
+			return;
+		}
+		if( binaryOI != null) {
+			BytesWritable partialBytes = binaryOI.getPrimitiveWritableObject( partial);
+			try {
+				mergePartialBytes( partialBytes.getBytes(), 0, partialBytes.getLength());
+			} catch(IllegalArgumentException illArg) {
+				throw new HiveException(illArg);
+			}
+			return;
+		}
+		Map<?,?> partialResult = mapOI.getMap( partial);
+		if( partialResult == null) {
+			return;
+		}
+		LongObjectInspector hashOI = (LongObjectInspector) mapOI.getMapKeyObjectInspector();
+		StringObjectInspector strOI = (StringObjectInspector) mapOI.getMapValueObjectInspector();
+		//// Place SKETCH_SIZE into the partial map ...
+		if( getSize() == -1) {
+			for( Map.Entry<?,?> entry : partialResult.entrySet()) {
+				String item = strOI.getPrimitiveJavaObject( entry.getValue());
+				if( item.equals( SketchSetUDAF.SKETCH_SIZE_STR)) {
+					init( (int) hashOI.get( entry.getKey()));
+					break;
+				}
+			}
+		}
+		for( Map.Entry<?,?> entry : partialResult.entrySet()) {
+			String item = strOI.getPrimitiveJavaObject( entry.getValue());
+			if( !item.equals( SketchSetUDAF.SKETCH_SIZE_STR)) {
+				addHash( hashOI.get( entry.getKey()), item);
+			}
+		}
+	}
+
+	private void flushPendingRuns() {
+		if(!pendingRuns.isEmpty()) {
+			sketchSet.combineAll( pendingRuns);
+			pendingRuns.clear();
+		}
+	}
     
     public void addItem( String str) {
        sketchSet.addItem( str) ;
     }
+    public void addItemBytes( byte[] bytes, int offset, int len) {
+       sketchSet.addItemBytes( bytes, offset, len);
+    }
+    /**
+     *  Add a string from Hive, hashing the bytes of the Text 
+     *   directly when the inspector has one, rather than 
+     *   decoding a String for every row.
+     */
+    public void addItem( StringObjectInspector strOI, Object strObj) {
+       if( strOI.preferWritable()) {
+          Text text = strOI.getPrimitiveWritableObject( strObj);
+          if( text != null) {
+             sketchSet.addItemBytes( text.getBytes(), 0, text.getLength());
+          }
+       } else {
+          String str = strOI.getPrimitiveJavaObject( strObj);
+          if( str != null) {
+             sketchSet.addItem( str);
+          }
+       }
+    }
     public void addHash( Long hash, String str) {
     	sketchSet.addHashItem( hash, str );
     }
-}
\ No newline at end of file
+}
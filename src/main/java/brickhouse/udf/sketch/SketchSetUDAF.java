@@ -18,9 +18,9 @@ package brickhouse.udf.sketch;
 
 
 
-import java.util.Map;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
@@ -30,13 +30,16 @@ import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.HashFamily;
+import brickhouse.analytics.uniques.SketchSet;
+
 
 /**
  *  Construct a sketch set by aggregating over a a set of ID's
@@ -45,7 +48,9 @@ import org.apache.log4j.Logger;
  */
 
 @Description(name="sketch_set",
-    value = "_FUNC_(x) - Constructs a sketch set to estimate reach for large values  "
+    value = "_FUNC_(x, [size], [hash]) - Constructs a sketch set to estimate reach for large values,"
+        + " with an optional sketch size, and an optional hash function ( md5, murmur3 or xxhash64 ). Default is md5. "
+        + " Sketches not hashed with md5 start with a marker item naming the hash. "
 )
 public class SketchSetUDAF extends AbstractGenericUDAFResolver {
   private static final Logger LOG = Logger.getLogger(SketchSetUDAF.class);
@@ -64,17 +69,74 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
       if((parameters.length > 1) && !parameters[1].getTypeName().equals("int")) {
           throw new SemanticException("Size of sketch must be an int; Got " + parameters[1].getTypeName());
       }
+      if((parameters.length > 2) && !parameters[2].getTypeName().equals("string")) {
+          throw new SemanticException("Sketch hash must be a string; Got " + parameters[2].getTypeName());
+      }
       return new SketchSetUDAFEvaluator();
   }
 
 
+  /**
+   *  Get the hash family from the optional hash name argument,
+   *   which must be a constant string.
+   */
+  static HashFamily GetHashFamily( ObjectInspector hashOI, String funcName) throws UDFArgumentException {
+      if(!( hashOI instanceof StringObjectInspector)
+              || !( hashOI instanceof ConstantObjectInspector)) {
+          throw new UDFArgumentException( funcName + " sketch hash must be a constant string");
+      }
+      Object hashName = ((ConstantObjectInspector) hashOI).getWritableConstantValue();
+      try {
+          return HashFamily.ForName( hashName == null ? null : hashName.toString());
+      } catch(IllegalArgumentException illArg) {
+          throw new UDFArgumentException( illArg.getMessage());
+      }
+  }
+
+  /**
+   *  The hash family of a sketch stored as an array of strings, from the marker
+   *   in its first item, ( see SketchSet.getMarkedMinHashItems ). MD5 sketches have no marker.
+   *  If a hash was passed as an argument, rather than null, the sketch must
+   *   have been built with it.
+   */
+  static HashFamily SketchHashFamily( String firstItem, HashFamily argFamily, String funcName) throws HiveException {
+      HashFamily marked;
+      try {
+          marked = SketchSet.ReadHashMarker( firstItem);
+      } catch(IllegalArgumentException illArg) {
+          throw new HiveException( funcName + " : " + illArg.getMessage());
+      }
+      HashFamily sketchFamily = ( marked != null ? marked : HashFamily.DEFAULT);
+      if( argFamily != null && sketchFamily != argFamily) {
+          throw new HiveException( funcName + " : sketch was built with the " + sketchFamily.getHashName()
+                  + " hash, but is being read with " + argFamily.getHashName());
+      }
+      return sketchFamily;
+  }
+
+  /**
+   *  The number of marker items at the start of a sketch, to skip.
+   */
+  static int NumMarkerItems( String firstItem) {
+      return ( firstItem != null && firstItem.startsWith( SketchSet.HASH_MARKER_PREFIX) ? 1 : 0);
+  }
+
+  /**
+   *  The error for sketches of different hashes, which can't be combined.
+   */
+  static HiveException MixedHashes( HashFamily family, HashFamily otherFamily, String funcName) {
+      return new HiveException( funcName + " : can't combine a sketch built with the " + otherFamily.getHashName()
+              + " hash with one built with " + family.getHashName());
+  }
+
+
   public static class SketchSetUDAFEvaluator extends GenericUDAFEvaluator {
     // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
 	  private StringObjectInspector inputStrOI;
 	  private MapObjectInspector partialMapOI;
-	  private LongObjectInspector partialMapHashOI;
-	  private StringObjectInspector partialMapStrOI;
+	  private BinaryObjectInspector partialBinaryOI;
 	  private int sketchSetSize = -1;
+	  private HashFamily hashFamily = HashFamily.DEFAULT;
 
 
     public ObjectInspector init(Mode m, ObjectInspector[] parameters)
@@ -94,31 +156,33 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
     	  } else {
     	    sketchSetSize = DEFAULT_SKETCH_SET_SIZE;
     	  }
+    	  if( parameters.length > 2) {
+    	     this.hashFamily = GetHashFamily( parameters[2], "sketch_set");
+    	  }
       } else { /// Mode m == Mode.PARTIAL2 || m == Mode.FINAL
-    	   /// merge() gets called ... map is passed in ..
-    	  this.partialMapOI = (MapObjectInspector) parameters[0];
-    	  this.partialMapHashOI = (LongObjectInspector) partialMapOI.getMapKeyObjectInspector();
-    	  this.partialMapStrOI = (StringObjectInspector) partialMapOI.getMapValueObjectInspector();
-        		 
+    	   /// merge() gets called ... binary sketch is passed in ..
+    	  if( parameters[0].getCategory() == Category.MAP) {
+    	     //// Older map of hashes and strings, with the size as a magic entry
+    	     this.partialMapOI = (MapObjectInspector) parameters[0];
+    	  } else {
+    	     this.partialBinaryOI = (BinaryObjectInspector) parameters[0];
+    	  }
       } 
-      /// The intermediate result is a map of hashes and strings,
+      /// The intermediate result is a binary sketch ( see SketchSetFormat ),
       /// The final result is an array of strings
       if( m == Mode.FINAL || m == Mode.COMPLETE) {
     	  /// for final result
          return ObjectInspectorFactory.getStandardListObjectInspector(
               PrimitiveObjectInspectorFactory.javaStringObjectInspector );
       } else { /// m == Mode.PARTIAL1 || m == Mode.PARTIAL2 
-         return ObjectInspectorFactory.getStandardMapObjectInspector(
-        		 PrimitiveObjectInspectorFactory.javaLongObjectInspector,
-        		 PrimitiveObjectInspectorFactory.javaStringObjectInspector
-        		 );
+         return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
       }
     }
 
     @Override
     public AggregationBuffer getNewAggregationBuffer() throws HiveException {
       SketchSetBuffer buff= new SketchSetBuffer();
-      buff.init(sketchSetSize);
+      buff.init(sketchSetSize, hashFamily);
       return buff;
     }
 
@@ -128,9 +192,8 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
       Object strObj = parameters[0];
 
       if (strObj != null) {
-    	  String str = inputStrOI.getPrimitiveJavaObject( strObj);
           SketchSetBuffer myagg = (SketchSetBuffer) agg;
-          myagg.addItem(str);
+          myagg.addItem( inputStrOI, strObj);
 
       }
     }
@@ -138,33 +201,8 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
     @Override
     public void merge(AggregationBuffer agg, Object partial)
         throws HiveException {
-    	/// Partial is going to be a map of strings and hashes 
         SketchSetBuffer myagg = (SketchSetBuffer) agg;
-        
-        if( partial != null) {
-            Map<Object,Object> partialResult = (Map<Object,Object>)  this.partialMapOI.getMap(partial);
-            if( partialResult !=null) {
-                //// Place SKETCH_SIZE into the partial map ...
-                if(myagg.getSize() == -1) {
-                  for( Map.Entry entry : partialResult.entrySet()) {
-                    Long hash = this.partialMapHashOI.get( entry.getKey());
-                    String item = partialMapStrOI.getPrimitiveJavaObject( entry.getValue());
-                    if(item.equals(SKETCH_SIZE_STR)) {
-                      this.sketchSetSize = (int)hash.intValue();
-                      myagg.init(sketchSetSize);
-                      break;
-                    }
-                  }
-                }
-                for( Map.Entry entry : partialResult.entrySet()) {
-                    Long hash = this.partialMapHashOI.get( entry.getKey());
-                    String item = partialMapStrOI.getPrimitiveJavaObject( entry.getValue());
-                    if(!item.equals(SKETCH_SIZE_STR)) {
-                      myagg.addHash(hash, item);
-                    }
-                }
-            }
-        }
+        myagg.mergePartial( partial, partialBinaryOI, partialMapOI);
     }
 
     @Override
@@ -182,7 +220,7 @@ public class SketchSetUDAF extends AbstractGenericUDAFResolver {
     @Override
     public Object terminatePartial(AggregationBuffer agg) throws HiveException {
     	SketchSetBuffer myagg = (SketchSetBuffer)agg;
-    	return myagg.getPartialMap();
+    	return myagg.getPartialBytes();
     }
   }
 
@@ -18,8 +18,6 @@ package brickhouse.udf.sketch;
  *
  **/
 
-import java.util.List;
-import java.util.Map;
 
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
@@ -36,13 +34,14 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.log4j.Logger;
 
+import brickhouse.analytics.uniques.HashFamily;
 import brickhouse.analytics.uniques.SketchSet;
 
 /**
@@ -53,9 +52,10 @@ import brickhouse.analytics.uniques.SketchSet;
  * 
  */
 
-import java.util.List;
 @Description(name="union_sketch_hashes",
-    value = "_FUNC_(x) - Constructs a set of sketch hsshes to estimate reach for large values by collecting multiple sketches "
+    value = "_FUNC_(x, [size], [hash]) - Constructs a set of sketch hsshes to estimate reach for large values by collecting multiple sketches,"
+        + " with an optional sketch size, and an optional hash function ( md5, murmur3 or xxhash64 ). "
+        + " By default the hash is the one named in the sketches, and if it is given, the sketches must have been built with it. "
 )
 public class UnionSketchHashesUDAF extends AbstractGenericUDAFResolver {
   private static final Logger LOG = Logger.getLogger(UnionSketchSetUDAF.class);
@@ -74,9 +74,10 @@ public class UnionSketchHashesUDAF extends AbstractGenericUDAFResolver {
 	  private StringObjectInspector inputStrOI;
 	  private ListObjectInspector inputListOI;
 	  private MapObjectInspector partialMapOI;
-	  private LongObjectInspector partialMapHashOI;
-	  private StringObjectInspector partialMapStrOI;
+	  private BinaryObjectInspector partialBinaryOI;
 	  private int sketchSetSize = -1;
+	  /// Only set when the hash is passed explicitly; otherwise it is read from the sketches
+	  private HashFamily hashFamily = null;
 
 
 
@@ -105,32 +106,34 @@ public class UnionSketchHashesUDAF extends AbstractGenericUDAFResolver {
            } else {
              sketchSetSize = DEFAULT_SKETCH_SET_SIZE;
            }
+           if( parameters.length > 2) {
+              this.hashFamily = SketchSetUDAF.GetHashFamily( parameters[2], "union_sketch_hashes");
+           }
     	  
       } else { /// Mode m == Mode.PARTIAL2 || m == Mode.FINAL
-    	   /// merge() gets called ... map is passed in ..
-    	  this.partialMapOI = (MapObjectInspector) parameters[0];
-    	  this.partialMapHashOI = (LongObjectInspector) partialMapOI.getMapKeyObjectInspector();
-    	  this.partialMapStrOI = (StringObjectInspector) partialMapOI.getMapValueObjectInspector();
-        		 
+    	   /// merge() gets called ... binary sketch is passed in ..
+    	  if( parameters[0].getCategory() == Category.MAP) {
+    	     //// Older map of hashes and strings, with the size as a magic entry
+    	     this.partialMapOI = (MapObjectInspector) parameters[0];
+    	  } else {
+    	     this.partialBinaryOI = (BinaryObjectInspector) parameters[0];
+    	  }
       } 
-      /// The intermediate result is a map of hashes and strings,
+      /// The intermediate result is a binary sketch ( see SketchSetFormat ),
       /// The final result is an array of strings
       if( m == Mode.FINAL || m == Mode.COMPLETE) {
     	  /// for final result
          return ObjectInspectorFactory.getStandardListObjectInspector(
               PrimitiveObjectInspectorFactory.javaStringObjectInspector );
       } else { /// m == Mode.PARTIAL1 || m == Mode.PARTIAL2 
-         return ObjectInspectorFactory.getStandardMapObjectInspector(
-        		 PrimitiveObjectInspectorFactory.javaLongObjectInspector,
-        		 PrimitiveObjectInspectorFactory.javaStringObjectInspector
-        		 );
+         return PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector;
       }
     }
 
     @Override
     public AggregationBuffer getNewAggregationBuffer() throws HiveException {
       SketchSetBuffer buff= new SketchSetBuffer();
-      buff.init(sketchSetSize);
+      buff.init(sketchSetSize, hashFamily != null ? hashFamily : HashFamily.DEFAULT);
       return buff;
     }
 
@@ -140,10 +143,16 @@ public class UnionSketchHashesUDAF extends AbstractGenericUDAFResolver {
       Object listStrObj = parameters[0];
 
       if (listStrObj != null) {
-    	  List listStr = inputListOI.getList(listStrObj);
-    	  for( Object strObj : listStr ) {
-    	     String str = inputStrOI.getPrimitiveJavaObject( strObj);
-             SketchSetBuffer myagg = (SketchSetBuffer) agg;
+    	  int listLen = inputListOI.getListLength(listStrObj);
+    	  if( listLen == 0) {
+    	     return;
+    	  }
+    	  String firstItem = inputStrOI.getPrimitiveJavaObject( inputListOI.getListElement(listStrObj, 0));
+    	  SketchSetBuffer myagg = (SketchSetBuffer) agg;
+    	  myagg.useHashFamily( SketchSetUDAF.SketchHashFamily( firstItem, hashFamily, "union_sketch_hashes"), "union_sketch_hashes");
+    	  int start = SketchSetUDAF.NumMarkerItems( firstItem);
+    	  for( int i=start; i< listLen; ++i) {
+    	     String str = inputStrOI.getPrimitiveJavaObject( inputListOI.getListElement(listStrObj, i));
              myagg.addItem(str);
     	  }
       }
@@ -152,33 +161,8 @@ public class UnionSketchHashesUDAF extends AbstractGenericUDAFResolver {
     @Override
     public void merge(AggregationBuffer agg, Object partial)
         throws HiveException {
-        /// Partial is going to be a map of strings and hashes 
         SketchSetBuffer myagg = (SketchSetBuffer) agg;
-        
-        if( partial != null) {
-            Map<Object,Object> partialResult = (Map<Object,Object>)  this.partialMapOI.getMap(partial);
-            if( partialResult !=null) {
-                //// Place SKETCH_SIZE into the partial map ...
-                if(myagg.getSize() == -1) {
-                  for( Map.Entry entry : partialResult.entrySet()) {
-                    Long hash = this.partialMapHashOI.get( entry.getKey());
-                    String item = partialMapStrOI.getPrimitiveJavaObject( entry.getValue());
-                    if(item.equals(SketchSetUDAF.SKETCH_SIZE_STR)) {
-                      this.sketchSetSize = (int)hash.intValue();
-                      myagg.init(sketchSetSize);
-                      break;
-                    }
-                  }
-                }
-                for( Map.Entry entry : partialResult.entrySet()) {
-                    Long hash = this.partialMapHashOI.get( entry.getKey());
-                    String item = partialMapStrOI.getPrimitiveJavaObject( entry.getValue());
-                    if(!item.equals(SketchSetUDAF.SKETCH_SIZE_STR)) {
-                      myagg.addHash(hash, item);
-                    }
-                }
-            }
-        }
+        myagg.mergePartial( partial, partialBinaryOI, partialMapOI);
     }
 
 
@@ -197,7 +181,7 @@ public class UnionSketchHashesUDAF extends AbstractGenericUDAFResolver {
     @Override
     public Object terminatePartial(AggregationBuffer agg) throws HiveException {
     	SketchSetBuffer myagg = (SketchSetBuffer)agg;
-    	return myagg.getPartialMap();
+    	return myagg.getPartialBytes();
     }
   }
 
@@ -7,12 +7,27 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import brickhouse.udf.sketch.CombineSketchUDF;
+import brickhouse.udf.sketch.EstimatedReachUDF;
 import brickhouse.udf.sketch.SetSimilarityUDF;
+import brickhouse.udf.sketch.UnionSketchSetUDAF;
 
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -386,4 +401,362 @@ public class SketchSetTest {
 
 
 
+
+	@Test
+	public void testHashOnlyMatchesItems() {
+		SketchSet ss = new SketchSet();
+		SketchSet hashOnly = new SketchSet( SketchSet.DEFAULT_MAX_ITEMS, true);
+		for(int i=0; i<50000; ++i) {
+			String uuid = UUID.randomUUID().toString();
+			ss.addItem( uuid);
+			hashOnly.addItem( uuid);
+		}
+		Assert.assertTrue( hashOnly.isHashOnly());
+		Assert.assertEquals( ss.getMinHashes(), hashOnly.getMinHashes());
+		Assert.assertEquals( ss.estimateReach(), hashOnly.estimateReach(), 0.0);
+		Assert.assertEquals( ss.calculateSimHash(), hashOnly.calculateSimHash());
+		Assert.assertEquals( Long.toString( hashOnly.lastHash()), hashOnly.lastItem());
+	}
+
+	@Test
+	public void testMatchesTreeMapSketch() {
+		int maxItems = 100;
+		SketchSet ss = new SketchSet( maxItems);
+		TreeMap<Long,String> expected = new TreeMap<Long,String>();
+		HashFunction md5 = Hashing.md5();
+		for(int i=0; i<10000; ++i) {
+			//// Include duplicates 
+			String item = Integer.toString( (int)(Math.random()*5000));
+			ss.addItem( item);
+			expected.put( md5.hashString( item).asLong(), item);
+			if( expected.size() > maxItems) {
+				expected.remove( expected.lastKey());
+			}
+		}
+		Assert.assertEquals( maxItems, ss.size());
+		Assert.assertEquals( new ArrayList<Long>( expected.keySet()), ss.getMinHashes());
+		Assert.assertEquals( new ArrayList<String>( expected.values()), ss.getMinHashItems());
+		Assert.assertEquals( expected, ss.getHashItemMap());
+		Assert.assertEquals( SketchSet.EstimatedReach( expected.lastKey(), maxItems), ss.estimateReach(), 0.0);
+
+		//// Map is a copy, and shouldn't change the sketch
+		ss.getHashItemMap().put( Long.MIN_VALUE, "SKETCH_SIZE");
+		Assert.assertEquals( expected.firstKey().longValue(), ss.getMinHashArray()[0]);
+	}
+
+	@Test
+	public void testBinaryFormatRoundTrip() {
+		SketchSet ss = new SketchSet();
+		for(int i=0; i<20000; ++i) {
+			ss.addItem( UUID.randomUUID().toString());
+		}
+		byte[] bytes = SketchSetFormat.ToBytes( ss);
+		Assert.assertEquals( SketchSet.DEFAULT_MAX_ITEMS, SketchSetFormat.ReadMaxItems( bytes, 0, bytes.length));
+		SketchSet copy = SketchSetFormat.FromBytes( bytes);
+		Assert.assertEquals( ss.getMaxItems(), copy.getMaxItems());
+		Assert.assertEquals( ss.getMinHashes(), copy.getMinHashes());
+		Assert.assertEquals( ss.getMinHashItems(), copy.getMinHashItems());
+
+		byte[] hashBytes = SketchSetFormat.ToBytes( ss, false);
+		System.out.println(" Binary sketch is " + bytes.length + " bytes; " + hashBytes.length + " without items");
+		Assert.assertTrue( hashBytes.length < ss.size()*8);
+		SketchSet hashCopy = SketchSetFormat.FromBytes( hashBytes);
+		Assert.assertTrue( hashCopy.isHashOnly());
+		Assert.assertEquals( ss.getMinHashes(), hashCopy.getMinHashes());
+		Assert.assertEquals( ss.estimateReach(), hashCopy.estimateReach(), 0.0);
+
+		SketchSet empty = SketchSetFormat.FromBytes( SketchSetFormat.ToBytes( new SketchSet(100)));
+		Assert.assertEquals( 0, empty.size());
+		Assert.assertEquals( 100, empty.getMaxItems());
+	}
+
+	@Test
+	public void testBinaryFormatMerge() {
+		SketchSet a = new SketchSet();
+		SketchSet b = new SketchSet();
+		for(int i=0; i<30000; ++i) {
+			a.addItem( UUID.randomUUID().toString());
+			b.addItem( UUID.randomUUID().toString());
+		}
+		byte[] bBytes = SketchSetFormat.ToBytes( b);
+		SketchSet merged = new SketchSet();
+		merged.combine( a);
+		SketchSetFormat.Merge( merged, bBytes, 0, bBytes.length);
+		a.combine( b);
+		Assert.assertEquals( a.getMinHashes(), merged.getMinHashes());
+		Assert.assertEquals( a.getMinHashItems(), merged.getMinHashItems());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBinaryFormatBadMagic() {
+		SketchSetFormat.FromBytes( "not a sketch".getBytes());
+	}
+
+	@Test
+	public void testCombineAll() {
+		int numSketches = 40;
+		List<SketchSet> sketches = new ArrayList<SketchSet>();
+		SketchSet expected = new SketchSet();
+		for(int i=0; i<numSketches; ++i) {
+			SketchSet ss = new SketchSet();
+			int numItems = (int)(Math.random()*10000);
+			for(int j=0; j<numItems; ++j) {
+				//// Overlapping items between sketches
+				String item = Integer.toString( (int)(Math.random()*100000));
+				ss.addItem( item);
+				expected.addItem( item);
+			}
+			sketches.add( ss);
+		}
+		SketchSet combined = new SketchSet();
+		combined.combineAll( sketches);
+		Assert.assertEquals( expected.getMinHashes(), combined.getMinHashes());
+		Assert.assertEquals( expected.getMinHashItems(), combined.getMinHashItems());
+		Assert.assertEquals( expected.estimateReach(), combined.estimateReach(), 0.0);
+
+		SketchSet pairwise = new SketchSet();
+		for( SketchSet ss : sketches) {
+			pairwise.combine( ss);
+		}
+		Assert.assertEquals( expected.getMinHashItems(), pairwise.getMinHashItems());
+
+		//// Still behaves after merges have swapped the arrays
+		pairwise.addHash( Long.MIN_VALUE);
+		Assert.assertEquals( Long.MIN_VALUE, pairwise.getMinHashArray()[0]);
+		Assert.assertEquals( expected.getMaxItems(), pairwise.size());
+	}
+
+	@Test
+	public void testCombineSmallSketches() {
+		SketchSet a = new SketchSet(10);
+		SketchSet b = new SketchSet(10, true);
+		a.addHash( 5);
+		a.addHash( 1);
+		b.addHash( 5);
+		b.addHash( 3);
+		a.combine( b);
+		Assert.assertEquals( 3, a.size());
+		Assert.assertEquals( "5", a.lastItem());
+		Assert.assertEquals( 3.0, a.estimateReach(), 0.0);
+		a.combine( new SketchSet(10));
+		Assert.assertEquals( 3, a.size());
+	}
+
+	/**
+	 *  Compare the k-way merge with inserting every hash, 
+	 *   for unioning many sketches.
+	 */
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkCombine() {
+		int numSketches = 1000;
+		List<SketchSet> sketches = new ArrayList<SketchSet>();
+		for(int i=0; i<numSketches; ++i) {
+			SketchSet ss = new SketchSet();
+			for(int j=0; j<SketchSet.DEFAULT_MAX_ITEMS*2; ++j) {
+				ss.addHash( (long)((Math.random()*2 - 1)*Long.MAX_VALUE));
+			}
+			sketches.add( ss);
+		}
+		for(int trial=0; trial<5; ++trial) {
+			long start = System.nanoTime();
+			SketchSet inserted = new SketchSet();
+			for( SketchSet ss : sketches) {
+				long[] hashes = ss.getMinHashArray();
+				List<String> items = ss.getMinHashItems();
+				for(int i=0; i<hashes.length; ++i) {
+					inserted.addHashItem( hashes[i], items.get(i));
+				}
+			}
+			long insertTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			SketchSet merged = new SketchSet();
+			merged.combineAll( sketches);
+			long mergeTime = System.nanoTime() - start;
+
+			Assert.assertEquals( inserted.getMinHashes(), merged.getMinHashes());
+			System.out.println(" Union of " + numSketches + " sketches; insert took " + insertTime/1000000 + " ms ; k-way merge took " + mergeTime/1000000 + " ms");
+		}
+	}
+
+	@Test
+	public void testHashFamilies() {
+		HashFunction md5 = Hashing.md5();
+		for(int i=0; i<1000; ++i) {
+			String uuid = UUID.randomUUID().toString() + "\u00e9\u4e2d";
+			Assert.assertEquals( md5.hashString( uuid).asLong(), HashFamily.MD5.hashString( uuid));
+		}
+		Assert.assertEquals( HashFamily.MD5, HashFamily.DEFAULT);
+		Assert.assertEquals( HashFamily.MURMUR3_128, HashFamily.ForName("murmur3"));
+		Assert.assertEquals( HashFamily.XXHASH64, HashFamily.ForName("XXHASH64"));
+		Assert.assertEquals( 0xEF46DB3751D8E999L, HashFamily.XXHash64( new byte[0], 0, 0));
+		Assert.assertEquals( 0x44BC2CF5AD770999L, HashFamily.XXHASH64.hashString("abc"));
+		//// Every length of tail
+		HashFunction murmur = Hashing.murmur3_128();
+		byte[] data = new byte[40];
+		for(int i=0; i<data.length; ++i) {
+			data[i] = (byte)(i*37 + 200);
+		}
+		for(int len=0; len<data.length; ++len) {
+			Assert.assertEquals( murmur.hashBytes( data, 1, len).asLong(), HashFamily.Murmur3_128( data, 1, len));
+		}
+
+		for( HashFamily family : HashFamily.values()) {
+			SketchSet ss = new SketchSet( SketchSet.DEFAULT_MAX_ITEMS, false, family);
+			int numItems = 200000;
+			for(int i=0; i<numItems; ++i) {
+				ss.addItem( "user" + i);
+			}
+			double ratio = ss.estimateReach()/numItems;
+			System.out.println( " Hash " + family.getHashName() + " estimated reach " + ss.estimateReach() + " ratio = " + ratio);
+			Assert.assertTrue( ratio > 0.95 && ratio < 1.05);
+			Assert.assertEquals( ss.estimateReach(), SketchSet.EstimatedReach( ss.lastItem(), ss.getMaxItems(), family), 0.0);
+
+			byte[] bytes = SketchSetFormat.ToBytes( ss);
+			Assert.assertEquals( family, SketchSetFormat.ReadHashFamily( bytes, 0, bytes.length));
+			Assert.assertEquals( family, SketchSetFormat.FromBytes( bytes).getHashFamily());
+		}
+	}
+
+	@Test
+	public void testHashUTF8MatchesString() throws Exception {
+		String[] strs = { "", "a", "user12345", "caf\u00e9", "\u4e2d\u6587", "emoji \ud83d\ude00 !", 
+				UUID.randomUUID().toString() + "\u00e9\u4e2d" };
+		for( HashFamily family : HashFamily.values()) {
+			for( String str : strs) {
+				byte[] utf8 = str.getBytes("UTF-8");
+				//// Hash from the middle of a larger buffer
+				byte[] padded = new byte[ utf8.length + 7];
+				System.arraycopy( utf8, 0, padded, 3, utf8.length);
+				Assert.assertEquals( family.hashString( str), family.hashUTF8( padded, 3, utf8.length));
+			}
+			//// Malformed bytes hash the same as the decoded replacement characters
+			byte[] malformed = { 'a', (byte)0xC3, 'b', (byte)0xED, (byte)0xA0, (byte)0x80, (byte)0xFF };
+			Assert.assertEquals( family.hashString( new String( malformed, "UTF-8")), family.hashUTF8( malformed, 0, malformed.length));
+		}
+	}
+
+	@Test
+	public void testAddItemBytes() throws Exception {
+		for( HashFamily family : HashFamily.values()) {
+			SketchSet fromStrings = new SketchSet( 500, false, family);
+			SketchSet fromBytes = new SketchSet( 500, false, family);
+			byte[] buf = new byte[64];
+			for(int i=0; i<20000; ++i) {
+				String item = "user\u00e9" + i;
+				fromStrings.addItem( item);
+				byte[] utf8 = item.getBytes("UTF-8");
+				System.arraycopy( utf8, 0, buf, 0, utf8.length);
+				fromBytes.addItemBytes( buf, 0, utf8.length);
+			}
+			Assert.assertEquals( fromStrings.getHashItemMap(), fromBytes.getHashItemMap());
+		}
+	}
+
+	@Test
+	public void testMixedHashFamiliesNotCombined() {
+		SketchSet md5 = new SketchSet();
+		SketchSet murmur = new SketchSet( SketchSet.DEFAULT_MAX_ITEMS, false, HashFamily.MURMUR3_128);
+		md5.addItem("a");
+		murmur.addItem("b");
+		try {
+			md5.combine( murmur);
+			Assert.fail("Combined sketches with different hashes");
+		} catch(IllegalArgumentException expected) {
+		}
+		byte[] bytes = SketchSetFormat.ToBytes( murmur);
+		try {
+			SketchSetFormat.Merge( md5, bytes, 0, bytes.length);
+			Assert.fail("Merged sketches with different hashes");
+		} catch(IllegalArgumentException expected) {
+		}
+		Assert.assertEquals( 1, md5.size());
+	}
+
+	@Test
+	public void testMarkedSketchItems() throws Exception {
+		SketchSet md5 = new SketchSet();
+		md5.addItem("a");
+		Assert.assertEquals( md5.getMinHashItems(), md5.getMarkedMinHashItems());
+
+		SketchSet murmur = new SketchSet( 100, false, HashFamily.MURMUR3_128);
+		for(int i=0; i<10000; ++i) {
+			murmur.addItem( "user" + i);
+		}
+		List<String> marked = murmur.getMarkedMinHashItems();
+		Assert.assertEquals( 101, marked.size());
+		Assert.assertEquals( HashFamily.MURMUR3_128, SketchSet.ReadHashMarker( marked.get(0)));
+		Assert.assertNull( SketchSet.ReadHashMarker( marked.get(1)));
+
+		ObjectInspector listInsp = ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		ObjectInspector hashInsp = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+				TypeInfoFactory.stringTypeInfo, new Text("murmur3"));
+		DeferredObject[] args = { new DeferredJavaObject( marked), new DeferredJavaObject( 100) };
+
+		EstimatedReachUDF reachUDF = new EstimatedReachUDF();
+		reachUDF.initialize( new ObjectInspector[] { listInsp, PrimitiveObjectInspectorFactory.javaIntObjectInspector, hashInsp });
+		Assert.assertEquals( (long) murmur.estimateReach(), reachUDF.evaluate( args));
+
+		//// Without a hash argument, the hash is read from the marker
+		EstimatedReachUDF markedReachUDF = new EstimatedReachUDF();
+		markedReachUDF.initialize( new ObjectInspector[] { listInsp, PrimitiveObjectInspectorFactory.javaIntObjectInspector });
+		Assert.assertEquals( (long) murmur.estimateReach(), markedReachUDF.evaluate( args));
+
+		//// Combined sketches keep the hash, and its marker
+		CombineSketchUDF combineUDF = new CombineSketchUDF();
+		combineUDF.initialize( new ObjectInspector[] { listInsp, listInsp });
+		Object combined = combineUDF.evaluate( new DeferredObject[] { new DeferredJavaObject( marked), new DeferredJavaObject( marked) });
+		Assert.assertEquals( marked, combined);
+
+		UnionSketchSetUDAF.MergeSketchSetUDAFEvaluator unionEval = new UnionSketchSetUDAF.MergeSketchSetUDAFEvaluator();
+		unionEval.init( Mode.COMPLETE, new ObjectInspector[] { listInsp });
+		AggregationBuffer unionBuff = unionEval.getNewAggregationBuffer();
+		unionEval.iterate( unionBuff, new Object[] { marked });
+		List<?> unioned = (List<?>) unionEval.terminate( unionBuff);
+		Assert.assertEquals( marked, unioned);
+
+		//// Reading the sketch explicitly as MD5 fails, rather than giving a wrong estimate
+		ObjectInspector md5Insp = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+				TypeInfoFactory.stringTypeInfo, new Text("md5"));
+		EstimatedReachUDF md5ReachUDF = new EstimatedReachUDF();
+		md5ReachUDF.initialize( new ObjectInspector[] { listInsp, PrimitiveObjectInspectorFactory.javaIntObjectInspector, md5Insp });
+		try {
+			md5ReachUDF.evaluate( args);
+			Assert.fail("Read a murmur3 sketch as md5");
+		} catch(HiveException expected) {
+		}
+
+		//// Sketches of different hashes can't be combined
+		try {
+			combineUDF.evaluate( new DeferredObject[] { new DeferredJavaObject( marked), new DeferredJavaObject( md5.getMarkedMinHashItems()) });
+			Assert.fail("Combined murmur3 and md5 sketches");
+		} catch(HiveException expected) {
+		}
+	}
+
+	/**
+	 *  Per-row throughput of adding items with each hash family.
+	 */
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkHashFamilies() {
+		int numItems = 2000000;
+		String[] items = new String[ 100000];
+		for(int i=0; i<items.length; ++i) {
+			items[i] = UUID.randomUUID().toString();
+		}
+		for(int trial=0; trial<3; ++trial) {
+			for( HashFamily family : HashFamily.values()) {
+				SketchSet ss = new SketchSet( SketchSet.DEFAULT_MAX_ITEMS, false, family);
+				long start = System.nanoTime();
+				for(int i=0; i<numItems; ++i) {
+					ss.addItem( items[i % items.length]);
+				}
+				long elapsed = System.nanoTime() - start;
+				System.out.println( " Hash " + family.getHashName() + " : " + (long)(numItems/(elapsed/1.0e9)) + " rows/sec");
+			}
+		}
+	}
+
 }
@@ -2,13 +2,36 @@ package brickhouse.udf.bloom;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.UUID;
 
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.util.bloom.Filter;
 import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class BloomTest {
@@ -91,4 +114,335 @@ public class BloomTest {
 	
 	}
 
+	@Test
+	public void testBloomUDAF() throws Exception {
+		ObjectInspector[] inputOIs = new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector( 
+						TypeInfoFactory.intTypeInfo, new IntWritable( 10000)),
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector( 
+						TypeInfoFactory.doubleTypeInfo, new DoubleWritable( 0.01))
+		};
+		HashSet<String> keys = new HashSet<String>();
+		byte[][] partials = new byte[2][];
+		//// Reuse one Text, as Hive does, so the backing array is often longer than the key
+		Text text = new Text();
+		for(int p=0; p<partials.length; ++p) {
+			GenericUDAFEvaluator eval = new BloomUDAF().getEvaluator( new TypeInfo[] { 
+					TypeInfoFactory.stringTypeInfo, TypeInfoFactory.intTypeInfo, TypeInfoFactory.doubleTypeInfo });
+			eval.init( Mode.PARTIAL1, inputOIs);
+			AggregationBuffer agg = eval.getNewAggregationBuffer();
+			for( int i = 0; i< 1000; ++i ) {
+				String key = UUID.randomUUID().toString().substring( 0, 10 + (i % 27));
+				text.set( key);
+				eval.iterate( agg, new Object[] { text, null, null });
+				keys.add( key);
+			}
+			partials[p] = (byte[]) eval.terminatePartial( agg);
+			//// Sized for 10000 elements, not the default 10 million
+			Assert.assertTrue( partials[p].length < 20000);
+		}
+
+		GenericUDAFEvaluator finalEval = new BloomUDAF().getEvaluator( new TypeInfo[] { TypeInfoFactory.stringTypeInfo });
+		finalEval.init( Mode.FINAL, new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector });
+		AggregationBuffer agg = finalEval.getNewAggregationBuffer();
+		for( byte[] partial : partials) {
+			finalEval.merge( agg, partial);
+		}
+		Filter bloom = BloomFactory.ReadBloomFromString( (String) finalEval.terminate( agg));
+		for( String key : keys) {
+			Assert.assertTrue( bloom.membershipTest( new Key(key.getBytes())));
+		}
+		int falsePositives = 0;
+		for( int i = 0; i< 10000; ++i ) {
+			if( bloom.membershipTest( new Key(UUID.randomUUID().toString().getBytes()))) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue( falsePositives < 300);
+	}
+
+	@Test
+	public void testSerializedSameAsHadoopBloom() throws Exception {
+		//// Sizes which aren't a multiple of 8 or 64 bits
+		int[] vectorSizes = { 1, 7, 64, 1001, 65537 };
+		for( int vectorSize : vectorSizes) {
+			org.apache.hadoop.util.bloom.BloomFilter hadoopBloom = new org.apache.hadoop.util.bloom.BloomFilter( vectorSize, 5, Hash.JENKINS_HASH);
+			BloomFilter bloom = new BloomFilter( vectorSize, 5, Hash.JENKINS_HASH);
+			for( int i = 0; i< 500; ++i ) {
+				Key key = new Key( UUID.randomUUID().toString().getBytes());
+				hadoopBloom.add( key);
+				bloom.add( key);
+			}
+			byte[] hadoopBytes = WriteBytes( hadoopBloom);
+			Assert.assertArrayEquals( hadoopBytes, BloomFactory.WriteBloomToBytes( bloom));
+
+			BloomFilter readBloom = (BloomFilter) BloomFactory.ReadBloomFromBytes( hadoopBytes, 0, hadoopBytes.length);
+			Assert.assertEquals( hadoopBloom.toString(), readBloom.toString());
+		}
+	}
+
+	@Test
+	public void testWordOperations() throws Exception {
+		int vectorSize = 10007;
+		BloomFilter bloom1 = new BloomFilter( vectorSize, 3, Hash.JENKINS_HASH);
+		BloomFilter bloom2 = new BloomFilter( vectorSize, 3, Hash.JENKINS_HASH);
+		HashSet<String> keys1 = new HashSet<String>();
+		for( int i = 0; i< 200; ++i ) {
+			String uuid = UUID.randomUUID().toString();
+			bloom1.add( new Key( uuid.getBytes()));
+			keys1.add( uuid);
+			bloom2.add( new Key( UUID.randomUUID().toString().getBytes()));
+		}
+		long bits1 = bloom1.cardinality();
+		long bits2 = bloom2.cardinality();
+
+		byte[] bytes1 = BloomFactory.WriteBloomToBytes( bloom1);
+		BloomFilter orBloom = (BloomFilter) BloomFactory.ReadBloomFromBytes( bytes1, 0, bytes1.length);
+		orBloom.or( bloom2);
+		for( String key : keys1) {
+			Assert.assertTrue( orBloom.membershipTest( new Key( key.getBytes())));
+		}
+		Assert.assertTrue( orBloom.cardinality() >= Math.max( bits1, bits2));
+
+		BloomFilter andBloom = (BloomFilter) BloomFactory.ReadBloomFromBytes( bytes1, 0, bytes1.length);
+		andBloom.and( bloom2);
+		Assert.assertEquals( bits1 + bits2 - orBloom.cardinality(), andBloom.cardinality());
+
+		//// not flips every bit in the vector
+		bloom1.not();
+		Assert.assertEquals( vectorSize - bits1, bloom1.cardinality());
+		bloom1.not();
+		Assert.assertEquals( bits1, bloom1.cardinality());
+
+		Assert.assertEquals( (double)bits1/vectorSize, bloom1.getFillRatio(), 1e-12);
+		Assert.assertEquals( Math.pow( (double)bits1/vectorSize, 3), bloom1.getEstimatedFalsePositiveProbability(), 1e-12);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testDifferentSizesNotCombined() {
+		BloomFilter bloom1 = new BloomFilter( 1000, 3, Hash.JENKINS_HASH);
+		BloomFilter bloom2 = new BloomFilter( 1001, 3, Hash.JENKINS_HASH);
+		bloom1.or( bloom2);
+	}
+
+	@Test
+	public void testMappedBloomFile() throws Exception {
+		Filter bloom = BloomFactory.NewBloomInstance( 10000, 0.01);
+		HashSet<String> keys = new HashSet<String>();
+		for( int i = 0; i< 1000; ++i ) {
+			String uuid = UUID.randomUUID().toString();
+			bloom.add( new Key( uuid.getBytes()));
+			keys.add( uuid);
+		}
+		File rawFile = File.createTempFile( "bloom", ".raw");
+		rawFile.deleteOnExit();
+		BloomFactory.WriteRawBloomFile( bloom, rawFile);
+
+		//// Base64 file, as written by the bloom UDAF, with a trailing newline
+		File encodedFile = File.createTempFile( "bloom", ".txt");
+		encodedFile.deleteOnExit();
+		FileOutputStream out = new FileOutputStream( encodedFile);
+		BloomFactory.WriteBloomToStream( out, bloom);
+		out.write( '\n');
+		out.close();
+
+		File workDir = new File( System.getProperty("user.dir"));
+		int numWorkFiles = workDir.list().length;
+		for( File file : new File[] { rawFile, encodedFile }) {
+			BloomMembership mapped = DistributedBloomUDF.loadBloom( file.getPath());
+			Assert.assertTrue( mapped instanceof MappedBloomFilter);
+			for( String key : keys) {
+				Assert.assertTrue( mapped.membershipTest( new Key( key.getBytes())));
+			}
+			Assert.assertArrayEquals( BloomFactory.WriteBloomToBytes( bloom), BloomFactory.WriteBloomToBytes( mapped.copyToFilter()));
+		}
+		//// The decoded file is deleted once it is mapped
+		Assert.assertEquals( numWorkFiles, workDir.list().length);
+	}
+
+	@Test
+	public void testNamedBloomNotModified() throws Exception {
+		Filter bloom = BloomFactory.NewBloomInstance( 10000, 0.01);
+		bloom.add( new Key( "a".getBytes()));
+		File rawFile = File.createTempFile( "bloom", ".raw");
+		rawFile.deleteOnExit();
+		BloomFactory.WriteRawBloomFile( bloom, rawFile);
+		String name = rawFile.getPath();
+		new DistributedBloomUDF().evaluate( name);
+
+		Filter notBloom = BloomFactory.ReadBloomFromString( new BloomNotUDF().evaluate( name));
+		Assert.assertFalse( notBloom.membershipTest( new Key( "a".getBytes())));
+		Assert.assertTrue( BloomFactory.GetNamedBloomFilter( name).membershipTest( new Key( "a".getBytes())));
+	}
+
+	@Test
+	public void testNamedBloomRegistry() throws Exception {
+		NamedBloomRegistry registry = new NamedBloomRegistry();
+		registry.setLimits( 2, Long.MAX_VALUE);
+		File[] files = new File[3];
+		for( int i = 0; i < files.length; ++i) {
+			Filter bloom = BloomFactory.NewBloomInstance( 1000, 0.01);
+			bloom.add( new Key( ("key" + i).getBytes()));
+			files[i] = File.createTempFile( "bloom", ".raw");
+			files[i].deleteOnExit();
+			BloomFactory.WriteRawBloomFile( bloom, files[i]);
+		}
+		String name0 = files[0].getPath();
+		String name1 = files[1].getPath();
+		String name2 = files[2].getPath();
+
+		NamedBloomRegistry.Entry entry0 = registry.acquire( name0);
+		BloomMembership bloom0 = entry0.getBloom();
+		Assert.assertSame( entry0, registry.acquire( name0));
+		Assert.assertEquals( 1, registry.getLoads());
+		Assert.assertEquals( 1, registry.getHits());
+
+		registry.load( name1);
+		Assert.assertNotNull( registry.get( name1));
+		//// The third bloom evicts the least recently used unreferenced bloom
+		registry.load( name2);
+		Assert.assertEquals( 2, registry.size());
+		Assert.assertNull( registry.get( name1));
+		Assert.assertSame( bloom0, registry.get( name0));
+		Assert.assertEquals( 1, registry.getEvictions());
+
+		//// Once released, the referenced bloom can be evicted too
+		registry.release( entry0);
+		registry.release( entry0);
+		registry.get( name2);
+		registry.load( name1);
+		Assert.assertNull( registry.get( name0));
+		Assert.assertEquals( 2, registry.getEvictions());
+		Assert.assertEquals( 4, registry.getLoads());
+		Assert.assertTrue( registry.getBytes() > 0);
+
+		//// A modified file is loaded again
+		BloomMembership bloom1 = registry.get( name1);
+		files[1].setLastModified( files[1].lastModified() - 10000);
+		BloomMembership reloaded = registry.load( name1);
+		Assert.assertNotSame( bloom1, reloaded);
+		Assert.assertTrue( reloaded.membershipTest( new Key( "key1".getBytes())));
+		Assert.assertEquals( 5, registry.getLoads());
+	}
+
+	@Test
+	public void testModifiedNamedBloomKeepsReferences() throws Exception {
+		NamedBloomRegistry registry = new NamedBloomRegistry();
+		registry.setLimits( 1, Long.MAX_VALUE);
+		File file = File.createTempFile( "bloom", ".raw");
+		file.deleteOnExit();
+		Filter bloom = BloomFactory.NewBloomInstance( 1000, 0.01);
+		bloom.add( new Key( "v1".getBytes()));
+		BloomFactory.WriteRawBloomFile( bloom, file);
+		String name = file.getPath();
+
+		//// Task A holds the first version, then the file is replaced, and task B loads it
+		NamedBloomRegistry.Entry entryA = registry.acquire( name);
+		bloom.add( new Key( "v2".getBytes()));
+		BloomFactory.WriteRawBloomFile( bloom, file);
+		file.setLastModified( file.lastModified() + 10000);
+		NamedBloomRegistry.Entry entryB = registry.acquire( name);
+		Assert.assertNotSame( entryA, entryB);
+		Assert.assertSame( entryB.getBloom(), registry.get( name));
+		//// Both are held, so both are counted, even over the limit
+		Assert.assertEquals( 2, registry.size());
+		long twoBytes = registry.getBytes();
+
+		//// A's release drops the old version, and not B's
+		registry.release( entryA);
+		Assert.assertEquals( 1, registry.size());
+		Assert.assertEquals( twoBytes/2, registry.getBytes());
+		Assert.assertEquals( 1, entryB.refCount.get());
+
+		//// B's bloom isn't evicted while B still holds it
+		File other = File.createTempFile( "bloom", ".raw");
+		other.deleteOnExit();
+		BloomFactory.WriteRawBloomFile( BloomFactory.NewBloomInstance( 1000, 0.01), other);
+		registry.load( other.getPath());
+		Assert.assertSame( entryB.getBloom(), registry.get( name));
+		Assert.assertTrue( entryB.getBloom().membershipTest( new Key( "v2".getBytes())));
+
+		registry.release( entryB);
+		Assert.assertEquals( 0, entryB.refCount.get());
+	}
+
+	@Test
+	public void testBloomContains() throws Exception {
+		Filter bloom = BloomFactory.NewBloomInstance( 1000, 0.001);
+		bloom.add( new Key( "in1".getBytes()));
+		bloom.add( new Key( "in2".getBytes()));
+		String encoded = BloomFactory.WriteBloomToString( bloom);
+
+		ObjectInspector[] constantOIs = new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector( 
+						TypeInfoFactory.stringTypeInfo, new Text( encoded))
+		};
+		ObjectInspector[] nonConstantOIs = new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector
+		};
+		for( ObjectInspector[] ois : new ObjectInspector[][] { constantOIs, nonConstantOIs }) {
+			BloomContainsUDF udf = new BloomContainsUDF();
+			udf.initialize( ois);
+			Text text = new Text();
+			for( String key : new String[] { "in1", "out", "in2" }) {
+				text.set( key);
+				Object result = udf.evaluate( new DeferredObject[] { new DeferredJavaObject( text), new DeferredJavaObject( encoded) });
+				Assert.assertEquals( key.startsWith("in"), result);
+			}
+			Assert.assertNull( udf.evaluate( new DeferredObject[] { new DeferredJavaObject( null), new DeferredJavaObject( encoded) }));
+		}
+
+		BloomContainsUDF arrayUdf = new BloomContainsUDF();
+		arrayUdf.initialize( new ObjectInspector[] {
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector });
+		Object result = arrayUdf.evaluate( new DeferredObject[] { 
+				new DeferredJavaObject( Arrays.asList( "in1", "out", null, "in2")), new DeferredJavaObject( encoded) });
+		Assert.assertEquals( Arrays.asList( true, false, null, true), result);
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkCombine() throws Exception {
+		//// Default blooms are about 14MB
+		org.apache.hadoop.util.bloom.BloomFilter hadoopBloom = new org.apache.hadoop.util.bloom.BloomFilter( 144000000, 8, Hash.JENKINS_HASH);
+		BloomFilter bloom = (BloomFilter) BloomFactory.NewBloomInstance();
+		for( int i = 0; i< 100000; ++i ) {
+			Key key = new Key( UUID.randomUUID().toString().getBytes());
+			hadoopBloom.add( key);
+			bloom.add( key);
+		}
+		byte[] hadoopBytes = WriteBytes( hadoopBloom);
+		byte[] bytes = BloomFactory.WriteBloomToBytes( bloom);
+		for( int run = 0; run < 3; ++run) {
+			long start = System.currentTimeMillis();
+			for( int i = 0; i < 5; ++i) {
+				org.apache.hadoop.util.bloom.BloomFilter other = new org.apache.hadoop.util.bloom.BloomFilter();
+				other.readFields( new DataInputStream( new ByteArrayInputStream( hadoopBytes)));
+				hadoopBloom.or( other);
+				hadoopBloom.not();
+				hadoopBytes = WriteBytes( hadoopBloom);
+			}
+			long hadoopTime = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for( int i = 0; i < 5; ++i) {
+				Filter other = BloomFactory.ReadBloomFromBytes( bytes, 0, bytes.length);
+				bloom.or( other);
+				bloom.not();
+				bytes = BloomFactory.WriteBloomToBytes( bloom);
+			}
+			long time = System.currentTimeMillis() - start;
+			System.out.println(" Read, or, not and write 5 times; hadoop BitSet " + hadoopTime + " ms ; long words " + time + " ms");
+		}
+	}
+
+	private static byte[] WriteBytes( Filter bloom) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		bloom.write( new DataOutputStream( buffer));
+		return buffer.toByteArray();
+	}
+
 }
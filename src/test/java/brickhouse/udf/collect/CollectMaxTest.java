@@ -1,19 +1,28 @@
 package brickhouse.udf.collect;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import junit.framework.Assert;
 
 import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableIntObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableStringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import brickhouse.udf.collect.CollectMaxUDAF.MapCollectMaxUDAFEvaluator;
@@ -146,6 +155,91 @@ public class CollectMaxTest {
 		
 		
 	
+	@Test
+	public void testTiesAndRepeats() throws HiveException {
+		for( boolean desc : new boolean[] { true, false }) {
+			MapCollectMaxUDAFEvaluator maxEval = new MapCollectMaxUDAFEvaluator( desc);
+			maxEval.init( Mode.PARTIAL1, new ObjectInspector[] {
+					PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+					PrimitiveObjectInspectorFactory.javaLongObjectInspector });
+			MapAggBuffer buffer = (MapAggBuffer) maxEval.getNewAggregationBuffer();
+
+			final Map<String,Long> all = new HashMap<String,Long>();
+			Random rand = new Random(31);
+			for(int i=0; i<2000; i++) {
+				String key = "key_" + rand.nextInt(500);
+				//// few distinct values, so there are lots of ties
+				Long val = all.containsKey( key) ? all.get( key) : (long) rand.nextInt(30);
+				all.put( key, val);
+				buffer.addValue( key, val);
+			}
+			List<String> keys = new ArrayList<String>( all.keySet());
+			final int sign = desc ? 1 : -1;
+			Collections.sort( keys, new Comparator<String>() {
+				public int compare(String a, String b) {
+					int cmp = all.get(b).compareTo( all.get(a));
+					return sign * ( cmp != 0 ? cmp : a.compareTo(b));
+				}
+			});
+			List<String> expected = keys.subList( 0, CollectMaxUDAF.DEFAULT_MAX_VALUES);
+			Map<String,Long> valueMap = (Map<String,Long>) buffer.getValueMap();
+			Assert.assertEquals( expected, new ArrayList<String>( valueMap.keySet()));
+			for( String key : expected) {
+				Assert.assertEquals( all.get( key), valueMap.get( key));
+			}
+		}
+	}
+
+	@Test
+	public void testRepeatedEntriesWithLargeN() throws HiveException {
+		MapCollectMaxUDAFEvaluator maxEval = new MapCollectMaxUDAFEvaluator( true);
+		maxEval.init( Mode.PARTIAL1, new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.writableDoubleObjectInspector,
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.intTypeInfo, new IntWritable( 500)) });
+		MapAggBuffer buffer = (MapAggBuffer) maxEval.getNewAggregationBuffer();
+		for( int pass=0; pass<2; ++pass) {
+			//// Each entry is added many times, and the keys and values are reused
+			Text key = new Text();
+			DoubleWritable val = new DoubleWritable();
+			for(int rep=0; rep<5; ++rep) {
+				for(int i=0; i<1000; i++) {
+					key.set( "key_" + i);
+					val.set( i);
+					buffer.addValue( key, val);
+				}
+			}
+			Map<?,?> valueMap = buffer.getValueMap();
+			Assert.assertEquals( 500, valueMap.size());
+			Assert.assertEquals( new DoubleWritable( 999), valueMap.get( new Text("key_999")));
+			Assert.assertEquals( new DoubleWritable( 500), valueMap.get( new Text("key_500")));
+			Assert.assertFalse( valueMap.containsKey( new Text("key_499")));
+			buffer.reset();
+		}
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkCollectMax() throws HiveException {
+		MapCollectMaxUDAFEvaluator maxEval = new MapCollectMaxUDAFEvaluator(true);
+		maxEval.init( Mode.PARTIAL1, new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.writableDoubleObjectInspector });
+		MapAggBuffer buffer = (MapAggBuffer) maxEval.getNewAggregationBuffer();
+		Text[] keys = new Text[100000];
+		for(int i=0; i<keys.length; i++) {
+			keys[i] = new Text("key_" + i);
+		}
+		DoubleWritable val = new DoubleWritable();
+		Random rand = new Random(7);
+		long start = System.currentTimeMillis();
+		for(int i=0; i<10000000; i++) {
+			val.set( rand.nextDouble());
+			buffer.addValue( keys[i % keys.length], val);
+		}
+		System.out.println(" collect_max of 10M rows " + (System.currentTimeMillis() - start) + " ms");
+	}
 }
 		
 	
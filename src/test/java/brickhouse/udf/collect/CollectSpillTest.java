@@ -0,0 +1,125 @@
+package brickhouse.udf.collect;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StandardListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import brickhouse.udf.collect.CollectUDAF.ArrayCollectUDAFEvaluator;
+
+public class CollectSpillTest {
+
+	private static ObjectInspector StructOI() {
+		return ObjectInspectorFactory.getStandardStructObjectInspector(
+				Arrays.asList("name", "scores", "attrs"),
+				Arrays.asList( (ObjectInspector) PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+						ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaIntObjectInspector),
+						ObjectInspectorFactory.getStandardMapObjectInspector(
+								PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+								PrimitiveObjectInspectorFactory.javaDoubleObjectInspector)));
+	}
+
+	private static List<Object> Struct( int i) {
+		Map<String,Double> attrs = new HashMap<String,Double>();
+		attrs.put("a" + i, i * 0.5);
+		return Arrays.asList( (Object) ( i % 7 == 0 ? null : "name_" + i),
+				Arrays.asList( i, i + 1, i + 2),
+				attrs);
+	}
+
+	@Test
+	public void testSpillStructs() throws Exception {
+		ArrayCollectUDAFEvaluator eval = new ArrayCollectUDAFEvaluator();
+		eval.setMaxMemoryElements( 10);
+		ObjectInspector structOI = StructOI();
+		eval.init( Mode.COMPLETE, new ObjectInspector[] { structOI });
+		AggregationBuffer agg = eval.getNewAggregationBuffer();
+		List<Object> expected = new ArrayList<Object>();
+		for(int i=0; i<105; ++i) {
+			eval.iterate( agg, new Object[] { Struct(i) });
+			expected.add( Struct(i));
+		}
+		Assert.assertEquals( 99, ((CollectUDAF.ArrayCollectUDAFEvaluator.ArrayAggBuffer) agg).collectArray.numSpilled());
+		Assert.assertEquals( expected, eval.terminate( agg));
+		//// terminate can be called more than once
+		Assert.assertEquals( expected, eval.terminatePartial( agg));
+		eval.reset( agg);
+		Assert.assertEquals( 0, ((List<?>) eval.terminate( agg)).size());
+	}
+
+	@Test
+	public void testSpillFileDeleted() throws Exception {
+		File spillDir = File.createTempFile("collect-spill-test", "");
+		spillDir.delete();
+		spillDir.mkdir();
+		try {
+			ArrayCollectUDAFEvaluator eval = new ArrayCollectUDAFEvaluator();
+			eval.setMaxMemoryElements( 10);
+			eval.setSpillDir( spillDir);
+			eval.init( Mode.COMPLETE, new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaLongObjectInspector });
+			AggregationBuffer agg = eval.getNewAggregationBuffer();
+			for(long i=0; i<100; ++i) {
+				eval.iterate( agg, new Object[] { i });
+			}
+			Assert.assertEquals( 1, spillDir.list().length);
+			//// Hive may drop the buffer without resetting it, so terminate deletes the file
+			Assert.assertEquals( 100, ((List<?>) eval.terminate( agg)).size());
+			Assert.assertEquals( 0, spillDir.list().length);
+			Assert.assertEquals( 100, ((List<?>) eval.terminatePartial( agg)).size());
+		} finally {
+			for( File file : spillDir.listFiles()) {
+				file.delete();
+			}
+			spillDir.delete();
+		}
+	}
+
+	@Test
+	public void testSpillMerge() throws Exception {
+		ObjectInspector textListOI = ObjectInspectorFactory.getStandardListObjectInspector(
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+		ArrayCollectUDAFEvaluator eval = new ArrayCollectUDAFEvaluator();
+		eval.setMaxMemoryElements( 3);
+		StandardListObjectInspector retOI = (StandardListObjectInspector) eval.init( Mode.FINAL, new ObjectInspector[] { textListOI });
+		AggregationBuffer agg = eval.getNewAggregationBuffer();
+		List<Object> expected = new ArrayList<Object>();
+		for(int part=0; part<4; ++part) {
+			List<Text> partial = new ArrayList<Text>();
+			for(int i=0; i<5; ++i) {
+				Text elem = (i == 2) ? null : new Text("elem_" + part + "_" + i);
+				partial.add( elem);
+				expected.add( elem);
+			}
+			eval.merge( agg, partial);
+		}
+		Object result = eval.terminate( agg);
+		Assert.assertEquals( expected, result);
+		Assert.assertTrue( retOI.getListElement( result, 0) instanceof Text);
+	}
+
+	@Test
+	public void testNoSpill() throws Exception {
+		ArrayCollectUDAFEvaluator eval = new ArrayCollectUDAFEvaluator();
+		eval.setMaxMemoryElements( 0);
+		eval.init( Mode.COMPLETE, new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaLongObjectInspector });
+		AggregationBuffer agg = eval.getNewAggregationBuffer();
+		for(long i=0; i<1000; ++i) {
+			eval.iterate( agg, new Object[] { i });
+		}
+		Assert.assertEquals( 0, ((CollectUDAF.ArrayCollectUDAFEvaluator.ArrayAggBuffer) agg).collectArray.numSpilled());
+		Assert.assertEquals( 1000, ((List<?>) eval.terminate( agg)).size());
+	}
+}
@@ -0,0 +1,165 @@
+package brickhouse.udf.collect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import brickhouse.udf.collect.CombineUniqueUDAF.CombineUniqueUDAFEvaluator;
+
+public class PrimitiveSetTest {
+
+	@Test
+	public void testLongSet() {
+		PrimitiveSet set = PrimitiveSet.ForCategory( PrimitiveCategory.LONG);
+		Assert.assertTrue( set instanceof PrimitiveSet.LongSet);
+		HashSet<Long> expected = new HashSet<Long>();
+		Random rand = new Random(17);
+		for(int i=0; i<10000; ++i) {
+			long val = rand.nextInt(5000) - 2500;
+			boolean added = (i % 2 == 0) ? set.add( val, PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+					: set.add( new LongWritable( val), PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+			Assert.assertEquals( expected.add( val), added);
+		}
+		Assert.assertEquals( expected.size(), set.size());
+		for(long val=-3000; val<3000; ++val) {
+			Assert.assertEquals( expected.contains( val), set.contains( val, PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+		}
+		Assert.assertFalse( set.contains( null, PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+		set.add( null, PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+		Assert.assertTrue( set.contains( null, PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+
+		List<Object> values = new ArrayList<Object>();
+		set.addJavaObjectsTo( values);
+		expected.add( null);
+		Assert.assertEquals( expected, new HashSet<Object>( values));
+
+		set.clear();
+		Assert.assertEquals( 0, set.size());
+		Assert.assertFalse( set.contains( 0L, PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+	}
+
+	@Test
+	public void testIntSetReturnsIntegers() {
+		PrimitiveSet set = PrimitiveSet.ForCategory( PrimitiveCategory.INT);
+		set.add( 3, PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+		set.add( 0, PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+		List<Object> values = new ArrayList<Object>();
+		set.addJavaObjectsTo( values);
+		Assert.assertEquals( new HashSet<Object>( Arrays.asList( 0, 3)), new HashSet<Object>( values));
+	}
+
+	@Test
+	public void testBytesSet() {
+		PrimitiveSet set = PrimitiveSet.ForCategory( PrimitiveCategory.STRING);
+		Assert.assertTrue( set instanceof PrimitiveSet.BytesSet);
+		HashSet<String> expected = new HashSet<String>();
+		Text text = new Text();
+		for(int i=0; i<5000; ++i) {
+			String str = "val_" + (i % 1700) + ( i % 3 == 0 ? "é" : "");
+			boolean added;
+			if( i % 2 == 0) {
+				added = set.add( str, PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+			} else {
+				//// a reused Text, which is longer than the value at times
+				text.set( str);
+				added = set.add( text, PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+			}
+			Assert.assertEquals( expected.add( str), added);
+		}
+		Assert.assertEquals( expected.size(), set.size());
+		Assert.assertTrue( set.contains( new Text("val_12"), PrimitiveObjectInspectorFactory.writableStringObjectInspector));
+		Assert.assertFalse( set.contains( "val_", PrimitiveObjectInspectorFactory.javaStringObjectInspector));
+
+		List<Object> values = new ArrayList<Object>();
+		set.addJavaObjectsTo( values);
+		Assert.assertEquals( expected, new HashSet<Object>( values));
+	}
+
+	@Test
+	public void testClearShrinksAfterLargeSet() {
+		PrimitiveSet.LongSet longSet = (PrimitiveSet.LongSet) PrimitiveSet.ForCategory( PrimitiveCategory.LONG);
+		PrimitiveSet.BytesSet bytesSet = (PrimitiveSet.BytesSet) PrimitiveSet.ForCategory( PrimitiveCategory.STRING);
+		for(long i=1; i<=10000; ++i) {
+			longSet.addLong( i);
+			bytesSet.add( "val_" + i, PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		}
+		int bigCapacity = longSet.capacity();
+		//// A set about as big as the last one keeps its table
+		longSet.clear();
+		bytesSet.clear();
+		Assert.assertEquals( bigCapacity, longSet.capacity());
+		Assert.assertEquals( bigCapacity, bytesSet.capacity());
+
+		//// A much smaller set gives the memory back
+		longSet.addLong( 7);
+		bytesSet.add( "val_7", PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		longSet.clear();
+		bytesSet.clear();
+		Assert.assertTrue( longSet.capacity() < bigCapacity/4);
+		Assert.assertTrue( bytesSet.capacity() < bigCapacity/4);
+
+		bytesSet.add( "val_3", PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		Assert.assertTrue( bytesSet.contains( "val_3", PrimitiveObjectInspectorFactory.javaStringObjectInspector));
+		Assert.assertFalse( bytesSet.contains( "val_7", PrimitiveObjectInspectorFactory.javaStringObjectInspector));
+		Assert.assertEquals( 1, bytesSet.size());
+	}
+
+	@Test
+	public void testSetDifference() throws Exception {
+		SetDifferenceUDF udf = new SetDifferenceUDF();
+		ObjectInspector listOI = ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+		udf.initialize( new ObjectInspector[] { listOI, listOI });
+		Object diff = udf.evaluate( new DeferredObject[] {
+				new DeferredJavaObject( Arrays.asList( 1L, 2L, 0L, 3L, 2L)),
+				new DeferredJavaObject( Arrays.asList( 3L, 0L)) });
+		Assert.assertEquals( Arrays.asList( 1L, 2L, 2L), diff);
+		//// The set is reused between rows
+		diff = udf.evaluate( new DeferredObject[] {
+				new DeferredJavaObject( Arrays.asList( 3L, 4L)),
+				new DeferredJavaObject( Arrays.asList( 4L)) });
+		Assert.assertEquals( Arrays.asList( 3L), diff);
+	}
+
+	@Test
+	public void testArrayIntersect() throws Exception {
+		ArrayIntersectUDF udf = new ArrayIntersectUDF();
+		udf.initialize( new ObjectInspector[] {
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.writableStringObjectInspector),
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaStringObjectInspector) });
+		Object intersect = udf.evaluate( new DeferredObject[] {
+				new DeferredJavaObject( Arrays.asList( "a", "b", "c", "b", "d")),
+				new DeferredJavaObject( Arrays.asList( new Text("d"), new Text("b"), new Text("a"))),
+				new DeferredJavaObject( Arrays.asList( "b", "d", "e")) });
+		Assert.assertEquals( Arrays.asList( "b", "d"), intersect);
+	}
+
+	@Test
+	public void testCombineUnique() throws Exception {
+		CombineUniqueUDAFEvaluator eval = new CombineUniqueUDAFEvaluator();
+		eval.init( Mode.COMPLETE, new ObjectInspector[] {
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.writableLongObjectInspector) });
+		AggregationBuffer agg = eval.getNewAggregationBuffer();
+		eval.iterate( agg, new Object[] { Arrays.asList( new LongWritable(1), new LongWritable(2)) });
+		eval.iterate( agg, new Object[] { Arrays.asList( new LongWritable(2), new LongWritable(7)) });
+		List<?> result = (List<?>) eval.terminate( agg);
+		Assert.assertEquals( new HashSet<Object>( Arrays.asList( 1L, 2L, 7L)), new HashSet<Object>( result));
+		Assert.assertEquals( 3, result.size());
+	}
+}
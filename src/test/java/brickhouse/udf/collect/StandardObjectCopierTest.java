@@ -0,0 +1,103 @@
+package brickhouse.udf.collect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import brickhouse.udf.collect.StandardObjectCopier.StandardObjectCopierFactory;
+
+public class StandardObjectCopierTest {
+
+	private static ObjectInspector WritableStructOI() {
+		return ObjectInspectorFactory.getStandardStructObjectInspector(
+				Arrays.asList("name", "ids", "scores"),
+				Arrays.asList( (ObjectInspector) PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+						ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.writableLongObjectInspector),
+						ObjectInspectorFactory.getStandardMapObjectInspector(
+								PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+								PrimitiveObjectInspectorFactory.writableDoubleObjectInspector)));
+	}
+
+	private static Object WritableStruct( int i) {
+		Map<Text,DoubleWritable> scores = new HashMap<Text,DoubleWritable>();
+		scores.put( new Text("score_" + i), new DoubleWritable( i * 1.5));
+		scores.put( new Text("none"), null);
+		return Arrays.asList( new Text("name_" + i),
+				Arrays.asList( new LongWritable( i), null, new LongWritable( -i)),
+				scores);
+	}
+
+	@Test
+	public void testSameAsCopyToStandardObject() {
+		ObjectInspector structOI = WritableStructOI();
+		StandardObjectCopier copier = StandardObjectCopierFactory.GenerateCopier( structOI);
+		StandardObjectCopier javaCopier = StandardObjectCopierFactory.GenerateCopier( structOI, ObjectInspectorCopyOption.JAVA);
+		for(int i=0; i<10; ++i) {
+			Object struct = WritableStruct(i);
+			Object copy = copier.copy( struct);
+			Assert.assertEquals( ObjectInspectorUtils.copyToStandardObject( struct, structOI), copy);
+			Assert.assertEquals( ObjectInspectorUtils.copyToStandardObject( struct, structOI, ObjectInspectorCopyOption.JAVA),
+					javaCopier.copy( struct));
+			//// Writables are copied, not shared
+			Assert.assertNotSame( ((List<?>) struct).get(0), ((List<?>) copy).get(0));
+		}
+		Assert.assertNull( copier.copy( null));
+	}
+
+	@Test
+	public void testJavaPrimitivesNotCopied() {
+		StandardObjectCopier copier = StandardObjectCopierFactory.GenerateCopier( PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+		String str = "not copied";
+		Assert.assertSame( str, copier.copy( str));
+
+		StandardObjectCopier textCopier = StandardObjectCopierFactory.GenerateCopier( PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+		Text text = new Text("copied");
+		Object textCopy = textCopier.copy( text);
+		Assert.assertEquals( text, textCopy);
+		Assert.assertNotSame( text, textCopy);
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkCopy() {
+		ObjectInspector structOI = WritableStructOI();
+		List<Object> structs = new ArrayList<Object>();
+		for(int i=0; i<1000; ++i) {
+			structs.add( WritableStruct(i));
+		}
+		int numRounds = 2000;
+		long start = System.currentTimeMillis();
+		long sum = 0;
+		for(int r=0; r<numRounds; ++r) {
+			for(Object struct : structs) {
+				sum += ((List<?>) ObjectInspectorUtils.copyToStandardObject( struct, structOI)).size();
+			}
+		}
+		long genericTime = System.currentTimeMillis() - start;
+		StandardObjectCopier copier = StandardObjectCopierFactory.GenerateCopier( structOI);
+		start = System.currentTimeMillis();
+		for(int r=0; r<numRounds; ++r) {
+			for(Object struct : structs) {
+				sum -= ((List<?>) copier.copy( struct)).size();
+			}
+		}
+		long copierTime = System.currentTimeMillis() - start;
+		System.out.println(" Copy " + (numRounds * structs.size()) + " structs : copyToStandardObject " + genericTime
+				+ " ms ; StandardObjectCopier " + copierTime + " ms ; difference " + sum);
+	}
+}
@@ -0,0 +1,119 @@
+package brickhouse.udf.hll;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Test;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+
+public class MultiDayHyperLogLogUDAFTest {
+  private static final String ASOF = "20130131";
+  private static final List<Integer> DAYS = Arrays.asList(1, 7, 30);
+  private static final int PRECISION = 12;
+
+  private static TypeInfo[] ParameterTypes() {
+    return new TypeInfo[] {
+        TypeInfoFactory.stringTypeInfo,
+        TypeInfoFactory.longTypeInfo,
+        TypeInfoFactory.getListTypeInfo(TypeInfoFactory.stringTypeInfo),
+        TypeInfoFactory.stringTypeInfo,
+        TypeInfoFactory.getListTypeInfo(TypeInfoFactory.intTypeInfo),
+        TypeInfoFactory.intTypeInfo };
+  }
+
+  private static ObjectInspector[] InputInspectors() {
+    return new ObjectInspector[] {
+        PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+        PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+        PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaIntObjectInspector),
+        PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+            TypeInfoFactory.intTypeInfo, new IntWritable(PRECISION)) };
+  }
+
+  private static String Date(int day) {
+    return "201301" + (day < 10 ? "0" + day : "" + day);
+  }
+
+  private static List<String> Uniques(int day) {
+    List<String> uniques = new ArrayList<String>();
+    for (int i = 0; i < 500; ++i) {
+      uniques.add("user_" + (day * 100 + i));
+    }
+    return uniques;
+  }
+
+  private static Object Aggregate(GenericUDAFEvaluator eval, int fromDay, int toDay) throws Exception {
+    AggregationBuffer agg = eval.getNewAggregationBuffer();
+    for (int day = fromDay; day <= toDay; ++day) {
+      eval.iterate(agg, new Object[] { Date(day), 10L, Uniques(day), ASOF, DAYS, PRECISION });
+    }
+    return eval.terminatePartial(agg);
+  }
+
+  @Test
+  public void testMultiDayHLL() throws Exception {
+    MultiDayHyperLogLogUDAF udaf = new MultiDayHyperLogLogUDAF();
+
+    GenericUDAFEvaluator partialEval = udaf.getEvaluator(ParameterTypes());
+    ObjectInspector partialOI = partialEval.init(Mode.PARTIAL1, InputInspectors());
+    Object firstHalf = Aggregate(partialEval, 1, 15);
+    Object secondHalf = Aggregate(partialEval, 16, 31);
+
+    GenericUDAFEvaluator finalEval = udaf.getEvaluator(ParameterTypes());
+    finalEval.init(Mode.FINAL, new ObjectInspector[] { partialOI });
+    AggregationBuffer agg = finalEval.getNewAggregationBuffer();
+    finalEval.merge(agg, firstHalf);
+    finalEval.merge(agg, secondHalf);
+    List<?> result = (List<?>) finalEval.terminate(agg);
+
+    Assert.assertEquals(DAYS.size(), result.size());
+    for (int i = 0; i < DAYS.size(); ++i) {
+      int numDays = DAYS.get(i);
+      HyperLogLogPlus expected = new HyperLogLogPlus(PRECISION);
+      long expectedCount = 0;
+      for (int day = 31 - numDays + 1; day <= 31; ++day) {
+        expectedCount += 10;
+        for (String uniq : Uniques(day)) {
+          expected.offer(uniq);
+        }
+      }
+      Object[] struct = (Object[]) result.get(i);
+      Assert.assertEquals(numDays, struct[0]);
+      Assert.assertEquals(expectedCount, struct[1]);
+      byte[] hll = (byte[]) struct[2];
+      Assert.assertTrue(Arrays.equals(expected.getBytes(), hll));
+      System.out.println(" " + numDays + " days : count = " + struct[1] + " reach = " + HLLEstimator.Estimate(hll, 0, hll.length));
+    }
+  }
+
+  @Test
+  public void testComplete() throws Exception {
+    MultiDayHyperLogLogUDAF udaf = new MultiDayHyperLogLogUDAF();
+    GenericUDAFEvaluator eval = udaf.getEvaluator(ParameterTypes());
+    eval.init(Mode.COMPLETE, InputInspectors());
+    List<?> result = (List<?>) Aggregate(eval, 25, 31);
+
+    Object[] oneDay = (Object[]) result.get(0);
+    Assert.assertEquals(10L, oneDay[1]);
+    byte[] hll = (byte[]) oneDay[2];
+    Assert.assertEquals(HyperLogLogPlus.Builder.build(hll).cardinality(), HLLEstimator.Estimate(hll, 0, hll.length));
+    Object[] thirtyDays = (Object[]) result.get(2);
+    Assert.assertEquals(70L, thirtyDays[1]);
+  }
+
+}
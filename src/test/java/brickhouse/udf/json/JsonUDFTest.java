@@ -3,13 +3,34 @@ package brickhouse.udf.json;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.regex.Pattern;
 
 import junit.framework.Assert;
 
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import brickhouse.udf.json.InspectorHandle.InspectorHandleFactory;
+
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
 
@@ -34,5 +55,492 @@ public class JsonUDFTest {
 		
 		Assert.assertEquals( "this_text_is_in_camel_case", under);
 	}
-	
+
+	private static final String[] TYPES = {
+		"struct<name:string,value:double,colors:array<string>,inner_map:map<string,int>>",
+		"struct<name:string,nested:struct<id:bigint,flag:boolean>>",
+		"array<string>",
+		"array<bigint>",
+		"map<string,string>",
+		"map<string,double>",
+		"string",
+	};
+
+	private static final String[] DOCS = {
+		"{\"name\":\"Bob\",\"value\":23.0,\"colors\":[\"red\",\"yellow\",\"green\"],\"inner_map\":{\"a\":1,\"b\":2,\"c\":3}}",
+		"{\"skipped\":{\"deep\":[1,2,{\"x\":null}]},\"name\":\"Al\\u00e9\",\"nested\":{\"id\":12345678901,\"flag\":true,\"extra\":[]}}",
+		"{\"name\":null,\"value\":\"not a number\",\"colors\":{\"a\":\"x\"},\"inner_map\":[1,2],\"nested\":3}",
+		"[\"a\",1,2.50,{\"b\":[true,null]},null,[1,\"two\"]]",
+		"[1,-2,3.7,99999999999999999999,\"4\"]",
+		"{\"value\":1e3,\"name\":\"last\"}",
+		"null",
+		"\"just a string\"",
+		"42",
+	};
+
+	@Test
+	public void testStreamingParseSameAsTree() throws Exception {
+		ObjectMapper om = new ObjectMapper();
+		for( String type : TYPES) {
+			InspectorHandle handle = InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo( type, false);
+			handle.getReturnType();
+			for( String doc : DOCS) {
+				Object expected = handle.parseJson( om.readTree( doc));
+				Object streamed = InspectorHandleFactory.ParseJson( handle,
+						PrimitiveObjectInspectorFactory.javaStringObjectInspector, doc);
+				Assert.assertEquals( type + " " + doc, expected, streamed);
+				Object fromText = InspectorHandleFactory.ParseJson( handle,
+						PrimitiveObjectInspectorFactory.writableStringObjectInspector, new Text( doc));
+				Assert.assertEquals( type + " " + doc, expected, fromText);
+			}
+		}
+	}
+
+	@Test
+	public void testStreamingLeavesParserAfterValue() throws Exception {
+		InspectorHandle handle = InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo( "struct<a:int>", false);
+		handle.getReturnType();
+		JsonParser parser = InspectorHandleFactory.JSON_FACTORY.createJsonParser( "[{\"b\":{\"a\":7},\"a\":1},{\"a\":2}]");
+		parser.nextToken();
+		List<Object> results = new ArrayList<Object>();
+		while( parser.nextToken() != org.codehaus.jackson.JsonToken.END_ARRAY) {
+			results.add( handle.parseJson( parser));
+		}
+		Assert.assertEquals( Arrays.asList( Arrays.asList( 1), Arrays.asList( 2)), results);
+	}
+
+	@Test
+	public void testFromJsonCamelCase() throws Exception {
+		FromJsonUDF udf = new FromJsonUDF();
+		udf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.stringTypeInfo, new Text("struct<user_id:bigint,first_name:string>")),
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.booleanTypeInfo, new BooleanWritable( true)) });
+		Object result = udf.evaluate( new DeferredObject[] {
+				new DeferredJavaObject( new Text("{\"userId\":5,\"user_id\":6,\"firstName\":\"Jo\"}")) });
+		Assert.assertEquals( Arrays.asList( 5L, "Jo"), Arrays.asList( (Object[]) result));
+		Assert.assertNull( udf.evaluate( new DeferredObject[] { new DeferredJavaObject( null) }));
+	}
+
+	@Test
+	public void testFromJsonReusesStruct() throws Exception {
+		FromJsonUDF udf = new FromJsonUDF();
+		StructObjectInspector retOI = (StructObjectInspector) udf.initialize( new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.stringTypeInfo, new Text("struct<id:int,ab:string,ba:string,inner:struct<x:int>,points:array<struct<x:int>>>")) });
+		Object first = udf.evaluate( new DeferredObject[] { new DeferredJavaObject(
+				"{\"ba\":\"b\",\"ab\":\"a\",\"id\":1,\"inner\":{\"x\":2},\"points\":[{\"x\":3},{\"x\":4}]}") });
+		Assert.assertEquals( "[1, a, b, [2], [[3], [4]]]", ObjectInspectorUtils.copyToStandardObject( first, retOI).toString());
+		Object second = udf.evaluate( new DeferredObject[] { new DeferredJavaObject(
+				"{\"id\":5,\"points\":[{\"x\":6}]}") });
+		Assert.assertSame( first, second);
+		//// Fields from the previous row are cleared
+		Assert.assertEquals( "[5, null, null, null, [[6]]]", ObjectInspectorUtils.copyToStandardObject( second, retOI).toString());
+	}
+
+	@Test
+	public void testStructFieldSlot() throws Exception {
+		InspectorHandle.StructHandle handle = (InspectorHandle.StructHandle) InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo(
+				"struct<user_id:int,event_type:string,ts:bigint>", true);
+		Assert.assertEquals( 0, handle.fieldSlot( "userId"));
+		Assert.assertEquals( 1, handle.fieldSlot( new String("eventType")));
+		Assert.assertEquals( 2, handle.fieldSlot( "ts"));
+		Assert.assertEquals( -1, handle.fieldSlot( "user_id"));
+		Assert.assertEquals( -1, handle.fieldSlot( "eventTypes"));
+		Assert.assertEquals( -1, handle.fieldSlot( "tz"));
+		Assert.assertEquals( -1, handle.fieldSlot( ""));
+	}
+
+	@Test
+	public void testJsonMapAndSplit() throws Exception {
+		JsonMapUDF mapUDF = new JsonMapUDF();
+		mapUDF.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector });
+		Map<?,?> map = (Map<?,?>) mapUDF.evaluate( new DeferredObject[] {
+				new DeferredJavaObject( "{\"a\":1.5,\"b\":2}") });
+		Assert.assertEquals( 2, map.size());
+		Assert.assertEquals( new org.apache.hadoop.hive.serde2.io.DoubleWritable( 1.5), map.get("a"));
+		Assert.assertEquals( new org.apache.hadoop.hive.serde2.io.DoubleWritable( 2.0), map.get("b"));
+
+		JsonSplitUDF splitUDF = new JsonSplitUDF();
+		splitUDF.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector });
+		Object split = splitUDF.evaluate( new DeferredObject[] {
+				new DeferredJavaObject( "[{\"a\":[1,2]},\"b\",3]") });
+		Assert.assertEquals( Arrays.asList( "{\"a\":[1,2]}", "b", "3"), split);
+		Assert.assertNull( splitUDF.evaluate( new DeferredObject[] { new DeferredJavaObject( null) }));
+	}
+
+	private static ObjectInspector EventOI( ObjectInspector strOI) {
+		return ObjectInspectorFactory.getStandardStructObjectInspector(
+				Arrays.asList( "user_id", "event_type", "tags", "attrs"),
+				Arrays.asList( PrimitiveObjectInspectorFactory.javaLongObjectInspector, strOI,
+						ObjectInspectorFactory.getStandardListObjectInspector( strOI),
+						ObjectInspectorFactory.getStandardMapObjectInspector( 
+								PrimitiveObjectInspectorFactory.javaStringObjectInspector, PrimitiveObjectInspectorFactory.javaDoubleObjectInspector)));
+	}
+
+	@Test
+	public void testToJson() throws Exception {
+		Map<String,Double> attrs = new java.util.LinkedHashMap<String,Double>();
+		attrs.put( "a_b", 1.5);
+		String expected = "{\"userId\":7,\"eventType\":\"cl\\\"ick\\n\u00e9\",\"tags\":[\"x\",null],\"attrs\":{\"aB\":1.5}}";
+		ObjectInspector flagOI = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+				TypeInfoFactory.booleanTypeInfo, new BooleanWritable( true));
+
+		ToJsonUDF javaUDF = new ToJsonUDF();
+		ObjectInspector retOI = javaUDF.initialize( new ObjectInspector[] { EventOI( PrimitiveObjectInspectorFactory.javaStringObjectInspector), flagOI });
+		Object json = javaUDF.evaluate( new DeferredObject[] { new DeferredJavaObject(
+				Arrays.asList( 7L, "cl\"ick\n\u00e9", Arrays.asList( "x", null), attrs)) });
+		Assert.assertEquals( expected, ((PrimitiveObjectInspector) retOI).getPrimitiveJavaObject( json));
+
+		ToJsonUDF textUDF = new ToJsonUDF();
+		textUDF.initialize( new ObjectInspector[] { EventOI( PrimitiveObjectInspectorFactory.writableStringObjectInspector), flagOI });
+		json = textUDF.evaluate( new DeferredObject[] { new DeferredJavaObject(
+				Arrays.asList( 7L, new Text("cl\"ick\n\u00e9"), Arrays.asList( new Text("x"), null), attrs)) });
+		Assert.assertEquals( new Text( expected), json);
+		//// The buffer is reused, and shorter rows aren't left with old bytes
+		json = textUDF.evaluate( new DeferredObject[] { new DeferredJavaObject( null) });
+		Assert.assertEquals( new Text("null"), json);
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkToJson() throws Exception {
+		ToJsonUDF udf = new ToJsonUDF();
+		udf.initialize( new ObjectInspector[] { EventOI( PrimitiveObjectInspectorFactory.writableStringObjectInspector),
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.booleanTypeInfo, new BooleanWritable( true)) });
+		List<DeferredObject[]> rows = new ArrayList<DeferredObject[]>();
+		for(int i=0; i<1000; ++i) {
+			Map<String,Double> attrs = new java.util.HashMap<String,Double>();
+			attrs.put( "score", i * 0.5);
+			rows.add( new DeferredObject[] { new DeferredJavaObject( Arrays.asList( (long) i, new Text("click_" + (i % 17)),
+					Arrays.asList( new Text("tag_a"), new Text("tag_" + i)), attrs)) });
+		}
+		int numRounds = 300;
+		long start = System.currentTimeMillis();
+		long len = 0;
+		for(int r=0; r<numRounds; ++r) {
+			for( DeferredObject[] row : rows) {
+				len += udf.evaluate( row).toString().length();
+			}
+		}
+		System.out.println(" to_json " + (numRounds * rows.size()) + " rows : " + (System.currentTimeMillis() - start) + " ms ; " + len + " chars");
+	}
+
+	private static JsonExtractMultiUDF ExtractMulti( String... paths) throws Exception {
+		return ExtractMulti( false, paths);
+	}
+
+	private static JsonExtractMultiUDF ExtractMulti( boolean validate, String... paths) throws Exception {
+		List<Text> pathTexts = new ArrayList<Text>();
+		for( String path : paths) {
+			pathTexts.add( new Text( path));
+		}
+		JsonExtractMultiUDF udf = new JsonExtractMultiUDF();
+		ObjectInspector pathsOI = ObjectInspectorFactory.getStandardConstantListObjectInspector(
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector, pathTexts);
+		if( validate) {
+			udf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.writableStringObjectInspector, pathsOI,
+					PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+							TypeInfoFactory.booleanTypeInfo, new BooleanWritable( true)) });
+		} else {
+			udf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.writableStringObjectInspector, pathsOI });
+		}
+		return udf;
+	}
+
+	private static List<?> Extract( JsonExtractMultiUDF udf, String json) throws Exception {
+		Object[] result = (Object[]) udf.evaluate( new DeferredObject[] { new DeferredJavaObject( json == null ? null : new Text( json)) });
+		return result == null ? null : Arrays.asList( result);
+	}
+
+	@Test
+	public void testJsonExtractMulti() throws Exception {
+		JsonExtractMultiUDF udf = ExtractMulti( "$.user.id", "$.user.tags[1]", "$.event", "$.user.name",
+				"user.tags", "$.user.tags[0]", "$.user.id", "$.score", "$.nested[1][0].x");
+		String json = "{\"skip\":{\"user\":{\"id\":1}},\"user\":{\"id\":23,\"tags\":[\"a\",\"b\"],\"id\":24},"
+				+ "\"event\":\"click\",\"score\":1.50,\"nested\":[[],[{\"x\":{\"y\":null}}]]}";
+		Assert.assertEquals( Arrays.asList( "23", "b", "click", null, "[\"a\",\"b\"]", "a", "23", "1.5", "{\"y\":null}"),
+				Extract( udf, json));
+		//// JSON nulls and missing values are both null, and the results from the last row are cleared
+		Assert.assertEquals( Arrays.asList( null, null, null, null, null, null, null, "true", null),
+				Extract( udf, "{\"user\":null,\"score\":true}"));
+		Assert.assertNull( Extract( udf, null));
+		Assert.assertNull( Extract( udf, "{\"user\":{\"id\":"));
+
+		//// Paths are found in one pass over the same document as get_json_object
+		org.apache.hadoop.hive.ql.udf.UDFJson getJsonObject = new org.apache.hadoop.hive.ql.udf.UDFJson();
+		JsonExtractMultiUDF single = ExtractMulti( "$.event", "$.user.tags[0]");
+		Assert.assertEquals( Arrays.asList( getJsonObject.evaluate( json, "$.event").toString(), getJsonObject.evaluate( json, "$.user.tags[0]").toString()),
+				Extract( single, json));
+
+		//// Parsing stops once the paths are found, so malformed JSON after them isn't noticed
+		String malformed = "{\"event\":\"click\",\"user\":{\"tags\":[\"a\"]},\"more\":[1,}";
+		Assert.assertNull( getJsonObject.evaluate( malformed, "$.event"));
+		Assert.assertEquals( Arrays.asList( "click", "a"), Extract( single, malformed));
+	}
+
+	@Test
+	public void testJsonExtractMultiValidate() throws Exception {
+		org.apache.hadoop.hive.ql.udf.UDFJson getJsonObject = new org.apache.hadoop.hive.ql.udf.UDFJson();
+		JsonExtractMultiUDF udf = ExtractMulti( true, "$.user.id", "$.user.tags[1]", "$.user", "$.event");
+		//// A repeated key gives the last value, as get_json_object does
+		String json = "{\"user\":{\"id\":23,\"tags\":[\"a\",\"b\"],\"id\":24},\"event\":\"click\"}";
+		Assert.assertEquals( getJsonObject.evaluate( json, "$.user.id").toString(), Extract( udf, json).get(0));
+		Assert.assertEquals( Arrays.asList( "24", "b", "{\"id\":23,\"tags\":[\"a\",\"b\"],\"id\":24}", "click"), Extract( udf, json));
+		String repeated = "{\"user\":{\"id\":1,\"tags\":[\"x\",\"y\"]},\"user\":{\"id\":2}}";
+		Assert.assertEquals( Arrays.asList( "2", null, "{\"id\":2}", null), Extract( udf, repeated));
+		Assert.assertNull( getJsonObject.evaluate( repeated, "$.user.tags[1]"));
+
+		//// Malformed JSON after the last path is still a null, as with get_json_object
+		String malformed = "{\"event\":\"click\",\"user\":{\"tags\":[\"a\"]},\"more\":[1,}";
+		Assert.assertNull( Extract( udf, malformed));
+	}
+
+	@Test
+	public void testJsonPaths() throws Exception {
+		Assert.assertEquals( Arrays.asList( (Object) "a", "b", 2, "c"), JsonExtractMultiUDF.ParsePath( "$.a.b[2].c"));
+		Assert.assertEquals( Arrays.asList( (Object) "a", "b"), JsonExtractMultiUDF.ParsePath( "a.b"));
+		Assert.assertEquals( Arrays.asList( (Object) 0, 1), JsonExtractMultiUDF.ParsePath( "$[0][1]"));
+		Assert.assertEquals( 0, JsonExtractMultiUDF.ParsePath( "$").size());
+		for( String badPath : new String[] { "$.a..b", "$.a[*]", "$.a[1", "$a" }) {
+			try {
+				JsonExtractMultiUDF.ParsePath( badPath);
+				Assert.fail( badPath);
+			} catch( org.apache.hadoop.hive.ql.exec.UDFArgumentException expected) {
+			}
+		}
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkJsonExtractMulti() throws Exception {
+		String[] paths = { "$.user_id", "$.event", "$.context.page", "$.context.refs[2]", "$.scores[0]" };
+		JsonExtractMultiUDF udf = ExtractMulti( paths);
+		org.apache.hadoop.hive.ql.udf.UDFJson getJsonObject = new org.apache.hadoop.hive.ql.udf.UDFJson();
+		List<String> docs = new ArrayList<String>();
+		for(int i=0; i<1000; ++i) {
+			docs.add( "{\"user_id\":" + i + ",\"event\":\"click_" + (i % 17) + "\",\"scores\":[1.5," + i + ".25]"
+					+ ",\"agent\":\"Mozilla/5.0 (X11; Linux x86_64)\",\"context\":{\"page\":\"/home\",\"refs\":[\"a\",\"b\",\"c\"],\"ts\":" + (1400000000L + i) + "}"
+					+ ",\"payload\":{\"items\":[{\"id\":1,\"qty\":2},{\"id\":2,\"qty\":5}],\"note\":\"not extracted\"}}");
+		}
+		int numRounds = 100;
+		long start = System.currentTimeMillis();
+		long found = 0;
+		for(int r=0; r<numRounds; ++r) {
+			for( String doc : docs) {
+				for( String path : paths) {
+					found += getJsonObject.evaluate( doc, path) != null ? 1 : 0;
+				}
+			}
+		}
+		long getTime = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for(int r=0; r<numRounds; ++r) {
+			for( String doc : docs) {
+				for( Object val : Extract( udf, doc)) {
+					found -= val != null ? 1 : 0;
+				}
+			}
+		}
+		long extractTime = System.currentTimeMillis() - start;
+		System.out.println(" Extract " + paths.length + " paths from " + (numRounds * docs.size()) + " documents : get_json_object " + getTime
+				+ " ms ; json_extract_multi " + extractTime + " ms ; difference " + found);
+	}
+
+	private static List<Object> Explode( String type, String... jsons) throws Exception {
+		JsonExplodeUDTF udtf = new JsonExplodeUDTF();
+		final StructObjectInspector rowOI = udtf.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.stringTypeInfo, new Text( type)) });
+		final List<Object> rows = new ArrayList<Object>();
+		udtf.setCollector( new org.apache.hadoop.hive.ql.udf.generic.Collector() {
+			public void collect( Object row) {
+				//// Rows are reused, so copy them as they come
+				rows.add( ObjectInspectorUtils.copyToStandardObject( row, rowOI));
+			}
+		});
+		for( String json : jsons) {
+			udtf.process( new Object[] { json });
+		}
+		return rows;
+	}
+
+	@Test
+	public void testJsonExplode() throws Exception {
+		List<Object> rows = Explode( "struct<page:string,ts:bigint,refs:array<string>>",
+				"[{\"page\":\"/home\",\"ts\":1,\"extra\":{\"a\":[1]}},null,{\"ts\":2,\"refs\":[\"x\"]}]",
+				null,
+				"{\"page\":\"/only\"}",
+				"[]");
+		Assert.assertEquals( Arrays.asList(
+				Arrays.asList( "/home", 1L, null),
+				Arrays.asList( null, null, null),
+				Arrays.asList( null, 2L, Arrays.asList( "x")),
+				Arrays.asList( "/only", null, null)), rows);
+
+		rows = Explode( "bigint", "[1,2,null,3]");
+		Assert.assertEquals( Arrays.asList( Arrays.asList( 1L), Arrays.asList( 2L), Arrays.asList( (Object) null), Arrays.asList( 3L)), rows);
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkJsonExplode() throws Exception {
+		String type = "struct<page:string,ts:bigint,refs:array<string>>";
+		List<String> docs = new ArrayList<String>();
+		for(int i=0; i<1000; ++i) {
+			StringBuilder sb = new StringBuilder("[");
+			for(int j=0; j<10; ++j) {
+				sb.append( j == 0 ? "" : ",").append( "{\"page\":\"/p/" + j + "\",\"ts\":" + (1400000000L + i*j) 
+						+ ",\"refs\":[\"a\",\"b\"],\"agent\":\"Mozilla/5.0 (X11; Linux x86_64)\"}");
+			}
+			docs.add( sb.append("]").toString());
+		}
+		ObjectInspector typeOI = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.stringTypeInfo, new Text( type));
+		JsonSplitUDF split = new JsonSplitUDF();
+		split.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector });
+		FromJsonUDF fromJson = new FromJsonUDF();
+		fromJson.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector, typeOI });
+		JsonExplodeUDTF explode = new JsonExplodeUDTF();
+		explode.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector, typeOI });
+		final long[] numRows = new long[1];
+		explode.setCollector( new org.apache.hadoop.hive.ql.udf.generic.Collector() {
+			public void collect( Object row) {
+				numRows[0]++;
+			}
+		});
+		int numRounds = 50;
+		long start = System.currentTimeMillis();
+		for(int r=0; r<numRounds; ++r) {
+			for( String doc : docs) {
+				for( Object elem : (List<?>) split.evaluate( new DeferredObject[] { new DeferredJavaObject( doc) })) {
+					fromJson.evaluate( new DeferredObject[] { new DeferredJavaObject( elem) });
+					numRows[0]--;
+				}
+			}
+		}
+		long splitTime = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for(int r=0; r<numRounds; ++r) {
+			for( String doc : docs) {
+				explode.process( new Object[] { doc });
+			}
+		}
+		long explodeTime = System.currentTimeMillis() - start;
+		System.out.println(" Explode " + (numRounds * docs.size()) + " arrays : json_split and from_json " + splitTime
+				+ " ms ; json_explode " + explodeTime + " ms ; difference " + numRows[0]);
+	}
+
+	@Test
+	public void testTypedJsonMap() throws Exception {
+		JsonMapUDF mapUDF = new JsonMapUDF();
+		MapObjectInspector retOI = (MapObjectInspector) mapUDF.initialize( new ObjectInspector[] { PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.stringTypeInfo, new Text("string,bigint")) });
+		Assert.assertSame( PrimitiveObjectInspectorFactory.writableLongObjectInspector, retOI.getMapValueObjectInspector());
+		Map<?,?> first = (Map<?,?>) mapUDF.evaluate( new DeferredObject[] {
+				new DeferredJavaObject( "{\"a\":1,\"b\":null,\"c\":\"x\",\"d\":2.9,\"e\":[1,2],\"f\":99999999999}") });
+		Map<String,LongWritable> expected = new java.util.HashMap<String,LongWritable>();
+		expected.put( "a", new LongWritable( 1));
+		expected.put( "b", null);
+		expected.put( "c", new LongWritable( 0));
+		expected.put( "d", new LongWritable( 2));
+		expected.put( "e", new LongWritable( 0));
+		expected.put( "f", new LongWritable( 99999999999L));
+		Assert.assertEquals( expected, first);
+
+		//// The map and its values are reused between rows
+		Object firstVal = first.get("a");
+		Map<?,?> second = (Map<?,?>) mapUDF.evaluate( new DeferredObject[] { new DeferredJavaObject( "{\"z\":5}") });
+		Assert.assertSame( first, second);
+		Assert.assertEquals( 1, second.size());
+		Assert.assertSame( firstVal, second.get("z"));
+		Assert.assertEquals( new LongWritable( 5), second.get("z"));
+		Assert.assertNull( mapUDF.evaluate( new DeferredObject[] { new DeferredJavaObject( "null") }));
+	}
+
+	@Test
+	public void testTypedMapSameAsTree() throws Exception {
+		ObjectMapper om = new ObjectMapper();
+		for( String type : new String[] { "map<string,bigint>", "map<string,int>", "map<string,double>", "struct<m:map<string,double>>" }) {
+			InspectorHandle handle = InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo( type, false, true);
+			ObjectInspector retOI = handle.getReturnType();
+			for( String doc : new String[] { "{\"a\":1,\"b\":-2.5,\"c\":null,\"d\":true,\"e\":{\"x\":1}}", "{\"m\":{\"a\":3}}", "[1,2]", "{}" }) {
+				Object expected = ObjectInspectorUtils.copyToStandardObject( handle.parseJson( om.readTree( doc)), retOI);
+				Object streamed = ObjectInspectorUtils.copyToStandardObject( InspectorHandleFactory.ParseJson( handle,
+						PrimitiveObjectInspectorFactory.javaStringObjectInspector, doc), retOI);
+				Assert.assertEquals( type + " " + doc, expected, streamed);
+			}
+		}
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkTypedJsonMap() throws Exception {
+		List<String> docs = new ArrayList<String>();
+		for(int i=0; i<1000; ++i) {
+			StringBuilder sb = new StringBuilder("{");
+			for(int j=0; j<20; ++j) {
+				sb.append( j == 0 ? "" : ",").append( "\"feature_" + j + "\":" + (i * 31L + j));
+			}
+			docs.add( sb.append("}").toString());
+		}
+		InspectorHandle generic = InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo( "map<string,bigint>", false);
+		generic.getReturnType();
+		InspectorHandle typed = InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo( "map<string,bigint>", false, true);
+		typed.getReturnType();
+		int numRounds = 200;
+		long start = System.currentTimeMillis();
+		long sum = 0;
+		for(int r=0; r<numRounds; ++r) {
+			for( String doc : docs) {
+				sum += ((Map<?,?>) InspectorHandleFactory.ParseJson( generic, PrimitiveObjectInspectorFactory.javaStringObjectInspector, doc)).size();
+			}
+		}
+		long genericTime = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for(int r=0; r<numRounds; ++r) {
+			for( String doc : docs) {
+				sum -= ((Map<?,?>) InspectorHandleFactory.ParseJson( typed, PrimitiveObjectInspectorFactory.javaStringObjectInspector, doc)).size();
+			}
+		}
+		long typedTime = System.currentTimeMillis() - start;
+		System.out.println(" Parse " + (numRounds * docs.size()) + " maps : boxed values " + genericTime
+				+ " ms ; reused writables " + typedTime + " ms ; difference " + sum);
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkFromJson() throws Exception {
+		InspectorHandle handle = InspectorHandleFactory.GenerateInspectorHandleFromTypeInfo(
+				"struct<user_id:bigint,event:string,scores:array<double>>", false);
+		handle.getReturnType();
+		List<String> docs = new ArrayList<String>();
+		for(int i=0; i<1000; ++i) {
+			docs.add( "{\"user_id\":" + i + ",\"event\":\"click_" + (i % 17) + "\",\"scores\":[1.5," + i + ".25]"
+					+ ",\"agent\":\"Mozilla/5.0 (X11; Linux x86_64)\",\"context\":{\"page\":\"/home\",\"refs\":[\"a\",\"b\",\"c\"],\"ts\":" + (1400000000L + i) + "}}");
+		}
+		int numRounds = 200;
+		long start = System.currentTimeMillis();
+		long sum = 0;
+		for(int r=0; r<numRounds; ++r) {
+			for( String doc : docs) {
+				sum += ((List<?>) handle.parseJson( new ObjectMapper().readTree( doc))).size();
+			}
+		}
+		long treeTime = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		for(int r=0; r<numRounds; ++r) {
+			for( String doc : docs) {
+				sum -= ((List<?>) InspectorHandleFactory.ParseJson( handle,
+						PrimitiveObjectInspectorFactory.javaStringObjectInspector, doc)).size();
+			}
+		}
+		long streamTime = System.currentTimeMillis() - start;
+		System.out.println(" Parse " + (numRounds * docs.size()) + " documents : readTree " + treeTime
+				+ " ms ; streaming " + streamTime + " ms ; difference " + sum);
+	}
 }
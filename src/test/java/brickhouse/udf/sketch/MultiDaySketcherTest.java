@@ -0,0 +1,194 @@
+package brickhouse.udf.sketch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import brickhouse.analytics.uniques.SketchSet;
+import brickhouse.udf.date.DaysBeforeCache;
+
+public class MultiDaySketcherTest {
+	private static final String ASOF = "20130131";
+	/// deliberately not in order
+	private static final List<Integer> DAYS = Arrays.asList( 30, 1, 7);
+	private static final int SKETCH_SIZE = 200;
+
+	private static String Date( int day) {
+		return "201301" + (day < 10 ? "0" + day : "" + day);
+	}
+
+	private static List<String> Uniques( int day, int numUniques) {
+		List<String> uniques = new ArrayList<String>();
+		for(int i=0; i<numUniques; ++i) {
+			uniques.add( "user_" + (day*100 + i));
+		}
+		return uniques;
+	}
+
+	private static List<Text> ToText( List<String> strs) {
+		List<Text> texts = new ArrayList<Text>();
+		for(String str : strs) {
+			texts.add( new Text( str));
+		}
+		return texts;
+	}
+
+	private static GenericUDAFEvaluator Evaluator( boolean writableUniques) throws Exception {
+		MultiDaySketcherUDAF udaf = new MultiDaySketcherUDAF();
+		GenericUDAFEvaluator eval = udaf.getEvaluator( new TypeInfo[] {
+				TypeInfoFactory.stringTypeInfo,
+				TypeInfoFactory.longTypeInfo,
+				TypeInfoFactory.getListTypeInfo( TypeInfoFactory.stringTypeInfo),
+				TypeInfoFactory.stringTypeInfo,
+				TypeInfoFactory.getListTypeInfo( TypeInfoFactory.intTypeInfo),
+				TypeInfoFactory.intTypeInfo });
+		ObjectInspector uniqOI = writableUniques ? PrimitiveObjectInspectorFactory.writableStringObjectInspector
+				: PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+		eval.init( Mode.COMPLETE, new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+				ObjectInspectorFactory.getStandardListObjectInspector( uniqOI),
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaIntObjectInspector),
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+						TypeInfoFactory.intTypeInfo, new IntWritable( SKETCH_SIZE)) });
+		return eval;
+	}
+
+	private void checkMultiDay( boolean writableUniques) throws Exception {
+		GenericUDAFEvaluator eval = Evaluator( writableUniques);
+		AggregationBuffer agg = eval.getNewAggregationBuffer();
+		for(int day=1; day<=31; ++day) {
+			List<String> uniques = Uniques( day, 150);
+			Object uniqObj = writableUniques ? ToText( uniques) : uniques;
+			eval.iterate( agg, new Object[] { Date( day), 10L, uniqObj, ASOF, DAYS, SKETCH_SIZE });
+		}
+		List<?> result = (List<?>) eval.terminate( agg);
+
+		Assert.assertEquals( DAYS.size(), result.size());
+		for(int i=0; i<DAYS.size(); ++i) {
+			int numDays = DAYS.get(i);
+			SketchSet expected = new SketchSet( SKETCH_SIZE);
+			long expectedCount = 0;
+			for(int day = 31 - numDays + 1; day <= 31; ++day) {
+				expectedCount += 10;
+				for(String uniq : Uniques( day, 150)) {
+					expected.addItem( uniq);
+				}
+			}
+			List<?> struct = (List<?>) result.get(i);
+			Assert.assertEquals( numDays, struct.get(0));
+			Assert.assertEquals( expectedCount, struct.get(1));
+			Assert.assertEquals( expected.getMinHashItems(), struct.get(2));
+		}
+	}
+
+	@Test
+	public void testMultiDaySketch() throws Exception {
+		checkMultiDay( false);
+	}
+
+	@Test
+	public void testMultiDaySketchText() throws Exception {
+		checkMultiDay( true);
+	}
+
+	@Test
+	public void testDaysBeforeCache() {
+		DateTimeFormatter yyyymmdd = DateTimeFormat.forPattern("yyyyMMdd");
+		DateTime asof = yyyymmdd.parseDateTime( ASOF);
+		DaysBeforeCache cache = new DaysBeforeCache( ASOF);
+		DateTime dt = asof.minusDays( 1000);
+		//// twice round, to hit the cached dates as well
+		for(int round=0; round<2; ++round) {
+			for(int i=0; i<2000; ++i) {
+				String dateStr = yyyymmdd.print( dt.plusDays( i));
+				int expected = Days.daysBetween( yyyymmdd.parseDateTime( dateStr), asof).getDays();
+				Assert.assertEquals( dateStr, expected, cache.daysBefore( dateStr));
+				Assert.assertEquals( dateStr, expected, cache.daysBefore( new Text( dateStr)));
+			}
+		}
+	}
+
+	@Ignore("benchmark")
+	@Test
+	public void benchmarkMultiDay() throws Exception {
+		List<Integer> days = Arrays.asList( 1, 7, 14, 30, 60, 90);
+		List<List<String>> dailyUniques = new ArrayList<List<String>>();
+		for(int day=0; day<90; ++day) {
+			dailyUniques.add( Uniques( day, 100));
+		}
+		DateTimeFormatter yyyymmdd = DateTimeFormat.forPattern("yyyyMMdd");
+		DateTime asof = yyyymmdd.parseDateTime( ASOF);
+		int numRounds = 100;
+
+		//// What multiday_sketch used to do for each row
+		long start = System.currentTimeMillis();
+		long sum = 0;
+		for(int r=0; r<numRounds; ++r) {
+			SketchSet[] sketches = new SketchSet[ days.size()];
+			for(int i=0; i<sketches.length; ++i) {
+				sketches[i] = new SketchSet( SketchSet.DEFAULT_MAX_ITEMS);
+			}
+			for(int day=0; day<90; ++day) {
+				DateTime dt = yyyymmdd.parseDateTime( yyyymmdd.print( asof.minusDays( day)));
+				for(int i=0; i<sketches.length; ++i) {
+					int daysBetween = Days.daysBetween( dt, asof).getDays();
+					if( daysBetween < days.get(i)) {
+						for(String uniq : dailyUniques.get( day)) {
+							sketches[i].addItem( uniq);
+						}
+					}
+				}
+			}
+			sum += sketches[ sketches.length - 1].size();
+		}
+		long oldTime = System.currentTimeMillis() - start;
+
+		MultiDaySketcherUDAF udaf = new MultiDaySketcherUDAF();
+		GenericUDAFEvaluator eval = udaf.getEvaluator( new TypeInfo[] {
+				TypeInfoFactory.stringTypeInfo,
+				TypeInfoFactory.longTypeInfo,
+				TypeInfoFactory.getListTypeInfo( TypeInfoFactory.stringTypeInfo),
+				TypeInfoFactory.stringTypeInfo,
+				TypeInfoFactory.getListTypeInfo( TypeInfoFactory.intTypeInfo) });
+		eval.init( Mode.COMPLETE, new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				ObjectInspectorFactory.getStandardListObjectInspector( PrimitiveObjectInspectorFactory.javaIntObjectInspector) });
+		start = System.currentTimeMillis();
+		for(int r=0; r<numRounds; ++r) {
+			AggregationBuffer agg = eval.getNewAggregationBuffer();
+			for(int day=0; day<90; ++day) {
+				String dateStr = yyyymmdd.print( asof.minusDays( day));
+				eval.iterate( agg, new Object[] { dateStr, 1L, dailyUniques.get( day), ASOF, days });
+			}
+			List<?> result = (List<?>) eval.terminate( agg);
+			sum -= ((List<?>) ((List<?>) result.get( days.size() - 1)).get(2)).size();
+		}
+		long newTime = System.currentTimeMillis() - start;
+		System.out.println(" 90 days x " + days.size() + " windows x " + numRounds + " : per window " + oldTime
+				+ " ms ; multiday_sketch " + newTime + " ms ; difference " + sum);
+	}
+
+}